@@ -36,6 +36,11 @@ options:"""
 cli.with {
     d longOpt:'dump_scenario', 'Just dump (print to STDOUT) the given scenario and exit.'
     q longOpt:'quiet', 'Warning, info and debug messages are suppressed. Only fatal errors are reported.'
+    m longOpt:'metrics', args:1, argName:'format', 'Print per-block time, throughput and allocation report (table or json) to STDERR at the end.'
+    l longOpt:'latency', args:1, argName:'n', 'Print per-block bundle latency histograms and the n slowest bundles to STDERR at the end.'
+    c longOpt:'cache', args:1, argName:'dir', 'Cache results of deterministic blocks in the given directory.'
+    _ longOpt:'cache_size', args:1, argName:'size', 'Maximal size of the cache, e.g. 500m (default 1g).'
+    _ longOpt:'no_fusion', 'Apply each block in its own traversal, even adjacent fusable blocks.'
     h longOpt:'help', 'Shows help.'
 }
 
@@ -46,6 +51,22 @@ if(!opts || opts.help) {
 }
 
 def runInstance = Class.forName("cz.ufal.udapi.core.Run").newInstance()
+if (opts.metrics) {
+    runInstance.setMetrics(opts.metrics)
+}
+if (opts.latency) {
+    runInstance.setLatency(opts.latency as int)
+}
+
+if (opts.cache) {
+    runInstance.setCache(opts.cache)
+}
+if (opts.cache_size) {
+    runInstance.setCacheSize(opts.cache_size)
+}
+if (opts.no_fusion) {
+    runInstance.setFusion(false)
+}
 
 if (opts.arguments().isEmpty()) {
     runInstance.run(opts.dump_scenario?:false, opts.quiet?:false)
@@ -4,9 +4,20 @@ import cz.ufal.udapi.core.Block;
 import cz.ufal.udapi.core.Bundle;
 import cz.ufal.udapi.core.Document;
 import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.jfr.DocumentReadEvent;
+import cz.ufal.udapi.core.io.UdapiIOException;
 import cz.ufal.udapi.exception.UdapiException;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -16,6 +27,9 @@ import java.util.Optional;
  *
  * This class is zone and bundle aware.
  *
+ * Reads from the standard input unless another input is bound with setInput,
+ * e.g. a StringReader when the block is used through the Pipeline API.
+ *
  * @author Martin Vojtek
  */
 public abstract class Reader extends Block {
@@ -26,6 +40,8 @@ public abstract class Reader extends Block {
 
     public static final String PARAM_BUNDLES_PER_DOC = "bundlesPerDoc";
 
+    protected static final int BUFFER = 256 * 1024;
+
     /**
      * What should be the zone of the new trees.
      . Default="keep" means keep the zone saved in the input file (or use "und" if no zone is specified).
@@ -42,6 +58,46 @@ public abstract class Reader extends Block {
      */
     private Optional<Root> buffer = Optional.empty();
 
+    /**
+     * Bundle id of the tree in the buffer.
+     */
+    private String bufferBundleId;
+
+    /**
+     * Bundle id read from the input for the tree in the buffer, empty if the input does not contain it.
+     */
+    private String bufferLastBundleId = "";
+
+    /**
+     * Number of the next sentence, used as bundle id when the input does not contain one.
+     * It is not reset between documents, so bundle ids stay unique when bundlesPerDoc is set.
+     */
+    private int sentenceId = 1;
+
+    /**
+     * Input of the reader. Standard input is used if no input is bound.
+     */
+    private BufferedReader input;
+
+    /**
+     * True if the input was opened by this reader.
+     */
+    private boolean ownsInput;
+
+    /**
+     * True if the whole input has been read.
+     */
+    private boolean finished;
+
+    /**
+     * Reading time of the last tree, of the tree in the buffer and of the trees of the bundle
+     * being read, used when latencies are measured.
+     */
+    private long treeNanos;
+    private long bufferNanos;
+    private long bundleNanos;
+    private Bundle measuredBundle;
+
     /**
      * Reads tree and loads it into the document.
      *
@@ -50,11 +106,8 @@ public abstract class Reader extends Block {
      */
     protected abstract Optional<Root> readTree(Document document);
 
-    /**
-     * @return true if the reader supports multiple zones
-     */
-    boolean isMultizoneReader() {
-        return true;
+    public Reader() {
+        this(new HashMap<>());
     }
 
     public Reader(Map<String, String> params) {
@@ -66,19 +119,111 @@ public abstract class Reader extends Block {
         if (params.containsKey(PARAM_BUNDLES_PER_DOC)) {
             String bundlesPerDoc = params.get(PARAM_BUNDLES_PER_DOC);
             try {
-                this.bundlesPerDoc = Integer.parseInt(params.get(bundlesPerDoc));
+                this.bundlesPerDoc = Integer.parseInt(bundlesPerDoc);
             } catch (Exception e) {
                 throw new UdapiException("Invalid format of " + PARAM_BUNDLES_PER_DOC + " parameter: " + bundlesPerDoc);
             }
         }
     }
 
+    /**
+     * Binds the reader to given input. The input is not closed by this reader.
+     * Any tree left from the previous input is discarded.
+     *
+     * @param input input to read from
+     */
+    public void setInput(java.io.Reader input) {
+        if (input instanceof BufferedReader) {
+            this.input = (BufferedReader) input;
+        } else {
+            this.input = new BufferedReader(input);
+        }
+        ownsInput = false;
+        finished = false;
+        buffer = Optional.empty();
+        sentenceId = 1;
+        resetInput();
+    }
+
+    /**
+     * Called by setInput, readers keeping state of the previous input (e.g. number of read sentences) reset it here.
+     */
+    protected void resetInput() {
+    }
+
+    /**
+     * Binds the reader to given input stream, e.g. ByteArrayInputStream. UTF-8 is expected.
+     *
+     * @param inputStream stream to read from
+     */
+    public void setInput(InputStream inputStream) {
+        setInput(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Standard input is read through a large NIO buffer. Reads block until data arrive,
+     * so slowly piped input is not lost.
+     *
+     * @return input of the reader, standard input by default
+     */
+    protected BufferedReader getInput() {
+        if (null == input) {
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            input = new BufferedReader(Channels.newReader(Channels.newChannel(System.in), decoder, BUFFER), BUFFER);
+            ownsInput = true;
+        }
+        return input;
+    }
+
+    /**
+     * @return true if the whole input has been read, false if there are trees left for the next document
+     */
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Closes the input if it was opened by this reader.
+     */
+    protected void closeInput() {
+        if (null != input && ownsInput) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                throw new UdapiIOException("Failed to close reader.", e);
+            }
+            input = null;
+        }
+    }
 
     /**
      * Processes document. This method is called by Run class.
      */
     @Override
     public void processDocument(Document document) {
+        DocumentReadEvent event = new DocumentReadEvent();
+        event.begin();
+        try {
+            readDocument(document);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.reader = getClass().getName();
+                event.bundles = document.getBundles().size();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Reads trees into given document and groups them into bundles.
+     *
+     * @param document document to read into
+     */
+    private void readDocument(Document document) {
 
         List<Bundle> originalBundles = new ArrayList<>(document.getBundles());
 
@@ -94,13 +239,14 @@ public abstract class Reader extends Block {
                 bundle = originalBundles.remove(0);
             } else {
                 bundle = document.createBundle();
+                bundle.setId(bufferBundleId);
                 bundleNo++;
             }
-            bundle.addTree(buffer.get());
+            addTree(bundle, buffer.get(), bufferNanos);
             buffer = Optional.empty();
+            lastBundleId = bufferLastBundleId;
         }
-        int sentenceId = 1;
-        Optional<Root> root = readTree(document);
+        Optional<Root> root = readMeasuredTree(document);
         while (root.isPresent()) {
             Root tree = root.get();
 
@@ -135,10 +281,15 @@ public abstract class Reader extends Block {
             if (null != bundle || !addToTheLastBundle) {
                 if (bpd != 0 && bpd == bundleNo) {
                     buffer = Optional.of(tree);
+                    bufferBundleId = (null == lastBundleId || "".equals(lastBundleId)) ? String.valueOf(sentenceId) : lastBundleId;
+                    bufferLastBundleId = lastBundleId;
+                    bufferNanos = treeNanos;
+                    sentenceId++;
                     if (!originalBundles.isEmpty()) {
                         System.err.println("bundlesPerDoc=" + bpd + " but the doc already contained "
                                 + originalBundles.size() + " bundles");
                     }
+                    recordBundleLatency();
                     return;
                 }
 
@@ -158,22 +309,50 @@ public abstract class Reader extends Block {
                 bundleNo++;
             }
 
-            bundle.addTree(tree);
+            addTree(bundle, tree, treeNanos);
 
             // If bundlesPerDoc is set and we have read the specified number of bundles,
-            // we should end the current document and return.
-            // However, if the reader supports reading multiple zone, we can never know
-            // if the current bundle has ended or there will be another tree for this bundle.
-            // So in case of multizone readers we need to read one extra tree
-            // and store it in the buffer (and include it into the next document).
-            if (bpd != 0 && bpd == bundleNo && !isMultizoneReader()) {
-                return;
-            }
-
-            root = readTree(document);
+            // the next tree is read and stored in the buffer (and included into the next document).
+            // For multizone readers, it may still belong to the current bundle.
+            // For all readers, it tells whether the input has ended, so that no empty document is processed.
+            root = readMeasuredTree(document);
             sentenceId++;
         }
 
+        recordBundleLatency();
+        finished = true;
+    }
+
+    private Optional<Root> readMeasuredTree(Document document) {
+        if (null == getLatency()) {
+            return readTree(document);
+        }
+        long start = System.nanoTime();
+        Optional<Root> root = readTree(document);
+        treeNanos = System.nanoTime() - start;
+        return root;
+    }
+
+    /**
+     * Adds tree to the bundle, its reading time is added to the latency of the bundle.
+     */
+    private void addTree(Bundle bundle, Root tree, long nanos) {
+        bundle.addTree(tree);
+        if (null != getLatency()) {
+            if (bundle != measuredBundle) {
+                recordBundleLatency();
+                measuredBundle = bundle;
+            }
+            bundleNanos += nanos;
+        }
+    }
+
+    private void recordBundleLatency() {
+        if (null != measuredBundle) {
+            recordLatency(measuredBundle, bundleNanos);
+            measuredBundle = null;
+            bundleNanos = 0;
+        }
     }
 
 }
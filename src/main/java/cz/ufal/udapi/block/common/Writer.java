@@ -0,0 +1,151 @@
+package cz.ufal.udapi.block.common;
+
+import cz.ufal.udapi.core.Block;
+import cz.ufal.udapi.core.Document;
+import cz.ufal.udapi.core.io.UdapiIOException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writer is base class for more specific writers, e.g. CoNLLU.
+ *
+ * Writes to the standard output unless the file parameter is given
+ * or another output is bound with setOutput, e.g. a StringWriter when the block is used through the Pipeline API.
+ *
+ * @author Martin Vojtek
+ */
+public abstract class Writer extends Block {
+
+    public static final String PARAM_FILE = "file";
+
+    protected static final int BUFFER = 256 * 1024;
+
+    /**
+     * Where to write. Standard output is used if no output is bound.
+     */
+    private java.io.Writer output;
+
+    /**
+     * True if the output was opened by this writer and should be closed in processEnd.
+     */
+    private boolean ownsOutput;
+
+    public Writer() {
+        this(new HashMap<>());
+    }
+
+    public Writer(Map<String, String> params) {
+        super(params);
+    }
+
+    /**
+     * Binds the writer to given output. The output is flushed, but not closed, by this writer.
+     *
+     * @param output output to write to
+     */
+    public void setOutput(java.io.Writer output) {
+        closeOutput();
+        this.output = output;
+    }
+
+    /**
+     * Binds the writer to given output stream, e.g. ByteArrayOutputStream. UTF-8 is used.
+     *
+     * @param outputStream stream to write to
+     */
+    public void setOutput(OutputStream outputStream) {
+        setOutput(new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), BUFFER));
+    }
+
+    /**
+     * @return output of the writer, the file given by the file parameter or standard output by default
+     */
+    protected java.io.Writer getOutput() {
+        if (null == output) {
+            String file = getParams().get(PARAM_FILE);
+            if (null != file) {
+                try {
+                    FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    output = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER), BUFFER);
+                } catch (IOException e) {
+                    throw new UdapiIOException("Failed to open output file '" + file + "'.", e);
+                }
+                ownsOutput = true;
+            } else {
+                output = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Writes given content to the output.
+     *
+     * @param content content to write
+     */
+    protected void write(CharSequence content) {
+        try {
+            getOutput().append(content);
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to write output.", e);
+        }
+    }
+
+    /**
+     * Flushes the output.
+     */
+    protected void flush() {
+        if (null != output) {
+            try {
+                output.flush();
+            } catch (IOException e) {
+                throw new UdapiIOException("Failed to flush writer.", e);
+            }
+        }
+    }
+
+    /**
+     * Flushes the output after each document.
+     *
+     * @param document processed document
+     */
+    @Override
+    public void afterProcessDocument(Document document) {
+        flush();
+    }
+
+    /**
+     * Flushes the output. Output opened by this writer is closed.
+     */
+    private void closeOutput() {
+        flush();
+        if (ownsOutput) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                throw new UdapiIOException("Failed to close writer.", e);
+            }
+            output = null;
+            ownsOutput = false;
+        }
+    }
+
+    /**
+     * Flushes the output. Output opened by this writer is closed.
+     */
+    @Override
+    public void processEnd() {
+        closeOutput();
+    }
+}
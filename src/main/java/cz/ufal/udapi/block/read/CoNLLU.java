@@ -2,38 +2,246 @@ package cz.ufal.udapi.block.read;
 
 import cz.ufal.udapi.core.Document;
 import cz.ufal.udapi.core.Root;
-import cz.ufal.udapi.core.io.DocumentReader;
-import cz.ufal.udapi.core.io.UdapiIOException;
+import cz.ufal.udapi.core.index.AttributeIndex;
+import cz.ufal.udapi.core.io.Column;
 import cz.ufal.udapi.core.io.impl.CoNLLUReader;
+import cz.ufal.udapi.exception.UdapiException;
 
 import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.io.StringReader;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
- * CoNLLU reader. Loads CoNLLU from the standard input into internal structure.
+ * CoNLLU reader. Loads CoNLLU from the standard input (or from the bound input) into internal structure.
+ *
+ * If parameters index (built by Util::Index from the same input) and query are given,
+ * only trees with a node matching the query are loaded, other sentences are skipped without parsing.
+ * See AttributeIndex.search for the query syntax.
+ *
+ * Parameters sent_id, text and newdoc are regular expressions which must be found in sent_id, text
+ * and id of the last newdoc of the loaded sentences. They are evaluated on the comment lines
+ * before any node is created, other sentences are skipped by scanning to the next blank line.
+ * They cannot be combined with index and query.
+ *
+ * Example usage:
+ * cat corpus.conllu | udapi.groovy Read::CoNLLU sent_id='^train-s[0-9]+$' newdoc=wiki Write::CoNLLU
+ *
+ * Parameter columns (e.g. columns=form,head,deprel) selects CoNLLU columns parsed when the nodes are created.
+ * By default, these are the columns required by the following blocks of the pipeline (see Block.getRequiredColumns),
+ * columns=all parses all columns. Other columns are parsed on first access, so they are never lost.
+ *
+ * Sampling parameters, sentences which are not selected are only scanned for their boundaries:
+ * offset - number of sentences to skip at the beginning of the input (default 0)
+ * stride - load every stride-th sentence after the offset (default 1)
+ * sample - probability of loading each of these sentences (Bernoulli sampling, default 1)
+ * reservoir - load a uniform random sample of given size of these sentences (reservoir sampling), in input order.
+ *     The sampled sentences are kept as text until the whole input is scanned.
+ * seed - seed of the random generator used by sample and reservoir
+ * limit - stop after loading given number of trees
+ * Only limit can be combined with index, query, sent_id, text and newdoc.
+ *
+ * Example usage:
+ * cat huge.conllu | udapi.groovy Read::CoNLLU reservoir=100 seed=42 Write::CoNLLU
+ *
+ * If parameter passthrough is 1, original lines of each sentence are kept, so that
+ * Write::CoNLLU passthrough=1 can copy trees which were not modified.
  *
  * @author Martin Vojtek
  */
 public class CoNLLU extends cz.ufal.udapi.block.common.Reader {
 
+    public static final String PARAM_INDEX = "index";
+
+    public static final String PARAM_QUERY = "query";
+
+    public static final String PARAM_PASSTHROUGH = "passthrough";
+
+    public static final String PARAM_SENT_ID = "sent_id";
+
+    public static final String PARAM_TEXT = "text";
+
+    public static final String PARAM_NEWDOC = "newdoc";
+
+    public static final String PARAM_COLUMNS = "columns";
+
+    public static final String PARAM_LIMIT = "limit";
+
+    public static final String PARAM_OFFSET = "offset";
+
+    public static final String PARAM_STRIDE = "stride";
+
+    public static final String PARAM_SAMPLE = "sample";
+
+    public static final String PARAM_RESERVOIR = "reservoir";
+
+    public static final String PARAM_SEED = "seed";
+
+    private static final String ALL_COLUMNS = "all";
+
+    public CoNLLU() {
+        this(new HashMap<>());
+    }
+
     public CoNLLU(Map<String, String> params) {
         super(params);
     }
 
-    private DocumentReader coNLLUReader;
-    private BufferedReader reader;
+    private CoNLLUReader coNLLUReader;
+
+    /**
+     * Numbers of trees to load, null if all trees are loaded.
+     */
+    private int[] matchingTrees;
+
+    /**
+     * Index to matchingTrees of the next tree to load.
+     */
+    private int nextMatch;
+
+    /**
+     * Number of the next sentence in the input.
+     */
+    private int sentenceNumber;
+
+    /**
+     * Maximal number of trees to load, -1 if unlimited.
+     */
+    private long limit = -1;
+
+    /**
+     * Number of trees loaded so far.
+     */
+    private long loadedTrees;
+
+    private long offset;
+    private long stride = 1;
+    private double sample = 1;
+    private int reservoir;
+    private Random random;
+
+    /**
+     * Sentences (as text) sampled by reservoir sampling in input order, null until the input is scanned.
+     */
+    private List<String> reservoirSentences;
+
+    /**
+     * Index to reservoirSentences of the next sentence to load.
+     */
+    private int nextReservoirSentence;
+
+    /**
+     * Columns required by the following blocks, null if not known.
+     */
+    private Set<Column> requiredColumns;
+
+    @Override
+    public void projectColumns(Set<Column> columns) {
+        requiredColumns = columns;
+    }
+
+    @Override
+    protected void resetInput() {
+        nextMatch = 0;
+        sentenceNumber = 0;
+        loadedTrees = 0;
+        reservoirSentences = null;
+        nextReservoirSentence = 0;
+        if (null != coNLLUReader) {
+            coNLLUReader.reset();
+        }
+    }
 
     /**
      * Intialize readers.
      */
     @Override
     public void processStart() {
-        reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
-        coNLLUReader = new CoNLLUReader(reader);
+        coNLLUReader = new CoNLLUReader(getInput());
+        String passthrough = getParams().get(PARAM_PASSTHROUGH);
+        coNLLUReader.setKeepRawLines("1".equals(passthrough) || "true".equals(passthrough));
+
+        String columns = getParams().get(PARAM_COLUMNS);
+        if (null == columns) {
+            coNLLUReader.setColumns(requiredColumns);
+        } else if (!ALL_COLUMNS.equals(columns)) {
+            coNLLUReader.setColumns(Column.parse(columns));
+        }
+
+        Pattern sentId = compile(PARAM_SENT_ID);
+        Pattern text = compile(PARAM_TEXT);
+        Pattern newDoc = compile(PARAM_NEWDOC);
+        coNLLUReader.setMetadataFilter(sentId, text, newDoc);
+
+        String index = getParams().get(PARAM_INDEX);
+        String query = getParams().get(PARAM_QUERY);
+        limit = parseLong(PARAM_LIMIT, -1);
+        offset = parseLong(PARAM_OFFSET, 0);
+        stride = parseLong(PARAM_STRIDE, 1);
+        reservoir = (int) parseLong(PARAM_RESERVOIR, 0);
+        String sampleParam = getParams().get(PARAM_SAMPLE);
+        if (null != sampleParam) {
+            try {
+                sample = Double.parseDouble(sampleParam);
+            } catch (NumberFormatException e) {
+                throw new UdapiException("Invalid format of " + PARAM_SAMPLE + " parameter: " + sampleParam);
+            }
+        }
+        if (limit < -1 || offset < 0 || stride < 1 || reservoir < 0 || !(sample > 0 && sample <= 1)) {
+            throw new UdapiException("Invalid sampling parameters: " + PARAM_LIMIT + "=" + limit + ", " + PARAM_OFFSET + "=" + offset
+                    + ", " + PARAM_STRIDE + "=" + stride + ", " + PARAM_SAMPLE + "=" + sample + ", " + PARAM_RESERVOIR + "=" + reservoir);
+        }
+        String seed = getParams().get(PARAM_SEED);
+        random = null == seed ? new Random() : new Random(parseLong(PARAM_SEED, 0));
+
+        boolean sampling = 0 != offset || 1 != stride || 1 != sample || 0 != reservoir;
+        if (sampling && (null != index || null != query || null != sentId || null != text || null != newDoc)) {
+            throw new UdapiException("Parameters " + PARAM_OFFSET + ", " + PARAM_STRIDE + ", " + PARAM_SAMPLE + " and " + PARAM_RESERVOIR
+                    + " cannot be combined with " + PARAM_INDEX + ", " + PARAM_QUERY + ", " + PARAM_SENT_ID + ", " + PARAM_TEXT
+                    + " and " + PARAM_NEWDOC + ".");
+        }
+        if ((null != index || null != query) && (null != sentId || null != text || null != newDoc)) {
+            throw new UdapiException("Parameters " + PARAM_INDEX + " and " + PARAM_QUERY + " cannot be combined with "
+                    + PARAM_SENT_ID + ", " + PARAM_TEXT + " and " + PARAM_NEWDOC + ".");
+        }
+        if (null != index && null != query) {
+            matchingTrees = AttributeIndex.load(Paths.get(index)).searchTrees(query);
+        } else if (null != index || null != query) {
+            throw new UdapiException("Parameters " + PARAM_INDEX + " and " + PARAM_QUERY + " must be given together.");
+        }
+    }
+
+    private long parseLong(String param, long defaultValue) {
+        String value = getParams().get(param);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new UdapiException("Invalid format of " + param + " parameter: " + value);
+        }
+    }
+
+    private Pattern compile(String param) {
+        String regex = getParams().get(param);
+        if (null == regex) {
+            return null;
+        }
+        try {
+            return Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            throw new UdapiException("Invalid format of " + param + " parameter: " + regex);
+        }
     }
 
     /**
@@ -43,7 +251,102 @@ public class CoNLLU extends cz.ufal.udapi.block.common.Reader {
      */
     @Override
     protected Optional<Root> readTree(Document document) {
-        return coNLLUReader.readTree(reader, document);
+        if (-1 != limit && loadedTrees >= limit) {
+            //the rest of the input is not read at all
+            return Optional.empty();
+        }
+        Optional<Root> tree = readSelectedTree(document);
+        if (tree.isPresent()) {
+            loadedTrees++;
+        }
+        return tree;
+    }
+
+    private Optional<Root> readSelectedTree(Document document) {
+        if (0 != reservoir) {
+            if (null == reservoirSentences) {
+                fillReservoir();
+            }
+            if (nextReservoirSentence == reservoirSentences.size()) {
+                return Optional.empty();
+            }
+            String sentence = reservoirSentences.get(nextReservoirSentence);
+            reservoirSentences.set(nextReservoirSentence++, null);
+            return coNLLUReader.readTree(new BufferedReader(new StringReader(sentence)), document);
+        }
+
+        if (null != matchingTrees) {
+            if (nextMatch == matchingTrees.length) {
+                return Optional.empty();
+            }
+            while (sentenceNumber < matchingTrees[nextMatch]) {
+                if (!coNLLUReader.skipTree(getInput())) {
+                    return Optional.empty();
+                }
+                sentenceNumber++;
+            }
+            nextMatch++;
+        } else {
+            while (!isSelected(sentenceNumber)) {
+                if (!coNLLUReader.skipTree(getInput())) {
+                    return Optional.empty();
+                }
+                sentenceNumber++;
+            }
+        }
+        sentenceNumber++;
+        return coNLLUReader.readTree(getInput(), document);
+    }
+
+    /**
+     * @param sentence number of a sentence in the input
+     * @return true if the sentence is selected by offset, stride and sample
+     */
+    private boolean isSelected(long sentence) {
+        return sentence >= offset && 0 == (sentence - offset) % stride && (1 == sample || random.nextDouble() < sample);
+    }
+
+    /**
+     * Scans the whole input and keeps a uniform random sample of the selected sentences (algorithm R).
+     */
+    private void fillReservoir() {
+        List<String> sentences = new ArrayList<>();
+        List<Long> positions = new ArrayList<>();
+        long selected = 0;
+        for (long sentence = 0; ; sentence++) {
+            if (!isSelected(sentence)) {
+                if (!coNLLUReader.skipTree(getInput())) {
+                    break;
+                }
+                continue;
+            }
+            String text = coNLLUReader.readSentence(getInput());
+            if (null == text) {
+                break;
+            }
+            if (selected < reservoir) {
+                sentences.add(text);
+                positions.add(sentence);
+            } else {
+                long replaced = (long) (random.nextDouble() * (selected + 1));
+                if (replaced < reservoir) {
+                    sentences.set((int) replaced, text);
+                    positions.set((int) replaced, sentence);
+                }
+            }
+            selected++;
+        }
+
+        //keep the input order
+        Integer[] order = new Integer[sentences.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(positions.get(a), positions.get(b)));
+        reservoirSentences = new ArrayList<>(order.length);
+        for (Integer i : order) {
+            reservoirSentences.add(sentences.get(i));
+        }
     }
 
     /**
@@ -51,12 +354,6 @@ public class CoNLLU extends cz.ufal.udapi.block.common.Reader {
      */
     @Override
     public void processEnd() {
-        try {
-            if (null != reader) {
-                reader.close();
-            }
-        } catch (IOException e) {
-            throw new UdapiIOException("Failed to close reader.", e);
-        }
+        closeInput();
     }
 }
@@ -1,51 +1,60 @@
 package cz.ufal.udapi.block.read;
 
-import cz.ufal.udapi.core.Block;
-import cz.ufal.udapi.core.Bundle;
 import cz.ufal.udapi.core.Document;
+import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.impl.DefaultRoot;
 import cz.ufal.udapi.core.io.UdapiIOException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
 
 /**
- * Reads sentences from standard input into default bundle.
+ * Reads sentences from the standard input (or from the bound input), one sentence per line.
+ *
+ * Each line is loaded into a new bundle. The input is streamed, so with bundlesPerDoc set
+ * only given number of sentences is kept in memory and the scenario is applied to one chunk at a time.
  *
  * @author Martin Vojtek
  */
-public class Sentences extends Block {
+public class Sentences extends cz.ufal.udapi.block.common.Reader {
+
+    public Sentences() {
+        this(new HashMap<>());
+    }
+
+    public Sentences(Map<String, String> params) {
+        super(params);
+    }
 
     /**
-     * Loads sentences into given document.
+     * Reads one line as a sentence of a new tree.
      *
-     * @param document document to load into
+     * @param document document to read into
+     * @return tree with the sentence, empty at the end of the input
      */
     @Override
-    public void processDocument(Document document) {
-
-        boolean inAvailable;
-
+    protected Optional<Root> readTree(Document document) {
+        String line;
         try {
-            inAvailable = System.in.available() > 0;
+            line = getInput().readLine();
         } catch (IOException e) {
-            throw new UdapiIOException("Error when reading input stream.", e);
+            throw new UdapiIOException("Error when reading input.", e);
         }
-
-        if (inAvailable) {
-            try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
-                //default bundle
-                Bundle bundle = document.getDefaultBundle();
-                String currLine;
-
-                while ((currLine = bufferedReader.readLine()) != null) {
-                    bundle.createTree().setSentence(currLine);
-                }
-            } catch (IOException e) {
-                throw new UdapiIOException(e);
-            }
+        if (null == line) {
+            return Optional.empty();
         }
+        Root tree = new DefaultRoot(document);
+        tree.setSentence(line);
+        return Optional.of(tree);
+    }
 
+    /**
+     * Close readers.
+     */
+    @Override
+    public void processEnd() {
+        closeInput();
     }
 }
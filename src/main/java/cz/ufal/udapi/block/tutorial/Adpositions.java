@@ -2,6 +2,10 @@ package cz.ufal.udapi.block.tutorial;
 
 import cz.ufal.udapi.core.Block;
 import cz.ufal.udapi.core.Node;
+import cz.ufal.udapi.core.io.Column;
+
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * This class is useful for tutorial purposes.
@@ -32,6 +36,11 @@ public class Adpositions extends Block {
 
     private static final String ADP = "ADP";
 
+    @Override
+    public Set<Column> getRequiredColumns() {
+        return EnumSet.of(Column.UPOS);
+    }
+
     @Override
     public void processNode(Node node) {
         // TODO: Your task: distinguish prepositions and postpositions
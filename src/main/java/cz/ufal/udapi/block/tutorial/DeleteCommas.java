@@ -2,6 +2,10 @@ package cz.ufal.udapi.block.tutorial;
 
 import cz.ufal.udapi.core.Block;
 import cz.ufal.udapi.core.Node;
+import cz.ufal.udapi.core.io.Column;
+
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * This class deletes commas in the document.
@@ -26,6 +30,16 @@ import cz.ufal.udapi.core.Node;
  */
 public class DeleteCommas extends Block {
 
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
+    @Override
+    public Set<Column> getRequiredColumns() {
+        return EnumSet.of(Column.LEMMA);
+    }
+
     @Override
     public void processNode(Node node) {
         if (",".equals(node.getLemma())) {
@@ -2,6 +2,10 @@ package cz.ufal.udapi.block.tutorial;
 
 import cz.ufal.udapi.core.Block;
 import cz.ufal.udapi.core.Node;
+import cz.ufal.udapi.core.io.Column;
+
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * This classes changes prepositions into postpositions.
@@ -28,6 +32,16 @@ public class ToPositions extends Block {
 
     private static final String ADP = "ADP";
 
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
+    @Override
+    public Set<Column> getRequiredColumns() {
+        return EnumSet.of(Column.UPOS);
+    }
+
     @Override
     public void processNode(Node node) {
         if (node.getParent().isPresent()) {
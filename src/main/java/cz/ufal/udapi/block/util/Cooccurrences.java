@@ -0,0 +1,151 @@
+package cz.ufal.udapi.block.util;
+
+import cz.ufal.udapi.core.Block;
+import cz.ufal.udapi.core.Node;
+import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.Run;
+import cz.ufal.udapi.core.stats.Dictionary;
+import cz.ufal.udapi.core.stats.OffHeapCounter;
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Counts dependency triples (head lemma, deprel, dependent lemma) or n-grams of forms
+ * and prints them with their counts as tab-separated values at the end.
+ *
+ * Strings are encoded as ids and counted in an off-heap hash table (see OffHeapCounter),
+ * which is spilled to disk when it exceeds the memory limit, so the counts do not need to fit in the heap.
+ *
+ * Example usage:
+ * cat UD_Czech/*.conllu | udapi.groovy Read::CoNLLU Util::Cooccurrences what=ngrams n=3 memory=1g min_count=5
+ *
+ * Parameters:
+ * what - triples (default) or ngrams
+ * n - length of n-grams, 2 by default
+ * memory - maximal size of the hash table, e.g. 512m, 256m by default
+ * tmp_dir - directory for spilled counts, the system temporary directory by default
+ * min_count - only keys with at least this count are printed, 1 by default
+ *
+ * @author Martin Vojtek
+ */
+public class Cooccurrences extends Block {
+
+    public static final String PARAM_WHAT = "what";
+    public static final String PARAM_N = "n";
+    public static final String PARAM_MEMORY = "memory";
+    public static final String PARAM_TMP_DIR = "tmp_dir";
+    public static final String PARAM_MIN_COUNT = "min_count";
+
+    private static final String WHAT_TRIPLES = "triples";
+    private static final String WHAT_NGRAMS = "ngrams";
+
+    private static final String DEFAULT_MEMORY = "256m";
+    private static final String UNDERSCORE = "_";
+
+    private final boolean triples;
+    private final int n;
+    private final long minCount;
+
+    private final Dictionary dictionary = new Dictionary();
+    private final OffHeapCounter counter;
+    private final int[] key;
+
+    public Cooccurrences() {
+        this(new HashMap<>());
+    }
+
+    public Cooccurrences(Map<String, String> params) {
+        super(params);
+
+        String what = params.getOrDefault(PARAM_WHAT, WHAT_TRIPLES);
+        if (!WHAT_TRIPLES.equals(what) && !WHAT_NGRAMS.equals(what)) {
+            throw new UdapiException("Invalid " + PARAM_WHAT + ": " + what);
+        }
+        triples = WHAT_TRIPLES.equals(what);
+        n = triples ? 3 : parseInt(params, PARAM_N, 2);
+        minCount = parseInt(params, PARAM_MIN_COUNT, 1);
+        if (n <= 0) {
+            throw new UdapiException("Parameter " + PARAM_N + " must be positive.");
+        }
+
+        long memory = Run.parseSize(params.getOrDefault(PARAM_MEMORY, DEFAULT_MEMORY));
+        String tmpDir = params.getOrDefault(PARAM_TMP_DIR, System.getProperty("java.io.tmpdir"));
+        counter = new OffHeapCounter(n, memory, Paths.get(tmpDir));
+        key = new int[n];
+    }
+
+    private static int parseInt(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new UdapiException("Invalid format of " + name + " parameter: " + value);
+        }
+    }
+
+    @Override
+    public void processTree(Root tree) {
+        List<Node> nodes = tree.getDescendants();
+        if (triples) {
+            for (Node node : nodes) {
+                Optional<Node> parent = node.getParent();
+                if (parent.isPresent() && !parent.get().isRoot()) {
+                    key[0] = id(parent.get().getLemma());
+                    key[1] = id(node.getDeprel());
+                    key[2] = id(node.getLemma());
+                    counter.add(key);
+                }
+            }
+        } else {
+            for (int start = 0; start + n <= nodes.size(); start++) {
+                for (int i = 0; i < n; i++) {
+                    key[i] = id(nodes.get(start + i).getForm());
+                }
+                counter.add(key);
+            }
+        }
+    }
+
+    private int id(String value) {
+        return dictionary.add(null == value ? UNDERSCORE : value);
+    }
+
+    @Override
+    public void processEnd() {
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        StringBuilder sb = new StringBuilder();
+        try {
+            counter.finish((ids, count) -> {
+                if (count < minCount) {
+                    return;
+                }
+                sb.setLength(0);
+                for (int id : ids) {
+                    sb.append(dictionary.getKey(id)).append('\t');
+                }
+                sb.append(count).append('\n');
+                try {
+                    out.write(sb.toString());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            out.flush();
+        } catch (IOException | UncheckedIOException e) {
+            throw new UdapiException("Failed to write counts.", e);
+        }
+    }
+}
@@ -38,8 +38,24 @@ public class Eval extends Block {
     private static final String VAR_BUNDLE = "bundle";
     private static final String VAR_TREE = "tree";
 
+    /**
+     * Code to evaluate, null if not given. Looked up once, not for every bundle, tree and node.
+     */
+    private final String docCode;
+    private final String bundleCode;
+    private final String treeCode;
+    private final String nodeCode;
+    private final String startCode;
+    private final String endCode;
+
     public Eval(Map<String, String> params) {
         super(params);
+        docCode = params.get(DOC);
+        bundleCode = params.get(BUNDLE);
+        treeCode = params.get(TREE);
+        nodeCode = params.get(NODE);
+        startCode = params.get(START);
+        endCode = params.get(END);
         try {
             evalMethod = Class.forName("groovy.util.Eval").getMethod("me", String.class, Object.class, String.class);
         } catch (Exception e) {
@@ -49,18 +65,22 @@ public class Eval extends Block {
 
     @Override
     public void processDocument(Document document) {
-        if (getParams().containsKey(DOC)) {
+        if (null != docCode) {
             Map<String, Object> params = new HashMap<>();
             params.put(VAR_SELF, document);
             params.put(VAR_DOCUMENT, document);
             params.put(VAR_DOC, document);
-            evaluate(params, getParams().get(DOC));
+            evaluate(params, docCode);
         }
 
-        if (getParams().containsKey(BUNDLE) || getParams().containsKey(TREE) || getParams().containsKey(NODE)) {
+        if (null != bundleCode || null != treeCode || null != nodeCode) {
             for (Bundle bundle : document.getBundles()) {
                 if (shouldProcessBundle(bundle)) {
+                    long start = null != getLatency() ? System.nanoTime() : 0;
                     processBundle(bundle);
+                    if (null != getLatency()) {
+                        recordLatency(bundle, System.nanoTime() - start);
+                    }
                 }
             }
         }
@@ -68,16 +88,16 @@ public class Eval extends Block {
 
     @Override
     public void processBundle(Bundle bundle) {
-        if (getParams().containsKey(BUNDLE)) {
+        if (null != bundleCode) {
             Map<String, Object> params = new HashMap<>();
             params.put(VAR_SELF, bundle);
             params.put(VAR_BUNDLE, bundle);
             params.put(VAR_DOCUMENT, bundle.getDocument());
             params.put(VAR_DOC, bundle.getDocument());
-            evaluate(params, getParams().get(BUNDLE));
+            evaluate(params, bundleCode);
         }
 
-        if (getParams().containsKey(TREE) || getParams().containsKey(NODE)) {
+        if (null != treeCode || null != nodeCode) {
             for (Root tree : bundle.getTrees()) {
                 if (shouldProcessTree(tree)) {
                     processTree(tree);
@@ -89,17 +109,17 @@ public class Eval extends Block {
 
     @Override
     public void processTree(Root tree) {
-        if (getParams().containsKey(TREE)) {
+        if (null != treeCode) {
             Map<String, Object> params = new HashMap<>();
             params.put(VAR_SELF, tree);
             params.put(VAR_TREE, tree);
             params.put(VAR_BUNDLE, tree.getBundle());
             params.put(VAR_DOCUMENT, tree.getBundle().getDocument());
             params.put(VAR_DOC, tree.getBundle().getDocument());
-            evaluate(params, getParams().get(TREE));
+            evaluate(params, treeCode);
         }
 
-        if (getParams().containsKey(NODE)) {
+        if (null != nodeCode) {
             for (Node descendant : tree.getDescendants()) {
                 Map<String, Object> params = new HashMap<>();
                 params.put(VAR_SELF, descendant);
@@ -107,26 +127,26 @@ public class Eval extends Block {
                 params.put(VAR_BUNDLE, tree.getBundle());
                 params.put(VAR_DOCUMENT, tree.getBundle().getDocument());
                 params.put(VAR_DOC, tree.getBundle().getDocument());
-                evaluate(params, getParams().get(NODE));
+                evaluate(params, nodeCode);
             }
         }
     }
 
     @Override
     public void processStart() {
-        if (getParams().containsKey(START)) {
+        if (null != startCode) {
             Map<String, Object> params = new HashMap<>();
             params.put(VAR_SELF, this);
-            evaluate(params, getParams().get(START));
+            evaluate(params, startCode);
         }
     }
 
     @Override
     public void processEnd() {
-        if (getParams().containsKey(END)) {
+        if (null != endCode) {
             Map<String, Object> params = new HashMap<>();
             params.put(VAR_SELF, this);
-            evaluate(params, getParams().get(END));
+            evaluate(params, endCode);
         }
     }
 
@@ -0,0 +1,269 @@
+package cz.ufal.udapi.block.util;
+
+import cz.ufal.udapi.core.Block;
+import cz.ufal.udapi.core.Bundle;
+import cz.ufal.udapi.core.Document;
+import cz.ufal.udapi.core.Node;
+import cz.ufal.udapi.core.Parallel;
+import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.index.AttributeIndex;
+import cz.ufal.udapi.core.query.TreeQuery;
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Keeps, deletes or marks bundles, trees or nodes matching a tree query (see TreeQuery).
+ *
+ * Example usage:
+ * Util::Filter pattern='$a: upos=ADP; $n: upos=NOUN; $a child $n; $n precedes $a' action=delete scope=tree
+ *
+ * Parameters:
+ * pattern - the query, required
+ * action - keep (default) removes everything that does not match, delete removes what matches,
+ *     mark adds Mark=1 (see parameter mark) to MISC of all nodes of each match
+ * scope - bundle (matches if any of its trees matches), tree (default) or node (the first variable of the query),
+ *     ignored by action mark
+ * index - index built by Util::Index from the same input, trees without candidate nodes do not match without being searched;
+ *     it must be placed before any block adding or removing trees
+ * threads - number of threads searching the bundles in parallel, the number of processors by default
+ *
+ * @author Martin Vojtek
+ */
+public class Filter extends Block {
+
+    public static final String PARAM_PATTERN = "pattern";
+    public static final String PARAM_ACTION = "action";
+    public static final String PARAM_SCOPE = "scope";
+    public static final String PARAM_MARK = "mark";
+    public static final String PARAM_INDEX = "index";
+    public static final String PARAM_THREADS = "threads";
+
+    private static final String ACTION_KEEP = "keep";
+    private static final String ACTION_DELETE = "delete";
+    private static final String ACTION_MARK = "mark";
+
+    private static final String SCOPE_BUNDLE = "bundle";
+    private static final String SCOPE_TREE = "tree";
+    private static final String SCOPE_NODE = "node";
+
+    private static final String DEFAULT_MARK = "Mark";
+    private static final String UNDERSCORE = "_";
+
+    private final String action;
+    private final String scope;
+    private final String markItem;
+    private final int threads;
+
+    private TreeQuery query;
+    private int[] candidateTrees;
+    private ExecutorService executor;
+
+    /**
+     * Number of the next tree in the input, used with index.
+     */
+    private int treeNumber;
+
+    public Filter() {
+        this(new HashMap<>());
+    }
+
+    public Filter(Map<String, String> params) {
+        super(params);
+
+        if (!params.containsKey(PARAM_PATTERN)) {
+            throw new UdapiException("Parameter " + PARAM_PATTERN + " of Util::Filter is required.");
+        }
+
+        action = params.getOrDefault(PARAM_ACTION, ACTION_KEEP);
+        if (!Arrays.asList(ACTION_KEEP, ACTION_DELETE, ACTION_MARK).contains(action)) {
+            throw new UdapiException("Invalid " + PARAM_ACTION + ": " + action);
+        }
+        scope = params.getOrDefault(PARAM_SCOPE, SCOPE_TREE);
+        if (!Arrays.asList(SCOPE_BUNDLE, SCOPE_TREE, SCOPE_NODE).contains(scope)) {
+            throw new UdapiException("Invalid " + PARAM_SCOPE + ": " + scope);
+        }
+        markItem = params.getOrDefault(PARAM_MARK, DEFAULT_MARK) + "=1";
+
+        String threadsParam = params.get(PARAM_THREADS);
+        try {
+            threads = null == threadsParam ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threadsParam);
+        } catch (NumberFormatException e) {
+            throw new UdapiException("Invalid format of " + PARAM_THREADS + " parameter: " + threadsParam);
+        }
+    }
+
+    @Override
+    public void processStart() {
+        AttributeIndex index = null;
+        if (getParams().containsKey(PARAM_INDEX)) {
+            index = AttributeIndex.load(Paths.get(getParams().get(PARAM_INDEX)));
+        }
+        query = TreeQuery.compile(getParams().get(PARAM_PATTERN), index);
+        if (null != index) {
+            candidateTrees = query.candidateTrees(index);
+        }
+        if (threads > 1) {
+            executor = Parallel.newDaemonPool(threads, "filter");
+        }
+    }
+
+    @Override
+    public void processEnd() {
+        if (null != executor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Searches trees of all bundles in parallel and then applies the action in the document order.
+     */
+    @Override
+    public void processDocument(Document document) {
+        List<Bundle> bundles = new ArrayList<>();
+        List<Root> trees = new ArrayList<>();
+        List<Boolean> processed = new ArrayList<>();
+        List<Boolean> searched = new ArrayList<>();
+        for (Bundle bundle : document.getBundles()) {
+            for (Root tree : bundle.getTrees()) {
+                boolean process = shouldProcessBundle(bundle) && shouldProcessTree(tree);
+                bundles.add(bundle);
+                trees.add(tree);
+                processed.add(process);
+                searched.add(process && isCandidate(treeNumber));
+                treeNumber++;
+            }
+        }
+
+        long[] nanos = null != getLatency() ? new long[trees.size()] : null;
+        List<List<Node[]>> matches = search(trees, searched, nanos);
+        if (null != nanos) {
+            List<Bundle> processedBundles = new ArrayList<>(bundles.size());
+            for (int i = 0; i < bundles.size(); i++) {
+                processedBundles.add(processed.get(i) ? bundles.get(i) : null);
+            }
+            recordTreeLatencies(processedBundles, nanos);
+        }
+
+        if (ACTION_MARK.equals(action)) {
+            for (List<Node[]> treeMatches : matches) {
+                for (Node[] match : treeMatches) {
+                    for (Node node : match) {
+                        mark(node);
+                    }
+                }
+            }
+        } else if (SCOPE_NODE.equals(scope)) {
+            for (int i = 0; i < trees.size(); i++) {
+                if (processed.get(i)) {
+                    filterNodes(trees.get(i), matches.get(i));
+                }
+            }
+        } else {
+            filterTrees(bundles, trees, processed, matches);
+        }
+    }
+
+    private boolean isCandidate(int tree) {
+        return null == candidateTrees || Arrays.binarySearch(candidateTrees, tree) >= 0;
+    }
+
+    /**
+     * Only the first match of each tree is needed, unless nodes are marked or filtered.
+     * Search times of the trees are stored into nanos unless it is null.
+     */
+    private List<List<Node[]>> search(List<Root> trees, List<Boolean> searched, long[] nanos) {
+        int limit = ACTION_MARK.equals(action) || SCOPE_NODE.equals(scope) ? Integer.MAX_VALUE : 1;
+        List<List<Node[]>> matches = new ArrayList<>(Collections.nCopies(trees.size(), Collections.emptyList()));
+
+        if (null == executor) {
+            for (int i = 0; i < trees.size(); i++) {
+                if (searched.get(i)) {
+                    findMatches(trees, matches, nanos, i, limit);
+                }
+            }
+            return matches;
+        }
+
+        List<Integer> searchedTrees = new ArrayList<>();
+        for (int i = 0; i < trees.size(); i++) {
+            if (searched.get(i)) {
+                searchedTrees.add(i);
+            }
+        }
+        Parallel.mapParts(executor, threads, searchedTrees, part -> {
+            for (int i : part) {
+                findMatches(trees, matches, nanos, i, limit);
+            }
+            return null;
+        });
+        return matches;
+    }
+
+    private void findMatches(List<Root> trees, List<List<Node[]>> matches, long[] nanos, int i, int limit) {
+        long start = null != nanos ? System.nanoTime() : 0;
+        matches.set(i, query.findMatches(trees.get(i), limit));
+        if (null != nanos) {
+            nanos[i] = System.nanoTime() - start;
+        }
+    }
+
+    private void filterTrees(List<Bundle> bundles, List<Root> trees, List<Boolean> processed, List<List<Node[]>> matches) {
+        boolean keep = ACTION_KEEP.equals(action);
+        Map<Bundle, Boolean> bundleMatches = new IdentityHashMap<>();
+        for (int i = 0; i < trees.size(); i++) {
+            if (processed.get(i)) {
+                bundleMatches.merge(bundles.get(i), !matches.get(i).isEmpty(), Boolean::logicalOr);
+            }
+        }
+
+        for (int i = 0; i < trees.size(); i++) {
+            if (!processed.get(i)) {
+                continue;
+            }
+            Bundle bundle = bundles.get(i);
+            boolean matched = SCOPE_BUNDLE.equals(scope) ? bundleMatches.get(bundle) : !matches.get(i).isEmpty();
+            if (matched != keep) {
+                bundle.getTrees().remove(trees.get(i));
+            }
+        }
+
+        for (Bundle bundle : bundleMatches.keySet()) {
+            if (bundle.getTrees().isEmpty()) {
+                bundle.remove();
+            }
+        }
+    }
+
+    private void filterNodes(Root tree, List<Node[]> matches) {
+        Set<Node> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Node[] match : matches) {
+            targets.add(match[0]);
+        }
+        boolean keep = ACTION_KEEP.equals(action);
+        for (Node node : new ArrayList<>(tree.getDescendants())) {
+            if (targets.contains(node) != keep) {
+                node.remove(EnumSet.of(Node.RemoveArg.REHANG));
+            }
+        }
+    }
+
+    private void mark(Node node) {
+        String misc = node.getMisc();
+        if (null == misc || misc.isEmpty() || UNDERSCORE.equals(misc)) {
+            node.setMisc(markItem);
+        } else if (!Arrays.asList(misc.split("\\|")).contains(markItem)) {
+            node.setMisc(misc + "|" + markItem);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package cz.ufal.udapi.block.util;
+
+import cz.ufal.udapi.core.Block;
+import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.Selector;
+import cz.ufal.udapi.core.index.AttributeIndex;
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds inverted index of form, lemma, upos, deprel and features of all nodes
+ * and saves it into the file given by the file parameter at the end.
+ *
+ * Trees are numbered in the order they are read, so the index built from a CoNLL-U file
+ * can be used by Read::CoNLLU to read only the trees matching a query. Therefore all trees
+ * have to be indexed and the zones, bundles and trees parameters are not supported.
+ *
+ * Example usage:
+ * <code>
+ *     cat corpus.conllu | udapi.groovy Read::CoNLLU Util::Index file=corpus.idx
+ *     cat corpus.conllu | udapi.groovy Read::CoNLLU index=corpus.idx query='lemma=be &amp; deprel=cop' Write::CoNLLU
+ * </code>
+ *
+ * @author Martin Vojtek
+ */
+public class Index extends Block {
+
+    public static final String PARAM_FILE = "file";
+
+    private final AttributeIndex index = new AttributeIndex();
+
+    public Index() {
+        this(new HashMap<>());
+    }
+
+    public Index(Map<String, String> params) {
+        super(params);
+        for (String param : new String[]{Selector.PARAM_ZONES, Selector.PARAM_BUNDLES, Selector.PARAM_TREES}) {
+            if (params.containsKey(param)) {
+                throw new UdapiException("Parameter " + param + " is not supported by Util::Index, all trees have to be indexed.");
+            }
+        }
+    }
+
+    @Override
+    public void processTree(Root tree) {
+        index.add(tree);
+    }
+
+    /**
+     * @return index built so far
+     */
+    public AttributeIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Saves the index if the file parameter is given.
+     */
+    @Override
+    public void processEnd() {
+        if (getParams().containsKey(PARAM_FILE)) {
+            index.save(Paths.get(getParams().get(PARAM_FILE)));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package cz.ufal.udapi.block.util;
+
+import cz.ufal.udapi.core.Block;
+import cz.ufal.udapi.core.Bundle;
+import cz.ufal.udapi.core.Document;
+import cz.ufal.udapi.core.Parallel;
+import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.stats.CorpusStats;
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Computes statistics of the corpus (see CorpusStats) and prints them as JSON at the end.
+ *
+ * Example usage:
+ * cat UD_Czech/cs-ud-dev.conllu | udapi.groovy Read::CoNLLU Util::Stats threads=4 &gt; stats.json
+ *
+ * Parameters:
+ * threads - number of threads processing the bundles in parallel, the number of processors by default
+ *
+ * @author Martin Vojtek
+ */
+public class Stats extends Block {
+
+    public static final String PARAM_THREADS = "threads";
+
+    private final int threads;
+    private final CorpusStats stats = new CorpusStats();
+    private ExecutorService executor;
+
+    public Stats() {
+        this(new HashMap<>());
+    }
+
+    public Stats(Map<String, String> params) {
+        super(params);
+
+        String threadsParam = params.get(PARAM_THREADS);
+        try {
+            threads = null == threadsParam ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threadsParam);
+        } catch (NumberFormatException e) {
+            throw new UdapiException("Invalid format of " + PARAM_THREADS + " parameter: " + threadsParam);
+        }
+    }
+
+    @Override
+    public void processStart() {
+        if (threads > 1) {
+            executor = Parallel.newDaemonPool(threads, "stats");
+        }
+    }
+
+    /**
+     * Each thread computes partial statistics of a part of the trees, the partial results are merged.
+     */
+    @Override
+    public void processDocument(Document document) {
+        List<Bundle> bundles = new ArrayList<>();
+        List<Root> trees = new ArrayList<>();
+        for (Bundle bundle : document.getBundles()) {
+            if (shouldProcessBundle(bundle)) {
+                for (Root tree : bundle.getTrees()) {
+                    if (shouldProcessTree(tree)) {
+                        bundles.add(bundle);
+                        trees.add(tree);
+                    }
+                }
+            }
+        }
+
+        long[] nanos = null != getLatency() ? new long[trees.size()] : null;
+        if (null == executor) {
+            add(stats, trees, 0, trees.size(), nanos);
+        } else {
+            for (CorpusStats partial : Parallel.mapRanges(executor, threads, trees.size(), (start, end) -> {
+                CorpusStats partStats = new CorpusStats();
+                add(partStats, trees, start, end, nanos);
+                return partStats;
+            })) {
+                stats.merge(partial);
+            }
+        }
+        if (null != nanos) {
+            recordTreeLatencies(bundles, nanos);
+        }
+    }
+
+    /**
+     * Adds trees from start to end (exclusive) to the statistics, storing their processing times into nanos unless it is null.
+     */
+    private static void add(CorpusStats stats, List<Root> trees, int start, int end, long[] nanos) {
+        for (int i = start; i < end; i++) {
+            long treeStart = null != nanos ? System.nanoTime() : 0;
+            stats.add(trees.get(i));
+            if (null != nanos) {
+                nanos[i] = System.nanoTime() - treeStart;
+            }
+        }
+    }
+
+    @Override
+    public void processEnd() {
+        if (null != executor) {
+            executor.shutdown();
+        }
+        System.out.println(stats.toJson());
+    }
+
+    /**
+     * @return statistics of the trees processed so far
+     */
+    public CorpusStats getStats() {
+        return stats;
+    }
+}
@@ -1,56 +1,377 @@
 package cz.ufal.udapi.block.write;
 
-import cz.ufal.udapi.core.Block;
+import cz.ufal.udapi.core.Bundle;
 import cz.ufal.udapi.core.Document;
+import cz.ufal.udapi.core.Parallel;
 import cz.ufal.udapi.core.Root;
 import cz.ufal.udapi.core.io.UdapiIOException;
 import cz.ufal.udapi.core.io.impl.CoNLLUWriter;
+import cz.ufal.udapi.core.jfr.DocumentWriteEvent;
+import cz.ufal.udapi.exception.UdapiException;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Serializes internal structure to CoNLLU file.
  *
+ * Parameters:
+ * passthrough - if 1, trees not modified since they were read by Read::CoNLLU passthrough=1
+ *     are copied from the input line by line instead of being serialized
+ * threads - number of threads serializing bundles, the output is the same as with 1 (default)
+ *
+ * Sharding parameters, the output is split into files part-00000.conllu, part-00001.conllu etc.:
+ * dir - directory of the shards, required for sharding
+ * shard_by - round_robin (default) assigns bundles to the shards in turn,
+ *     size assigns each bundle to the shard with the fewest nodes so far,
+ *     newdoc starts a new shard at each tree with # newdoc (parameter shards is ignored)
+ * shards - number of shards for round_robin and size
+ * Each shard has its own buffered file channel, the shards of each document are serialized and written concurrently.
+ *
+ * Example usage:
+ * cat corpus.conllu | udapi.groovy Read::CoNLLU Write::CoNLLU dir=train shards=8 shard_by=size
+ *
  * @author Martin Vojtek
  */
-public class CoNLLU extends Block {
+public class CoNLLU extends cz.ufal.udapi.block.common.Writer {
+
+    public static final String PARAM_PASSTHROUGH = "passthrough";
+    public static final String PARAM_THREADS = "threads";
+    public static final String PARAM_DIR = "dir";
+    public static final String PARAM_SHARDS = "shards";
+    public static final String PARAM_SHARD_BY = "shard_by";
+
+    private static final String SHARD_BY_ROUND_ROBIN = "round_robin";
+    private static final String SHARD_BY_SIZE = "size";
+    private static final String SHARD_BY_NEWDOC = "newdoc";
+
+    private final CoNLLUWriter coNLLUWriter = new CoNLLUWriter();
+
+    /**
+     * How bundles are assigned to shards, null if the output is not sharded.
+     */
+    private final String shardBy;
+    private final int numberOfShards;
+    private final Path dir;
+
+    /**
+     * Open shards (by number), shards finished by newdoc are closed and removed.
+     */
+    private final Map<Integer, java.io.Writer> shards = new TreeMap<>();
+
+    /**
+     * Numbers of nodes written to each shard, used by shard_by=size.
+     */
+    private long[] shardSizes;
+
+    /**
+     * Number of bundles written so far, used by shard_by=round_robin.
+     */
+    private long bundleNumber;
+
+    /**
+     * Shard of the current document, used by shard_by=newdoc.
+     */
+    private int currentShard = -1;
+
+    private ExecutorService shardExecutor;
 
-    private BufferedWriter bufferedWriter;
-    private CoNLLUWriter coNLLUWriter;
+    /**
+     * Maximal number of shards being written at once.
+     */
+    private int shardThreads;
+
+    public CoNLLU() {
+        this(new HashMap<>());
+    }
+
+    public CoNLLU(Map<String, String> params) {
+        super(params);
+        coNLLUWriter.setPassthrough("1".equals(params.get(PARAM_PASSTHROUGH)) || "true".equals(params.get(PARAM_PASSTHROUGH)));
+
+        String threadsParam = params.get(PARAM_THREADS);
+        if (null != threadsParam) {
+            try {
+                coNLLUWriter.setThreads(Integer.parseInt(threadsParam));
+            } catch (NumberFormatException e) {
+                throw new UdapiException("Invalid format of " + PARAM_THREADS + " parameter: " + threadsParam);
+            }
+        }
+
+        String shardsParam = params.get(PARAM_SHARDS);
+        String shardByParam = params.get(PARAM_SHARD_BY);
+        if (null == shardsParam && null == shardByParam) {
+            shardBy = null;
+            numberOfShards = 0;
+            dir = null;
+            return;
+        }
+
+        shardBy = null == shardByParam ? SHARD_BY_ROUND_ROBIN : shardByParam;
+        if (!Arrays.asList(SHARD_BY_ROUND_ROBIN, SHARD_BY_SIZE, SHARD_BY_NEWDOC).contains(shardBy)) {
+            throw new UdapiException("Invalid " + PARAM_SHARD_BY + ": " + shardBy);
+        }
+        if (!params.containsKey(PARAM_DIR)) {
+            throw new UdapiException("Parameter " + PARAM_DIR + " is required for sharding.");
+        }
+        dir = Paths.get(params.get(PARAM_DIR));
+        if (SHARD_BY_NEWDOC.equals(shardBy)) {
+            numberOfShards = 0;
+        } else {
+            if (null == shardsParam) {
+                throw new UdapiException("Parameter " + PARAM_SHARDS + " is required for " + PARAM_SHARD_BY + "=" + shardBy + ".");
+            }
+            try {
+                numberOfShards = Integer.parseInt(shardsParam);
+            } catch (NumberFormatException e) {
+                throw new UdapiException("Invalid format of " + PARAM_SHARDS + " parameter: " + shardsParam);
+            }
+            if (numberOfShards < 1) {
+                throw new UdapiException("Number of shards must be positive: " + numberOfShards);
+            }
+            shardSizes = new long[numberOfShards];
+        }
+    }
 
     @Override
     public void processStart() {
-        bufferedWriter = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
-        coNLLUWriter = new CoNLLUWriter();
+        if (null == shardBy) {
+            return;
+        }
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to create directory '" + dir + "'.", e);
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        shardThreads = 0 == numberOfShards ? processors : Math.min(numberOfShards, processors);
+        shardExecutor = Parallel.newDaemonPool(shardThreads, "conllu-shard-writer");
     }
 
     @Override
     public void processDocument(Document document) {
-        coNLLUWriter.writeDocument(document, new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        DocumentWriteEvent event = new DocumentWriteEvent();
+        event.begin();
+        if (null != shardBy) {
+            writeShards(document);
+        } else {
+            List<Bundle> bundles = document.getBundles();
+            long[] nanos = null != getLatency() ? new long[bundles.size()] : null;
+            try {
+                coNLLUWriter.writeBundles(bundles, this::shouldProcessBundle, this::shouldProcessTree, getOutput(), nanos);
+            } catch (IOException e) {
+                throw new UdapiIOException("Failed to write output.", e);
+            }
+            if (null != nanos) {
+                for (int i = 0; i < bundles.size(); i++) {
+                    if (shouldProcessBundle(bundles.get(i))) {
+                        recordLatency(bundles.get(i), nanos[i]);
+                    }
+                }
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.writer = getClass().getName();
+            event.bundles = document.getBundles().size();
+            event.commit();
+        }
     }
 
-    @Override
-    public void processTree(Root tree) {
-        StringBuilder sb = new StringBuilder();
-        coNLLUWriter.processTree(sb, tree);
+    /**
+     * Assigns the trees of the document to shards and writes each shard by a separate task.
+     * At most shardThreads shards are written at once. With shard_by=newdoc, each finished shard
+     * is closed by its task, so only a bounded number of shards is open.
+     */
+    private void writeShards(Document document) {
+        Map<Integer, List<Root>> shardTrees = new TreeMap<>();
+        Map<Integer, List<Bundle>> shardBundles = new HashMap<>();
+        for (Bundle bundle : document.getBundles()) {
+            if (!shouldProcessBundle(bundle)) {
+                continue;
+            }
+            List<Root> trees = new ArrayList<>();
+            for (Root tree : bundle.getTrees()) {
+                if (shouldProcessTree(tree)) {
+                    trees.add(tree);
+                }
+            }
+            if (!trees.isEmpty()) {
+                int shard = chooseShard(trees);
+                shardTrees.computeIfAbsent(shard, number -> new ArrayList<>()).addAll(trees);
+                List<Bundle> bundles = shardBundles.computeIfAbsent(shard, number -> new ArrayList<>());
+                for (int i = 0; i < trees.size(); i++) {
+                    bundles.add(bundle);
+                }
+            }
+        }
+
+        Deque<Future<?>> pending = new ArrayDeque<>();
+        //serialization times of the trees of each shard
+        Map<Integer, long[]> shardNanos = new HashMap<>();
+        for (Map.Entry<Integer, List<Root>> entry : shardTrees.entrySet()) {
+            int number = entry.getKey();
+            java.io.Writer shard = openShard(number);
+            //documents before the current one are complete
+            boolean finished = SHARD_BY_NEWDOC.equals(shardBy) && number != currentShard;
+            if (finished) {
+                shards.remove(number);
+            }
+            List<Root> trees = entry.getValue();
+            long[] nanos = null != getLatency() ? new long[trees.size()] : null;
+            if (null != nanos) {
+                shardNanos.put(number, nanos);
+            }
+            pending.add(shardExecutor.submit(() -> {
+                try {
+                    StringBuilder sb = new StringBuilder();
+                    for (int i = 0; i < trees.size(); i++) {
+                        long start = null != nanos ? System.nanoTime() : 0;
+                        coNLLUWriter.processTree(sb, trees.get(i));
+                        if (null != nanos) {
+                            nanos[i] = System.nanoTime() - start;
+                        }
+                        if (sb.length() > BUFFER) {
+                            shard.append(sb);
+                            sb.setLength(0);
+                        }
+                    }
+                    shard.append(sb);
+                    shard.flush();
+                } finally {
+                    if (finished) {
+                        shard.close();
+                    }
+                }
+                return null;
+            }));
+            if (pending.size() > shardThreads) {
+                waitFor(pending.poll());
+            }
+        }
+        while (!pending.isEmpty()) {
+            waitFor(pending.poll());
+        }
+        for (Map.Entry<Integer, long[]> entry : shardNanos.entrySet()) {
+            recordTreeLatencies(shardBundles.get(entry.getKey()), entry.getValue());
+        }
+
+        if (SHARD_BY_NEWDOC.equals(shardBy)) {
+            //the shard of the previous document if the current one started at the beginning of this document
+            List<Integer> finished = new ArrayList<>();
+            for (Integer shard : shards.keySet()) {
+                if (shard != currentShard) {
+                    finished.add(shard);
+                }
+            }
+            for (Integer shard : finished) {
+                closeShard(shard);
+            }
+        }
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UdapiIOException("Interrupted while writing shards.", e);
+        } catch (ExecutionException e) {
+            throw new UdapiIOException("Failed to write shards.", e.getCause());
+        }
+    }
+
+    /**
+     * @param trees selected trees of a bundle, not empty
+     * @return number of the shard of the bundle
+     */
+    private int chooseShard(List<Root> trees) {
+        if (SHARD_BY_ROUND_ROBIN.equals(shardBy)) {
+            return (int) (bundleNumber++ % numberOfShards);
+        }
+
+        if (SHARD_BY_SIZE.equals(shardBy)) {
+            int smallest = 0;
+            for (int shard = 1; shard < numberOfShards; shard++) {
+                if (shardSizes[shard] < shardSizes[smallest]) {
+                    smallest = shard;
+                }
+            }
+            for (Root tree : trees) {
+                shardSizes[smallest] += tree.getDescendants().size();
+            }
+            return smallest;
+        }
+
+        boolean newDoc = false;
+        for (Root tree : trees) {
+            newDoc |= tree.isNewDoc();
+        }
+        if (-1 == currentShard || newDoc) {
+            currentShard++;
+        }
+        return currentShard;
+    }
+
+    private java.io.Writer openShard(int shard) {
+        java.io.Writer writer = shards.get(shard);
+        if (null == writer) {
+            Path path = dir.resolve(String.format(Locale.ROOT, "part-%05d.conllu", shard));
+            try {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER), BUFFER);
+            } catch (IOException e) {
+                throw new UdapiIOException("Failed to open shard '" + path + "'.", e);
+            }
+            shards.put(shard, writer);
+        }
+        return writer;
+    }
+
+    private void closeShard(int shard) {
         try {
-            bufferedWriter.write(sb.toString());
+            shards.remove(shard).close();
         } catch (IOException e) {
-            throw new UdapiIOException("Failed to write tree " + tree.getId(), e);
+            throw new UdapiIOException("Failed to close shard " + shard + ".", e);
         }
     }
 
     @Override
     public void processEnd() {
-        if (null != bufferedWriter) {
-            try {
-                bufferedWriter.close();
-            } catch (IOException e) {
-                throw new UdapiIOException("Failed to close writer.", e);
+        coNLLUWriter.shutdown();
+        if (null != shardExecutor) {
+            shardExecutor.shutdown();
+            for (Integer shard : new ArrayList<>(shards.keySet())) {
+                closeShard(shard);
             }
         }
+        super.processEnd();
+    }
+
+    @Override
+    public void processTree(Root tree) {
+        StringBuilder sb = new StringBuilder();
+        coNLLUWriter.processTree(sb, tree);
+        write(sb);
     }
 }
@@ -1,20 +1,28 @@
 package cz.ufal.udapi.block.write;
 
-import cz.ufal.udapi.core.Block;
+import cz.ufal.udapi.core.Document;
+import cz.ufal.udapi.core.MultiwordToken;
+import cz.ufal.udapi.core.Node;
 import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.io.Column;
 import cz.ufal.udapi.exception.UdapiException;
 
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Optional;
+import java.util.Set;
 
 /**
  * Serializes internal structure into sentances.
  *
+ * Sentences are collected in a reusable buffer which is written to the output
+ * (standard output or the file given by the file parameter) whenever it exceeds the buffer size.
+ *
  * @author Martin Vojtek
  */
-public class Sentences extends Block {
+public class Sentences extends cz.ufal.udapi.block.common.Writer {
 
     public static final String IF_MISSING = "if_missing";
 
@@ -24,19 +32,26 @@ public class Sentences extends Block {
 
     public static final String FATAL = "fatal";
 
-    private final PrintStream ps;
+    private static final String SPACE_AFTER_NO = "SpaceAfter=No";
+
+    private static final char PIPE = '|';
+
+    private final StringBuilder sb = new StringBuilder(BUFFER + BUFFER / 4);
+
+    public Sentences() {
+        this(new HashMap<>());
+    }
 
     public Sentences(Map<String, String> params) {
         super(params);
         if (!params.containsKey(IF_MISSING)) {
             params.put(IF_MISSING, DETOKENIZE);
         }
+    }
 
-        try {
-            ps = new PrintStream(System.out, true, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new UdapiException(e);
-        }
+    @Override
+    public Set<Column> getRequiredColumns() {
+        return EnumSet.of(Column.FORM, Column.MISC);
     }
 
     @Override
@@ -47,8 +62,10 @@ public class Sentences extends Block {
             if (getParams().containsKey(IF_MISSING)) {
                 String ifMissing = getParams().get(IF_MISSING);
                 if (DETOKENIZE.equals(ifMissing)) {
-                    // TODO SpaceAfter=No
-                    sentence = tree.getDescendants().stream().map(node -> node.getForm()).collect(Collectors.joining(" "));
+                    detokenize(tree);
+                    sb.append('\n');
+                    flushBufferIfFull();
+                    return;
                 } else if (EMPTY.equals(ifMissing)) {
                     sentence = "";
                 } else {
@@ -61,7 +78,85 @@ public class Sentences extends Block {
             }
         }
 
-        ps.println(sentence);
+        sb.append(sentence).append('\n');
+        flushBufferIfFull();
+    }
+
+    /**
+     * Appends the surface text of the tree to the buffer.
+     * Multiword tokens are written with their surface form and SpaceAfter=No from MISC is honoured.
+     */
+    private void detokenize(Root tree) {
+        boolean spaceBefore = false;
+        int lastMwtOrd = 0;
+        for (Node node : tree.getDescendants()) {
+            if (node.getOrd() <= lastMwtOrd) {
+                //covered by the multiword token
+                continue;
+            }
+
+            String form;
+            String misc;
+            Optional<MultiwordToken> mwt = node.getMwt();
+            if (mwt.isPresent()) {
+                List<Node> words = mwt.get().getWords();
+                lastMwtOrd = words.get(words.size() - 1).getOrd();
+                form = mwt.get().getForm();
+                misc = null != mwt.get().getMisc() ? mwt.get().getMisc().toStringFormat() : null;
+            } else {
+                form = node.getForm();
+                misc = node.getMisc();
+            }
+
+            if (spaceBefore) {
+                sb.append(' ');
+            }
+            sb.append(form);
+            spaceBefore = !hasNoSpaceAfter(misc);
+        }
     }
 
+    /**
+     * @param misc MISC column
+     * @return true if MISC contains SpaceAfter=No item
+     */
+    private static boolean hasNoSpaceAfter(String misc) {
+        if (null == misc) {
+            return false;
+        }
+        int from = misc.indexOf(SPACE_AFTER_NO);
+        while (-1 != from) {
+            int to = from + SPACE_AFTER_NO.length();
+            if ((0 == from || PIPE == misc.charAt(from - 1)) && (misc.length() == to || PIPE == misc.charAt(to))) {
+                return true;
+            }
+            from = misc.indexOf(SPACE_AFTER_NO, to);
+        }
+        return false;
+    }
+
+    @Override
+    public void afterProcessDocument(Document document) {
+        flushBuffer();
+        super.afterProcessDocument(document);
+    }
+
+    @Override
+    public void processEnd() {
+        flushBuffer();
+        super.processEnd();
+    }
+
+    private void flushBufferIfFull() {
+        if (sb.length() > BUFFER) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() {
+        if (sb.length() > 0) {
+            write(sb);
+            sb.setLength(0);
+        }
+    }
 }
@@ -1,20 +1,24 @@
 package cz.ufal.udapi.block.write;
 
-import cz.ufal.udapi.core.Block;
+import cz.ufal.udapi.core.Bundle;
+import cz.ufal.udapi.core.Document;
 import cz.ufal.udapi.core.Root;
-import cz.ufal.udapi.exception.UdapiException;
 
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Serializes internal structure into user friendly text format.
  *
+ * Rendering is linear in the size of the output. With parallel=1, trees are rendered
+ * in parallel and written in the original order.
+ *
  * @author Martin Vojtek
  */
-public class TextModeTrees extends Block {
+public class TextModeTrees extends cz.ufal.udapi.block.common.Writer {
+
+    public static final String PARAM_PARALLEL = "parallel";
 
     private static final String H = "\u2500"; // ─
     private static final String V = "\u2502"; // │
@@ -28,9 +32,14 @@ public class TextModeTrees extends Block {
     private static final String HT = "\u2534"; // ┴
     private static final String HV = "\u253C"; // ┼
 
-    private final PrintStream ps;
+    private static final char H_CHAR = '\u2500';
+    private static final char RB_CHAR = '\u250C';
+    private static final char RT_CHAR = '\u2514';
+    private static final char RV_CHAR = '\u251C';
+
+    private static final int PARALLEL_CHUNK = 1024;
 
-    private static final Pattern replacePattern = Pattern.compile(".*[" + H + "|" + RT + "|" + RB + "|" + RV + "]$");
+    private final boolean parallel;
 
     private static final int Hi = 0;
     private static final int Vi = 1;
@@ -51,11 +60,7 @@ public class TextModeTrees extends Block {
     public TextModeTrees(Map<String, String> params) {
         super(params);
 
-        try {
-            ps = new PrintStream(System.out, true, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new UdapiException(e);
-        }
+        parallel = "1".equals(params.get(PARAM_PARALLEL)) || "true".equals(params.get(PARAM_PARALLEL));
 
         if (indent > 0) {
             int[] lineSigns = {Hi, LTi, LBi, LVi, HBi, HTi, HVi};
@@ -83,208 +88,282 @@ public class TextModeTrees extends Block {
     }
 
     @Override
-    public void processTree(Root xtree) {
+    public void processDocument(Document document) {
+        if (!parallel) {
+            super.processDocument(document);
+            return;
+        }
+
+        //render chunks of trees in parallel, but write them in the original order
+        List<Bundle> bundles = new ArrayList<>();
+        List<Root> trees = new ArrayList<>();
+        for (Bundle bundle : document.getBundles()) {
+            if (shouldProcessBundle(bundle)) {
+                for (Root tree : bundle.getTrees()) {
+                    if (shouldProcessTree(tree)) {
+                        bundles.add(bundle);
+                        trees.add(tree);
+                    }
+                    if (trees.size() == PARALLEL_CHUNK) {
+                        writeInParallel(bundles, trees);
+                        bundles.clear();
+                        trees.clear();
+                    }
+                }
+            }
+        }
+        writeInParallel(bundles, trees);
+    }
 
-        Map<Integer, Node> tree = new HashMap<>();
+    private void writeInParallel(List<Bundle> bundles, List<Root> trees) {
+        long[] nanos = null != getLatency() ? new long[trees.size()] : null;
+        List<String> rendered = IntStream.range(0, trees.size()).parallel().mapToObj(i -> {
+            long start = null != nanos ? System.nanoTime() : 0;
+            String tree = render(trees.get(i));
+            if (null != nanos) {
+                nanos[i] = System.nanoTime() - start;
+            }
+            return tree;
+        }).collect(Collectors.toList());
+        for (String tree : rendered) {
+            write(tree);
+        }
+        if (null != nanos) {
+            recordTreeLatencies(bundles, nanos);
+        }
+    }
 
-        Node rootNode = new Node();
-        rootNode.index = 0;
-        rootNode.leftmost = 0;
-        rootNode.rightmost = 0;
-        rootNode.xNode = null;
-        rootNode.parent = 0;
-        rootNode.sons = new ArrayList<>();
-        rootNode.printed = false;
-        rootNode.depth = 0;
-        tree.put(0, rootNode);
+    @Override
+    public void processTree(Root tree) {
+        write(render(tree));
+    }
 
-        Deque<Node> stack = new ArrayDeque<>();
-        stack.push(rootNode);
+    /**
+     * Renders the tree. All nodes are indexed by their ord.
+     *
+     * @param xtree tree to render
+     * @return rendered tree, each line (including the last one) is terminated by a new line
+     */
+    private String render(Root xtree) {
+
+        List<cz.ufal.udapi.core.Node> descendants = xtree.getDescendants();
+        int size = descendants.size() + 1;
+
+        cz.ufal.udapi.core.Node[] xNodes = new cz.ufal.udapi.core.Node[size];
+        StringBuilder[] print = new StringBuilder[size];
+        int[] parent = new int[size];
+        int[] depth = new int[size];
+        //leftmost and rightmost of the node and its children
+        int[] leftmost = new int[size];
+        int[] rightmost = new int[size];
+        boolean[] printed = new boolean[size];
+
+        for (int i = 0; i < size; i++) {
+            print[i] = new StringBuilder();
+            leftmost[i] = i;
+            rightmost[i] = i;
+        }
 
-        for (cz.ufal.udapi.core.Node descendant : xtree.getDescendants()) {
+        for (cz.ufal.udapi.core.Node descendant : descendants) {
             int index = descendant.getOrd();
-            Node newNode = new Node();
-            newNode.index = index;
-            newNode.leftmost = index;
-            newNode.rightmost = index;
-            newNode.xNode = descendant;
-            newNode.parent = descendant.getParent().get().getOrd();
-            newNode.sons = new ArrayList<>();
-            newNode.printed = false;
-            newNode.depth = 0;
-            tree.put(index, newNode);
+            xNodes[index] = descendant;
+            parent[index] = descendant.getParent().get().getOrd();
         }
 
-        //fill sons
-        for (int i = 1; i < tree.size(); i++) {
-            Node son = tree.get(i);
-            Node parent = tree.get(son.parent);
-            parent.sons.add(son);
+        for (int i = 1; i < size; i++) {
+            leftmost[parent[i]] = Math.min(leftmost[parent[i]], i);
+            rightmost[parent[i]] = Math.max(rightmost[parent[i]], i);
         }
 
-        fillLeftRightMost(rootNode);
+        int[] gaps = computeGaps(parent, size);
+
+        //nodes with less gaps (i.e. more projective subtrees) are processed first to minimize crossing of edges,
+        //the most recently pushed node wins in case of a tie
+        int[] pushOrder = new int[size];
+        int[] pushCounter = {0};
+        PriorityQueue<Integer> heap = new PriorityQueue<>(Math.max(1, size), (a, b) -> {
+            if (gaps[a] != gaps[b]) {
+                return Integer.compare(gaps[a], gaps[b]);
+            }
+            return Integer.compare(pushOrder[b], pushOrder[a]);
+        });
+        pushOrder[0] = pushCounter[0]++;
+        heap.add(0);
 
         //precompute lines for printing
-        while (!stack.isEmpty()) {
-            Node node = stack.pop();
+        while (!heap.isEmpty()) {
+            int node = heap.poll();
             boolean top = false;
             boolean bottom = false;
             String append;
 
-            int minSonOrSelf = node.index;
-            int maxSonOrSelf = node.index;
-            if (!node.sons.isEmpty()) {
-                minSonOrSelf = Math.min(node.index, node.sons.get(0).index);
-                maxSonOrSelf = Math.max(node.index, node.sons.get(node.sons.size() - 1).index);
-            }
-            int fillLen = tree.get(minSonOrSelf).depth;
+            int minSonOrSelf = leftmost[node];
+            int maxSonOrSelf = rightmost[node];
+
+            int fillLen = depth[minSonOrSelf];
             for (int i = minSonOrSelf; i < maxSonOrSelf + 1; i++) {
-                int depth = tree.get(i).depth;
-                if (depth > fillLen) {
-                    fillLen = depth;
+                if (depth[i] > fillLen) {
+                    fillLen = depth[i];
                 }
             }
 
             for (int i = minSonOrSelf; i < maxSonOrSelf + 1; i++) {
-                append = " ";
-
-                if (replacePattern.matcher(tree.get(i).print.toString()).matches()) {
-                    append = H;
+                StringBuilder line = print[i];
+                char fill = ' ';
+                if (line.length() > 0 && isHorizontalEnd(line.charAt(line.length() - 1))) {
+                    fill = H_CHAR;
                 }
-
-                int times = (fillLen - tree.get(i).print.length());
-                for (int j = 0; j < times; j++) {
-                    tree.get(i).print.append(append);
+                for (int j = line.length(); j < fillLen; j++) {
+                    line.append(fill);
                 }
             }
-            node.printed = true;
+            printed[node] = true;
 
             // printing from leftmost son       SYMETRIC
             append = " ";
 
-            for (int i = minSonOrSelf; i < node.index; i++) {
+            for (int i = minSonOrSelf; i < node; i++) {
                 if (top) {
                     append = signs[Vi];
                 }
 
-                if (tree.get(i).parent == node.index) {
+                if (parent[i] == node) {
                     append = signs[RBi];
                     if (top) {
                         append = signs[RVi];
                     }
                     top = true;
 
-                    if (tree.get(i).leftmost == tree.get(i).rightmost) {
-                        append += signs[Hi] + nodeToString(tree.get(i).xNode);
-                        tree.get(i).printed = true;
+                    if (leftmost[i] == rightmost[i]) {
+                        print[i].append(append).append(signs[Hi]);
+                        appendNode(print[i], xNodes[i]);
+                        printed[i] = true;
+                        depth[i] = print[i].length();
+                        continue;
                     }
 
-                    if (!tree.get(i).printed) {
-                        stack.push(tree.get(i));
+                    if (!printed[i]) {
+                        pushOrder[i] = pushCounter[0]++;
+                        heap.add(i);
                     }
                 }
-                tree.get(i).print.append(append);
-                tree.get(i).depth = tree.get(i).print.length();
+                print[i].append(append);
+                depth[i] = print[i].length();
             }
 
 
             // printing from rightmost son       SYMETRIC
             append = " ";
 
-            for (int i = maxSonOrSelf; i > node.index; i--) {
+            for (int i = maxSonOrSelf; i > node; i--) {
                 if (bottom) {
                     append = signs[Vi];
                 }
-                if (tree.get(i).parent == node.index) {
+                if (parent[i] == node) {
                     append = signs[RTi];
                     if (bottom) {
                         append = signs[RVi];
                     }
                     bottom = true;
-                    if (tree.get(i).leftmost == tree.get(i).rightmost) {
-                        append += signs[Hi] + nodeToString(tree.get(i).xNode);
-                        tree.get(i).printed = true;
+                    if (leftmost[i] == rightmost[i]) {
+                        print[i].append(append).append(signs[Hi]);
+                        appendNode(print[i], xNodes[i]);
+                        printed[i] = true;
+                        depth[i] = print[i].length();
+                        continue;
                     }
-                    if (!tree.get(i).printed) {
-                        stack.push(tree.get(i));
+                    if (!printed[i]) {
+                        pushOrder[i] = pushCounter[0]++;
+                        heap.add(i);
                     }
                 }
-                tree.get(i).print.append(append);
-                tree.get(i).depth = tree.get(i).print.length();
+                print[i].append(append);
+                depth[i] = print[i].length();
             }
 
             // printing node
-            node.print.append((bottom ? (top ? signs[LVi] : signs[LBi]) : (top ? signs[LTi] : signs[Hi])) + nodeToString(node.xNode));
-            node.depth = node.print.length();
-
-            // sorting stack to minimize crossing of edges
-            Node[] stackNodes = stack.toArray(new Node[0]);
-
-            Arrays.sort(stackNodes, (Node a, Node b) -> {
-                if (a.index == b.index) {
-                    return 0;
-                }
+            print[node].append(bottom ? (top ? signs[LVi] : signs[LBi]) : (top ? signs[LTi] : signs[Hi]));
+            appendNode(print[node], xNodes[node]);
+            depth[node] = print[node].length();
+        }
 
-                if ((a.index < b.index && a.rightmost < b.index) ||
-                        a.index > b.index && a.leftmost < b.index) {
-                    return -1;
-                }
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            length += print[i].length() + 1;
+        }
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < size; i++) {
+            result.append(print[i]).append('\n');
+        }
+        return result.toString();
+    }
 
-                return 0;
-            });
+    /**
+     * Computes for each node the number of nodes inside the span of its subtree which do not belong to the subtree.
+     */
+    private int[] computeGaps(int[] parent, int size) {
+        int[] subtreeSize = new int[size];
+        int[] subtreeMin = new int[size];
+        int[] subtreeMax = new int[size];
+        int[] childCount = new int[size];
+        for (int i = 0; i < size; i++) {
+            subtreeSize[i] = 1;
+            subtreeMin[i] = i;
+            subtreeMax[i] = i;
+        }
+        for (int i = 1; i < size; i++) {
+            childCount[parent[i]]++;
+        }
 
-            stack.clear();
-            stack.addAll(Arrays.asList(stackNodes)); //TODO: convert to heap !!!
+        //propagate from leaves up (Kahn's order), so that each node is finished before its parent
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        for (int i = 1; i < size; i++) {
+            if (0 == childCount[i]) {
+                queue[tail++] = i;
+            }
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            int p = parent[node];
+            subtreeSize[p] += subtreeSize[node];
+            subtreeMin[p] = Math.min(subtreeMin[p], subtreeMin[node]);
+            subtreeMax[p] = Math.max(subtreeMax[p], subtreeMax[node]);
+            if (0 != p && 0 == --childCount[p]) {
+                queue[tail++] = p;
+            }
         }
 
-        for (int i = 0; i < tree.size(); i++) {
-            ps.println(tree.get(i).print.toString());
+        int[] gaps = new int[size];
+        for (int i = 0; i < size; i++) {
+            gaps[i] = subtreeMax[i] - subtreeMin[i] + 1 - subtreeSize[i];
         }
+        return gaps;
     }
 
-    private void fillLeftRightMost(Node rootNode) {
-        if (!rootNode.sons.isEmpty()) {
-            for (Node son : rootNode.sons) {
-                fillLeftRightMost(son);
-                rootNode.leftmost = Math.min(rootNode.leftmost, son.index);
-                rootNode.rightmost = Math.max(rootNode.rightmost, son.index);
-            }
-        }
+    private static boolean isHorizontalEnd(char c) {
+        return c == H_CHAR || c == RT_CHAR || c == RB_CHAR || c == RV_CHAR || c == '|';
     }
 
-    private String nodeToString(cz.ufal.udapi.core.Node node) {
+    private void appendNode(StringBuilder sb, cz.ufal.udapi.core.Node node) {
 
         if (null == node) {
-            return ""; //for roots
+            return; //for roots
         }
 
-        String str = node.getForm();
-        if (null == str) {
-            str = "";
+        if (null != node.getForm()) {
+            sb.append(node.getForm());
         }
         if (node.getUpos() != null || node.getDeprel() != null) {
-            str += "(";
+            sb.append('(');
             if (null != node.getUpos()) {
-                str += node.getUpos();
+                sb.append(node.getUpos());
             }
             if (null != node.getDeprel()) {
-                str += "/" + node.getDeprel();
+                sb.append('/').append(node.getDeprel());
             }
-            str += ")";
+            sb.append(')');
         }
-
-        return str;
-    }
-
-    private static class Node {
-        StringBuilder print = new StringBuilder();
-        int index;
-        int parent;
-        List<Node> sons;
-        boolean printed;
-        int depth;
-        int leftmost;
-        int rightmost;
-        cz.ufal.udapi.core.Node xNode;
     }
 }
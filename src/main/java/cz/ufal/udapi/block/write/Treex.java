@@ -1,10 +1,8 @@
 package cz.ufal.udapi.block.write;
 
 import cz.ufal.udapi.core.*;
-import cz.ufal.udapi.exception.UdapiException;
 
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -12,123 +10,174 @@ import java.util.Map;
  * Serializes internal structure into format used by TrEd tool.
  * <a href="https://ufal.mff.cuni.cz/tred/">TrED</a>
  *
+ * XML is escaped and emitted into a reusable buffer, which is flushed to the output
+ * whenever it exceeds the buffer size, so the memory used does not depend on the document size.
+ * The output is the standard output or the file given by the file parameter.
+ *
  * @author Martin Vojtek
  */
-public class Treex extends Block {
+public class Treex extends cz.ufal.udapi.block.common.Writer {
+
+    private static final String SPACES = "                                                                ";
+    private static final int TREE_INDENT = 12;
 
-    private final PrintStream ps;
+    /**
+     * Reusable buffer of the serialized XML.
+     */
+    private final StringBuilder sb = new StringBuilder(BUFFER + BUFFER / 4);
 
-    private static final String SPACES_8 = "        ";
-    private static final String SPACES_12 = "            ";
+    public Treex() {
+        this(new HashMap<>());
+    }
 
     public Treex(Map<String, String> params) {
         super(params);
-
-        try {
-            ps = new PrintStream(System.out, true, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new UdapiException(e);
-        }
     }
 
     @Override
     public void beforeProcessDocument(Document document) {
-        ps.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
                 "<treex_document xmlns=\"http://ufal.mff.cuni.cz/pdt/pml/\">\n" +
                 "  <head>\n" +
                 "    <schema href=\"treex_schema.xml\" />\n" +
                 "  </head>\n" +
                 "  <meta/>\n" +
-                "  <bundles>");
+                "  <bundles>\n");
     }
 
     @Override
     public void afterProcessDocument(Document document) {
-        ps.println("  </bundles>\n" +
-                "</treex_document>");
+        sb.append("  </bundles>\n" +
+                "</treex_document>\n");
+        flushBuffer();
+        super.afterProcessDocument(document);
     }
 
     @Override
     public void beforeProcessBundle(Bundle bundle) {
-        ps.println("    <LM id=\"s" + bundle.getNumber() + "\">\n" +
-                "      <zones>");
+        sb.append("    <LM id=\"s").append(bundle.getNumber()).append("\">\n" +
+                "      <zones>\n");
     }
 
     @Override
     public void afterProcessBundle(Bundle bundle) {
-        ps.println("      </zones>\n    </LM>");
+        sb.append("      </zones>\n    </LM>\n");
+        flushBufferIfFull();
     }
 
     @Override
     public void processTree(Root tree) {
-        StringBuilder rootId = new StringBuilder("a-");
-        rootId.append(tree.getBundle().getNumber());
+        int bundleNumber = tree.getBundle().getNumber();
         String sentence = tree.getSentence();
         String language = "und"; //TODO: selector
-        StringBuilder treeId = new StringBuilder("s");
-        treeId.append(tree.getBundle().getNumber()).append("-").append(language);
-        String in = SPACES_8;
-        StringBuilder say = new StringBuilder(in);
-        say.append("<zone language='").append(language).append("'>\n");
 
+        indent(8).append("<zone language='").append(language).append("'>\n");
         if (null != sentence) {
-            say.append(in).append("  <sentence>").append(sentence).append("</sentence>\n");
+            indent(8).append("  <sentence>");
+            escape(sentence);
+            sb.append("</sentence>\n");
         }
-        say.append(in).append("  <trees>\n").append(in).append("    <a_tree id='").append(treeId).append("'>");
+        indent(8).append("  <trees>\n");
+        indent(8).append("    <a_tree id='s").append(bundleNumber).append('-').append(language).append("'>\n");
 
-        ps.println(say.toString());
-        printSubTree(true, tree.getNode(), treeId, SPACES_12);
+        appendSubTree(true, tree.getNode(), bundleNumber, language, TREE_INDENT);
 
-        StringBuilder postTree = new StringBuilder(in);
-        postTree.append("    </a_tree>\n").append(in).append("  </trees>\n").append(in).append("</zone>");
-        ps.println(postTree.toString());
+        indent(8).append("    </a_tree>\n");
+        indent(8).append("  </trees>\n");
+        indent(8).append("</zone>\n");
     }
 
-    public void printSubTree(boolean isRoot, Node node, StringBuilder treeId, String indent) {
+    private void appendSubTree(boolean isRoot, Node node, int bundleNumber, String language, int indent) {
         if (!isRoot) {
-            StringBuilder toPrint = new StringBuilder(indent);
-            toPrint.append("<LM id='").append(treeId).append("-n").append(node.getOrd()).append("'>");
-            ps.println(toPrint.toString());
+            indent(indent).append("<LM id='s").append(bundleNumber).append('-').append(language)
+                    .append("-n").append(node.getOrd()).append("'>\n");
         }
 
-        StringBuilder in = new StringBuilder(indent);
-        in.append("  ");
-        StringBuilder toPrint = new StringBuilder(in);
-        toPrint.append("<ord>").append(node.getOrd()).append("</ord>\n");
+        int in = indent + 2;
+        indent(in).append("<ord>").append(node.getOrd()).append("</ord>\n");
 
-        if (null != node.getForm()) {
-            toPrint.append(in).append("<form>").append(node.getForm()).append("</form>\n");
-        }
-        if (null != node.getLemma()) {
-            toPrint.append(in).append("<lemma>").append(node.getLemma()).append("</lemma>\n");
-        }
-        if (null != node.getUpos()) {
-            toPrint.append(in).append("<tag>").append(node.getUpos()).append("</tag>\n");
-        }
-        if (null != node.getDeprel()) {
-            toPrint.append(in).append("<deprel>").append(node.getDeprel()).append("</deprel>\n");
-        }
+        appendElement(in, "form", node.getForm());
+        appendElement(in, "lemma", node.getLemma());
+        appendElement(in, "tag", node.getUpos());
+        appendElement(in, "deprel", node.getDeprel());
 
         if (!isRoot) {
-            toPrint.append(in).append("<conll><pos>");
-            toPrint.append(null != node.getXpos() ? node.getXpos() : "");
-            toPrint.append("</pos><feat>");
-            toPrint.append(null != node.getFeats() ? node.getFeats() : "");
-            toPrint.append("</feat></conll>\n");
+            indent(in).append("<conll><pos>");
+            if (null != node.getXpos()) {
+                escape(node.getXpos());
+            }
+            sb.append("</pos><feat>");
+            if (null != node.getFeats()) {
+                escape(node.getFeats());
+            }
+            sb.append("</feat></conll>\n");
         }
 
-        ps.print(toPrint.toString());
-
         List<Node> children = node.getChildren();
         if (!children.isEmpty()) {
-            ps.println(in + "<children>");
+            indent(in).append("<children>\n");
             for (Node child : children) {
-                printSubTree(false, child, treeId, in.toString() + "  ");
+                appendSubTree(false, child, bundleNumber, language, in + 2);
             }
-            ps.println(in + "</children>");
+            indent(in).append("</children>\n");
         }
         if (!isRoot) {
-            ps.println(indent + "</LM>");
+            indent(indent).append("</LM>\n");
         }
+        flushBufferIfFull();
+    }
+
+    private void appendElement(int indent, String name, String value) {
+        if (null != value) {
+            indent(indent).append('<').append(name).append('>');
+            escape(value);
+            sb.append("</").append(name).append(">\n");
+        }
+    }
+
+    private StringBuilder indent(int spaces) {
+        while (spaces > SPACES.length()) {
+            sb.append(SPACES);
+            spaces -= SPACES.length();
+        }
+        return sb.append(SPACES, 0, spaces);
+    }
+
+    /**
+     * Appends value escaped for XML element content to the buffer.
+     */
+    private void escape(String value) {
+        int length = value.length();
+        int last = 0;
+        for (int i = 0; i < length; i++) {
+            String replacement;
+            switch (value.charAt(i)) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                default:
+                    continue;
+            }
+            sb.append(value, last, i).append(replacement);
+            last = i + 1;
+        }
+        sb.append(value, last, length);
+    }
+
+    private void flushBufferIfFull() {
+        if (sb.length() > BUFFER) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() {
+        write(sb);
+        sb.setLength(0);
     }
 }
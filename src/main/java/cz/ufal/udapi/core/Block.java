@@ -1,8 +1,18 @@
 package cz.ufal.udapi.core;
 
+import cz.ufal.udapi.core.io.Column;
+import cz.ufal.udapi.core.io.UdapiIOException;
+import cz.ufal.udapi.core.jfr.BundleProcessingEvent;
+
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * Block represents reader, writer or some transformation.
@@ -18,6 +28,21 @@ public class Block {
      */
     private final Map<String, String> params;
 
+    /**
+     * Selector of processed bundles and trees, null if everything is processed.
+     */
+    private final Selector selector;
+
+    /**
+     * Latencies of processed bundles, null if they are not measured.
+     */
+    private BundleLatency latency;
+
+    /**
+     * Checksum of the class file, computed by getVersion on first use.
+     */
+    private String classVersion;
+
     /**
      * Default constructor.
      */
@@ -27,11 +52,13 @@ public class Block {
 
     /**
      * Constructor with parameters.
+     * Selector parameters (zones, bundles and trees, see Selector) are accepted by every block.
      *
      * @param params parameters of the block
      */
     public Block(Map<String, String> params) {
         this.params = params;
+        this.selector = Selector.of(params);
     }
 
     /**
@@ -54,6 +81,147 @@ public class Block {
     public void processEnd() {
     }
 
+    /**
+     * Tells whether the block has processed all its input.
+     * Readers return false while there is input left for next documents,
+     * so that the scenario is applied repeatedly until all blocks are finished.
+     *
+     * @return true if the block does not need another document
+     */
+    public boolean isFinished() {
+        return true;
+    }
+
+    /**
+     * Tells whether the block is deterministic and bundle-local, i.e. the result of processing a bundle
+     * depends only on the bundle and the parameters of the block, the block does not keep any state
+     * between bundles and it does not override processDocument.
+     * Results of such blocks can be cached (see Run.setCache). Cache keys include getVersion(),
+     * so cached results are not reused after the code of the block changes.
+     *
+     * @return true if the block is deterministic and bundle-local, false by default
+     */
+    public boolean isDeterministic() {
+        return false;
+    }
+
+    /**
+     * Version of the block used in cache keys.
+     * By default it is a checksum of the class file of the block, blocks depending on other classes
+     * (or resources) should override it to change whenever their results may change.
+     *
+     * @return version of the block
+     */
+    public String getVersion() {
+        if (null != classVersion) {
+            return classVersion;
+        }
+        String name = getClass().getName();
+        String resource = name.substring(name.lastIndexOf('.') + 1) + ".class";
+        try (InputStream in = getClass().getResourceAsStream(resource)) {
+            if (null == in) {
+                classVersion = "";
+                return classVersion;
+            }
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+            classVersion = Long.toHexString(crc.getValue());
+            return classVersion;
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to read class file of block " + getClass().getName() + ".", e);
+        }
+    }
+
+    /**
+     * Tells whether the block can be fused with adjacent fusable blocks, so that all of them
+     * are applied in a single traversal of each tree (see Pipeline.Builder.fuse).
+     * Such block overrides only processNode (and possibly processStart and processEnd),
+     * processNode reads and modifies only attributes of the given node and the block does not keep any state
+     * between nodes. processNode may change the structure of the tree (e.g. remove or shift nodes),
+     * the tree is then processed by the blocks one after another.
+     *
+     * @return true if the block is fusable, false by default
+     */
+    public boolean isFusable() {
+        return false;
+    }
+
+    /**
+     * Declares CoNLLU columns read by the block, so that readers before it in the pipeline may parse only them
+     * (see Pipeline.start). Other columns are still available, but they are parsed on first access.
+     *
+     * @return columns read by the block, all columns by default
+     */
+    public Set<Column> getRequiredColumns() {
+        return EnumSet.allOf(Column.class);
+    }
+
+    /**
+     * Called by Pipeline before processStart with the columns required by the following blocks.
+     * Readers may parse only these columns, other blocks ignore it.
+     *
+     * @param columns columns required by the following blocks
+     */
+    public void projectColumns(Set<Column> columns) {
+    }
+
+    /**
+     * @return latencies of bundles processed by processDocument, null if they are not measured
+     */
+    protected BundleLatency getLatency() {
+        return latency;
+    }
+
+    /**
+     * Records processing time of a bundle if latencies are measured.
+     * Blocks which override processDocument should call it for each processed bundle,
+     * checking getLatency() first to avoid measuring when it is not needed.
+     *
+     * @param bundle processed bundle
+     * @param nanos processing time in nanoseconds
+     */
+    protected void recordLatency(Bundle bundle, long nanos) {
+        if (null != latency) {
+            latency.record(bundle, nanos);
+        }
+    }
+
+    /**
+     * Records processing times of trees which were processed separately (e.g. in parallel),
+     * summed for each bundle. Trees of a bundle are expected to be adjacent.
+     *
+     * @param bundles bundle of each tree, null for trees which were not processed
+     * @param nanos processing time of each tree in nanoseconds
+     */
+    protected void recordTreeLatencies(List<Bundle> bundles, long[] nanos) {
+        int i = 0;
+        while (i < bundles.size()) {
+            Bundle bundle = bundles.get(i);
+            long sum = 0;
+            int j = i;
+            for (; j < bundles.size() && bundles.get(j) == bundle; j++) {
+                sum += nanos[j];
+            }
+            if (null != bundle) {
+                recordLatency(bundle, sum);
+            }
+            i = j;
+        }
+    }
+
+    /**
+     * Enables measuring of bundle latencies in processDocument. Set by Pipeline.
+     *
+     * @param latency where to record latencies, null disables measuring
+     */
+    void setLatency(BundleLatency latency) {
+        this.latency = latency;
+    }
+
     /**
      * Called before document processing.
      *
@@ -72,9 +240,24 @@ public class Block {
     public void processDocument(Document document) {
         for (Bundle bundle : document.getBundles()) {
             if (shouldProcessBundle(bundle)) {
+                BundleProcessingEvent event = new BundleProcessingEvent();
+                long start = null != latency ? System.nanoTime() : 0;
+                event.begin();
                 beforeProcessBundle(bundle);
                 processBundle(bundle);
                 afterProcessBundle(bundle);
+                event.end();
+                if (null != latency) {
+                    latency.record(bundle, System.nanoTime() - start);
+                }
+                if (event.shouldCommit()) {
+                    event.block = getClass().getName();
+                    event.bundleId = bundle.getId();
+                    for (Root tree : bundle.getTrees()) {
+                        event.nodes += tree.getDescendants().size();
+                    }
+                    event.commit();
+                }
             }
         }
     }
@@ -93,7 +276,7 @@ public class Block {
      * @return true if the bundle with given bundle number should be processed
      */
     protected boolean shouldProcessBundle(Bundle bundle) {
-        return true;
+        return null == selector || selector.acceptsBundle(bundle);
     }
 
     /**
@@ -102,7 +285,14 @@ public class Block {
      * @return true if the tree should be processed
      */
     protected boolean shouldProcessTree(Root tree) {
-        return true;
+        return null == selector || selector.acceptsTree(tree);
+    }
+
+    /**
+     * @return true if the processed trees are selected by a tree query, which depends on the attributes of the nodes
+     */
+    boolean selectsTreesByQuery() {
+        return null != selector && selector.hasTreeQuery();
     }
 
     /**
@@ -0,0 +1,215 @@
+package cz.ufal.udapi.core;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runtime metrics of one block in a pipeline.
+ *
+ * Collects wall time, CPU time and allocated bytes spent in beforeProcessDocument,
+ * processDocument and afterProcessDocument, and the number of bundles, trees and nodes
+ * the block processed. CPU time and allocations include the worker threads of Parallel,
+ * other threads started by the block are not measured.
+ *
+ * @author Martin Vojtek
+ */
+public class BlockMetrics {
+
+    /**
+     * Format of the metrics report.
+     */
+    public enum Format {
+        TABLE,
+        JSON
+    }
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean allocationMXBean = initAllocationMXBean();
+
+    /**
+     * Metrics measured by the current thread, used to add the time of the worker threads.
+     */
+    private static final ThreadLocal<BlockMetrics> current = new ThreadLocal<>();
+
+    private final String blockName;
+
+    private long documents;
+    private long bundles;
+    private long trees;
+    private long nodes;
+    private long wallNanos;
+    private long cpuNanos;
+    private long allocatedBytes;
+
+    private long startWall;
+    private long startCpu;
+    private long startAllocated;
+
+    public BlockMetrics(String blockName) {
+        this.blockName = blockName;
+    }
+
+    private static com.sun.management.ThreadMXBean initAllocationMXBean() {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (bean.isThreadAllocatedMemorySupported()) {
+                if (!bean.isThreadAllocatedMemoryEnabled()) {
+                    bean.setThreadAllocatedMemoryEnabled(true);
+                }
+                return bean;
+            }
+        }
+        return null;
+    }
+
+    static long currentCpuTime() {
+        return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    static long currentAllocatedBytes() {
+        return null != allocationMXBean ? allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    /**
+     * @return metrics measured by the current thread or null
+     */
+    static BlockMetrics current() {
+        return current.get();
+    }
+
+    /**
+     * Starts measuring of one document.
+     */
+    public void start() {
+        current.set(this);
+        startAllocated = currentAllocatedBytes();
+        startCpu = currentCpuTime();
+        startWall = System.nanoTime();
+    }
+
+    /**
+     * Adds CPU time and allocated bytes of a worker thread.
+     *
+     * @param cpu CPU time in nanoseconds
+     * @param allocated allocated bytes
+     */
+    synchronized void addWorker(long cpu, long allocated) {
+        cpuNanos += cpu;
+        allocatedBytes += allocated;
+    }
+
+    /**
+     * Stops measuring of one document and counts its bundles, trees and nodes.
+     *
+     * @param document processed document
+     */
+    public synchronized void stop(Document document) {
+        wallNanos += System.nanoTime() - startWall;
+        cpuNanos += currentCpuTime() - startCpu;
+        allocatedBytes += currentAllocatedBytes() - startAllocated;
+        current.remove();
+
+        documents++;
+        for (Bundle bundle : document.getBundles()) {
+            bundles++;
+            for (Root tree : bundle.getTrees()) {
+                trees++;
+                nodes += tree.getDescendants().size();
+            }
+        }
+    }
+
+    public String getBlockName() {
+        return blockName;
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    public long getBundles() {
+        return bundles;
+    }
+
+    public long getTrees() {
+        return trees;
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * @return allocated bytes or 0 if the JVM does not support allocation measurement
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private double perSecond(long count) {
+        return 0 == wallNanos ? 0 : count * 1e9 / wallNanos;
+    }
+
+    /**
+     * Prints report of given metrics.
+     *
+     * @param metrics metrics of blocks in processing order
+     * @param format format of the report
+     * @param out where to print
+     */
+    public static void report(List<BlockMetrics> metrics, Format format, PrintStream out) {
+        if (Format.JSON == format) {
+            reportJson(metrics, out);
+        } else {
+            reportTable(metrics, out);
+        }
+    }
+
+    private static void reportTable(List<BlockMetrics> metrics, PrintStream out) {
+        out.println(String.format(Locale.ROOT, "%-3s %-40s %10s %10s %12s %12s %12s %14s",
+                "#", "block", "wall[ms]", "cpu[ms]", "bundles/s", "trees/s", "nodes/s", "alloc[MB]"));
+        int i = 0;
+        for (BlockMetrics m : metrics) {
+            i++;
+            out.println(String.format(Locale.ROOT, "%-3d %-40s %10.1f %10.1f %12.1f %12.1f %12.1f %14.1f",
+                    i, m.blockName, m.wallNanos / 1e6, m.cpuNanos / 1e6,
+                    m.perSecond(m.bundles), m.perSecond(m.trees), m.perSecond(m.nodes),
+                    m.allocatedBytes / (1024.0 * 1024.0)));
+        }
+    }
+
+    private static void reportJson(List<BlockMetrics> metrics, PrintStream out) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < metrics.size(); i++) {
+            BlockMetrics m = metrics.get(i);
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append("\n  {\"block\": \"").append(m.blockName.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\", \"documents\": ").append(m.documents)
+                    .append(", \"bundles\": ").append(m.bundles)
+                    .append(", \"trees\": ").append(m.trees)
+                    .append(", \"nodes\": ").append(m.nodes)
+                    .append(", \"wallNanos\": ").append(m.wallNanos)
+                    .append(", \"cpuNanos\": ").append(m.cpuNanos)
+                    .append(", \"allocatedBytes\": ").append(m.allocatedBytes)
+                    .append(String.format(Locale.ROOT, ", \"bundlesPerSecond\": %.1f", m.perSecond(m.bundles)))
+                    .append(String.format(Locale.ROOT, ", \"treesPerSecond\": %.1f", m.perSecond(m.trees)))
+                    .append(String.format(Locale.ROOT, ", \"nodesPerSecond\": %.1f", m.perSecond(m.nodes)))
+                    .append("}");
+        }
+        sb.append("\n]");
+        out.println(sb.toString());
+    }
+}
@@ -0,0 +1,202 @@
+package cz.ufal.udapi.core;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Latencies of bundles processed by one block in a pipeline.
+ *
+ * Keeps a histogram of processing times with power-of-two buckets and a slow-log
+ * of the bundles which took the longest time, with their addresses and numbers of nodes.
+ * Bundles are measured by Block.processDocument, by the cache and by blocks which override
+ * processDocument (see Block.recordLatency).
+ *
+ * @author Martin Vojtek
+ */
+public class BundleLatency {
+
+    private static final int BUCKETS = 64;
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    /**
+     * Slow bundle, i.e. an entry of the slow-log.
+     */
+    public static class SlowBundle {
+        private final String address;
+        private final int nodes;
+        private final long nanos;
+
+        SlowBundle(String address, int nodes, long nanos) {
+            this.address = address;
+            this.nodes = nodes;
+            this.nanos = nanos;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public int getNodes() {
+            return nodes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    private final String blockName;
+    private final int slowLogSize;
+
+    /**
+     * Bucket i counts latencies in [2^i, 2^(i+1)) nanoseconds, bucket 0 also latency 0.
+     */
+    private final long[] buckets = new long[BUCKETS];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    /**
+     * The slowest bundles, the fastest of them at the head.
+     */
+    private final PriorityQueue<SlowBundle> slowLog;
+
+    /**
+     * @param blockName name of the block
+     * @param slowLogSize number of the slowest bundles to keep
+     */
+    public BundleLatency(String blockName, int slowLogSize) {
+        this.blockName = blockName;
+        this.slowLogSize = slowLogSize;
+        this.slowLog = new PriorityQueue<>(Math.max(1, slowLogSize + 1), (a, b) -> Long.compare(a.nanos, b.nanos));
+    }
+
+    /**
+     * Records processing time of a bundle. Address and size of the bundle are computed
+     * only if it gets into the slow-log.
+     *
+     * @param bundle processed bundle
+     * @param nanos time of processing in nanoseconds
+     */
+    public void record(Bundle bundle, long nanos) {
+        buckets[bucket(nanos)]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+
+        if (slowLogSize <= 0 || (slowLog.size() == slowLogSize && slowLog.peek().nanos >= nanos)) {
+            return;
+        }
+        int nodes = 0;
+        for (Root tree : bundle.getTrees()) {
+            nodes += tree.getDescendants().size();
+        }
+        slowLog.add(new SlowBundle(bundle.getAddress(), nodes, nanos));
+        if (slowLog.size() > slowLogSize) {
+            slowLog.poll();
+        }
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    public String getBlockName() {
+        return blockName;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @param bucket index of a bucket, bucket i contains latencies in [2^i, 2^(i+1)) nanoseconds
+     * @return number of bundles in the bucket
+     */
+    public long getBucket(int bucket) {
+        return buckets[bucket];
+    }
+
+    /**
+     * @param percentile percentile in (0, 1]
+     * @return upper bound of the bucket containing the percentile, in nanoseconds
+     */
+    public long getPercentileNanos(double percentile) {
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(maxNanos, i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1);
+            }
+        }
+        return maxNanos;
+    }
+
+    /**
+     * @return the slowest bundles, the slowest first
+     */
+    public List<SlowBundle> getSlowBundles() {
+        List<SlowBundle> slowBundles = new ArrayList<>(slowLog);
+        slowBundles.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+        return slowBundles;
+    }
+
+    /**
+     * Prints latency percentiles, histograms and slow-logs of blocks which processed some bundles.
+     *
+     * @param latencies latencies of blocks in processing order
+     * @param out where to print
+     */
+    public static void report(List<BundleLatency> latencies, PrintStream out) {
+        int i = 0;
+        for (BundleLatency latency : latencies) {
+            i++;
+            if (0 == latency.count) {
+                continue;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "%d %s: %d bundles, mean %s, max %s",
+                    i, latency.blockName, latency.count, formatNanos(latency.totalNanos / latency.count),
+                    formatNanos(latency.maxNanos)));
+            for (double percentile : PERCENTILES) {
+                sb.append(String.format(Locale.ROOT, ", p%d <= %s", Math.round(percentile * 100),
+                        formatNanos(latency.getPercentileNanos(percentile))));
+            }
+            out.println(sb.toString());
+
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (0 != latency.buckets[bucket]) {
+                    out.println(String.format(Locale.ROOT, "    < %-10s %10d",
+                            formatNanos(1L << Math.min(62, bucket + 1)), latency.buckets[bucket]));
+                }
+            }
+            for (SlowBundle slowBundle : latency.getSlowBundles()) {
+                out.println(String.format(Locale.ROOT, "    slow %-10s %6d nodes  %s",
+                        formatNanos(slowBundle.nanos), slowBundle.nodes, slowBundle.address));
+            }
+        }
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 1000L) {
+            return nanos + "ns";
+        } else if (nanos < 1000_000L) {
+            return String.format(Locale.ROOT, "%.1fus", nanos / 1e3);
+        } else if (nanos < 1000_000_000L) {
+            return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+        }
+        return String.format(Locale.ROOT, "%.2fs", nanos / 1e9);
+    }
+}
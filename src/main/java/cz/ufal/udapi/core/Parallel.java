@@ -0,0 +1,120 @@
+package cz.ufal.udapi.core;
+
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Helpers for blocks processing trees in parallel.
+ *
+ * @author Martin Vojtek
+ */
+public final class Parallel {
+
+    /**
+     * Function applied to a range of indices.
+     *
+     * @param <R> type of the result
+     */
+    @FunctionalInterface
+    public interface RangeFunction<R> {
+        /**
+         * @param start first index of the range
+         * @param end index after the last index of the range
+         * @return result of the range
+         */
+        R apply(int start, int end);
+    }
+
+    private Parallel() {
+    }
+
+    /**
+     * Creates a fixed thread pool of daemon threads, so that the JVM does not hang
+     * if the pool is not shut down (e.g. when a later block throws an exception).
+     *
+     * @param threads number of threads
+     * @param name name of the threads
+     * @return new thread pool
+     */
+    public static ExecutorService newDaemonPool(int threads, String name) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Splits items into contiguous parts, one per thread, applies the function to each part in the pool
+     * and waits for the results. Exceptions thrown by the function are rethrown (wrapped in UdapiException
+     * unless they are UdapiExceptions).
+     *
+     * @param executor pool to use
+     * @param threads number of threads of the pool
+     * @param items items to process
+     * @param function function applied to each part
+     * @param <T> type of the items
+     * @param <R> type of the results
+     * @return results of the parts in the order of the items
+     */
+    public static <T, R> List<R> mapParts(ExecutorService executor, int threads, List<T> items, Function<List<T>, R> function) {
+        return mapRanges(executor, threads, items.size(), (start, end) -> function.apply(items.subList(start, end)));
+    }
+
+    /**
+     * Splits indices from 0 to size (exclusive) into contiguous ranges, one per thread, applies the function
+     * to each range in the pool and waits for the results. Exceptions are rethrown as by mapParts.
+     * If the calling thread measures block metrics, CPU time and allocations of the workers are added to them.
+     *
+     * @param executor pool to use
+     * @param threads number of threads of the pool
+     * @param size number of indices
+     * @param function function applied to each range
+     * @param <R> type of the results
+     * @return results of the ranges in the order of the indices
+     */
+    public static <R> List<R> mapRanges(ExecutorService executor, int threads, int size, RangeFunction<R> function) {
+        int part = Math.max(1, (size + threads - 1) / threads);
+        BlockMetrics metrics = BlockMetrics.current();
+        List<Future<R>> futures = new ArrayList<>();
+        for (int start = 0; start < size; start += part) {
+            int rangeStart = start;
+            int rangeEnd = Math.min(size, start + part);
+            if (null == metrics) {
+                futures.add(executor.submit(() -> function.apply(rangeStart, rangeEnd)));
+            } else {
+                futures.add(executor.submit(() -> {
+                    long allocated = BlockMetrics.currentAllocatedBytes();
+                    long cpu = BlockMetrics.currentCpuTime();
+                    try {
+                        return function.apply(rangeStart, rangeEnd);
+                    } finally {
+                        metrics.addWorker(BlockMetrics.currentCpuTime() - cpu, BlockMetrics.currentAllocatedBytes() - allocated);
+                    }
+                }));
+            }
+        }
+        List<R> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<R> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UdapiException("Interrupted while processing trees in parallel.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UdapiException) {
+                throw (UdapiException) e.getCause();
+            }
+            throw new UdapiException("Failed to process trees in parallel.", e.getCause());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,520 @@
+package cz.ufal.udapi.core;
+
+import cz.ufal.udapi.core.cache.BundleCache;
+import cz.ufal.udapi.core.impl.DefaultDocument;
+import cz.ufal.udapi.core.io.Column;
+import cz.ufal.udapi.core.jfr.BlockExecutionEvent;
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Pipeline is a sequence of block instances applied to documents or bundles.
+ *
+ * Unlike Run, pipeline does not parse scenario strings and does not instantiate blocks
+ * through reflection. It is meant for embedding Udapi into other applications.
+ * Blocks are started once and the pipeline can be applied to any number of documents.
+ *
+ * Example usage:
+ * <code>
+ *     Reader reader = new cz.ufal.udapi.block.read.CoNLLU();
+ *     Writer writer = new cz.ufal.udapi.block.write.CoNLLU();
+ *     Pipeline pipeline = Pipeline.builder().add(reader).add(new MyBlock()).add(writer).build();
+ *     pipeline.start();
+ *     for (String request : requests) {
+ *         StringWriter response = new StringWriter();
+ *         reader.setInput(new StringReader(request));
+ *         writer.setOutput(response);
+ *         pipeline.process();
+ *     }
+ *     pipeline.end();
+ * </code>
+ *
+ * @author Martin Vojtek
+ */
+public class Pipeline implements AutoCloseable {
+
+    private final List<Block> blocks;
+    private final List<String> blockNames;
+    private final boolean quiet;
+    private final BlockMetrics.Format metricsFormat;
+    private final List<BlockMetrics> metrics;
+    private final List<BundleLatency> latencies;
+    private final BundleCache cache;
+
+    /**
+     * For each block, index after the last block of its group of fused blocks.
+     * Blocks which are not fused form groups of size one.
+     */
+    private final int[] groupEnds;
+
+    private boolean started;
+    private boolean ended;
+
+    private Pipeline(Builder builder) {
+        this.blocks = Collections.unmodifiableList(new ArrayList<>(builder.blocks));
+        this.blockNames = Collections.unmodifiableList(new ArrayList<>(builder.blockNames));
+        this.quiet = builder.quiet;
+        this.metricsFormat = builder.metricsFormat;
+        this.cache = builder.cache;
+        if (null != metricsFormat) {
+            List<BlockMetrics> blockMetrics = new ArrayList<>();
+            for (String blockName : blockNames) {
+                blockMetrics.add(new BlockMetrics(blockName));
+            }
+            this.metrics = Collections.unmodifiableList(blockMetrics);
+        } else {
+            this.metrics = Collections.emptyList();
+        }
+        if (builder.slowLogSize >= 0) {
+            List<BundleLatency> blockLatencies = new ArrayList<>();
+            for (int i = 0; i < blocks.size(); i++) {
+                BundleLatency latency = new BundleLatency(blockNames.get(i), builder.slowLogSize);
+                blocks.get(i).setLatency(latency);
+                blockLatencies.add(latency);
+            }
+            this.latencies = Collections.unmodifiableList(blockLatencies);
+        } else {
+            this.latencies = Collections.emptyList();
+        }
+        this.groupEnds = findGroups(builder.fuse && null == metricsFormat && latencies.isEmpty());
+    }
+
+    /**
+     * Finds maximal runs of adjacent fusable blocks. Blocks processed through the cache
+     * and blocks selecting trees by a query (evaluated on the trees modified by the previous blocks) are not fused.
+     */
+    private int[] findGroups(boolean fuse) {
+        int size = blocks.size();
+        int[] ends = new int[size];
+        int start = 0;
+        while (start < size) {
+            int end = start + 1;
+            if (fuse && isFusable(blocks.get(start))) {
+                while (end < size && isFusable(blocks.get(end))) {
+                    end++;
+                }
+            }
+            for (int i = start; i < end; i++) {
+                ends[i] = end;
+            }
+            start = end;
+        }
+        return ends;
+    }
+
+    private boolean isFusable(Block block) {
+        return block.isFusable() && !block.selectsTreesByQuery() && !(null != cache && block.isDeterministic());
+    }
+
+    /**
+     * @return builder of a new pipeline
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return blocks of the pipeline in processing order
+     */
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return metrics of blocks in processing order, empty if metrics are disabled
+     */
+    public List<BlockMetrics> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return bundle latencies of blocks in processing order, empty if latencies are not measured
+     */
+    public List<BundleLatency> getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Calls processStart of all blocks. Does nothing if the pipeline has been already started.
+     * Before that, each block is told which columns are required by the blocks after it (see Block.projectColumns).
+     */
+    public void start() {
+        if (started) {
+            return;
+        }
+        EnumSet<Column> requiredColumns = EnumSet.noneOf(Column.class);
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            blocks.get(i).projectColumns(EnumSet.copyOf(requiredColumns));
+            requiredColumns.addAll(blocks.get(i).getRequiredColumns());
+        }
+        for (Block block : blocks) {
+            block.processStart();
+        }
+        started = true;
+    }
+
+    /**
+     * Applies all blocks to a new empty document. Useful when the first block is a reader.
+     *
+     * @return processed document
+     */
+    public Document process() {
+        return process(new DefaultDocument());
+    }
+
+    /**
+     * Applies all blocks to given document.
+     *
+     * @param document document to process
+     * @return processed document
+     */
+    public Document process(Document document) {
+        checkRunning();
+
+        int numberOfBlocks = blocks.size();
+        int i = 0;
+        while (i < numberOfBlocks) {
+            if (groupEnds[i] - i > 1) {
+                processDocumentFused(document, i, groupEnds[i]);
+                i = groupEnds[i];
+                continue;
+            }
+            if (!quiet) {
+                System.err.println("Applying block " + (i + 1) + "/" + numberOfBlocks + " " + blockNames.get(i));
+            }
+            Block block = blocks.get(i);
+            if (null != metricsFormat) {
+                metrics.get(i).start();
+            }
+            BlockExecutionEvent event = new BlockExecutionEvent();
+            event.begin();
+            block.beforeProcessDocument(document);
+            if (null != cache && block.isDeterministic()) {
+                processDocumentCached(block, document);
+            } else {
+                block.processDocument(document);
+            }
+            block.afterProcessDocument(document);
+            event.end();
+            if (event.shouldCommit()) {
+                event.block = blockNames.get(i);
+                event.bundles = document.getBundles().size();
+                event.commit();
+            }
+            if (null != metricsFormat) {
+                metrics.get(i).stop(document);
+            }
+            i++;
+        }
+        return document;
+    }
+
+    /**
+     * Applies fused blocks from (inclusive) to (exclusive) in a single traversal of each tree.
+     */
+    private void processDocumentFused(Document document, int from, int to) {
+        List<Block> group = blocks.subList(from, to);
+        List<String> groupNames = blockNames.subList(from, to);
+        if (!quiet) {
+            System.err.println("Applying blocks " + (from + 1) + "-" + to + "/" + blocks.size() + " "
+                    + String.join(" ", groupNames) + " (fused)");
+        }
+        BlockExecutionEvent event = new BlockExecutionEvent();
+        event.begin();
+        for (Block block : group) {
+            block.beforeProcessDocument(document);
+        }
+
+        List<Block> bundleBlocks = new ArrayList<>(group.size());
+        List<Block> treeBlocks = new ArrayList<>(group.size());
+        for (Bundle bundle : document.getBundles()) {
+            bundleBlocks.clear();
+            for (Block block : group) {
+                if (block.shouldProcessBundle(bundle)) {
+                    block.beforeProcessBundle(bundle);
+                    bundleBlocks.add(block);
+                }
+            }
+            for (Root tree : bundle.getTrees()) {
+                treeBlocks.clear();
+                for (Block block : bundleBlocks) {
+                    if (block.shouldProcessTree(tree)) {
+                        treeBlocks.add(block);
+                    }
+                }
+                processTreeFused(tree, treeBlocks);
+            }
+            for (Block block : bundleBlocks) {
+                block.afterProcessBundle(bundle);
+            }
+        }
+
+        for (Block block : group) {
+            block.afterProcessDocument(document);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.block = String.join(" ", groupNames);
+            event.bundles = document.getBundles().size();
+            event.commit();
+        }
+    }
+
+    /**
+     * Calls processNode of all the blocks on each node of the tree, in the order of the blocks.
+     * The traversal runs in a transaction. When a block changes the structure of the tree,
+     * the transaction is rolled back and the blocks process the tree one after another, as if they were not fused.
+     */
+    private static void processTreeFused(Root tree, List<Block> treeBlocks) {
+        if (treeBlocks.size() < 2 || tree.isInTransaction()) {
+            for (Block block : treeBlocks) {
+                block.processTree(tree);
+            }
+            return;
+        }
+
+        boolean structuralChanges = false;
+        tree.beginTransaction();
+        try {
+            //the list does not change unless the structure changes, so it need not be copied
+            List<Node> descendants = tree.getDescendants();
+            int size = descendants.size();
+            traversal:
+            for (int i = 0; i < size; i++) {
+                Node node = descendants.get(i);
+                for (Block block : treeBlocks) {
+                    block.processNode(node);
+                    if (tree.hasStructuralChanges()) {
+                        structuralChanges = true;
+                        break traversal;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            tree.rollback();
+            throw e;
+        }
+
+        if (!structuralChanges) {
+            tree.commit();
+            return;
+        }
+        tree.rollback();
+        for (Block block : treeBlocks) {
+            block.processTree(tree);
+        }
+    }
+
+    /**
+     * Processes bundles of the document by given deterministic block.
+     * Bundles found in the cache are replaced by the cached result, the others are processed and stored.
+     */
+    private void processDocumentCached(Block block, Document document) {
+        String blockKey = cache.blockKey(block.getClass(), block.getVersion(), block.getParams());
+        for (Bundle bundle : document.getBundles()) {
+            if (block.shouldProcessBundle(bundle)) {
+                long start = System.nanoTime();
+                String key = cache.key(blockKey, bundle);
+                if (!cache.restore(key, bundle)) {
+                    block.beforeProcessBundle(bundle);
+                    block.processBundle(bundle);
+                    block.afterProcessBundle(bundle);
+                    cache.store(key, bundle);
+                }
+                if (null != block.getLatency()) {
+                    block.getLatency().record(bundle, System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies all blocks to given bundles one bundle at a time.
+     *
+     * Every bundle goes through all the blocks before the next bundle is processed.
+     * Document-level methods (processDocument etc.) are not called,
+     * so readers and other blocks working on whole documents should not be used in this mode.
+     *
+     * @param bundles bundles to process
+     */
+    public void process(Iterable<Bundle> bundles) {
+        checkRunning();
+
+        for (Bundle bundle : bundles) {
+            for (Block block : blocks) {
+                if (block.shouldProcessBundle(bundle)) {
+                    block.beforeProcessBundle(bundle);
+                    block.processBundle(bundle);
+                    block.afterProcessBundle(bundle);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if all blocks are finished, false if some block (typically a reader
+     * with bundlesPerDoc set) has input left for another document
+     */
+    public boolean isFinished() {
+        for (Block block : blocks) {
+            if (!block.isFinished()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calls processEnd of all blocks. The pipeline cannot be used afterwards.
+     * If metrics are enabled, the metrics report is printed to standard error output.
+     */
+    public void end() {
+        if (!started || ended) {
+            return;
+        }
+        for (Block block : blocks) {
+            block.processEnd();
+        }
+        ended = true;
+
+        if (null != metricsFormat) {
+            BlockMetrics.report(metrics, metricsFormat, System.err);
+        }
+        if (!latencies.isEmpty()) {
+            BundleLatency.report(latencies, System.err);
+        }
+        if (null != cache) {
+            cache.close();
+        }
+        if (null != cache && !quiet) {
+            System.err.println("Cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+        }
+    }
+
+    /**
+     * Same as end().
+     */
+    @Override
+    public void close() {
+        end();
+    }
+
+    private void checkRunning() {
+        if (!started) {
+            throw new UdapiException("Pipeline has not been started.");
+        }
+        if (ended) {
+            throw new UdapiException("Pipeline has already ended.");
+        }
+    }
+
+    /**
+     * Builder of pipelines.
+     */
+    public static class Builder {
+
+        private final List<Block> blocks = new ArrayList<>();
+        private final List<String> blockNames = new ArrayList<>();
+        private boolean quiet = true;
+        private BlockMetrics.Format metricsFormat;
+        private BundleCache cache;
+        private boolean fuse;
+        private int slowLogSize = -1;
+
+        private Builder() {
+        }
+
+        /**
+         * Appends block to the pipeline.
+         *
+         * @param block block to append
+         * @return this builder
+         */
+        public Builder add(Block block) {
+            return add(block.getClass().getName(), block);
+        }
+
+        /**
+         * Appends block with given name (used for logging) to the pipeline.
+         *
+         * @param name name of the block
+         * @param block block to append
+         * @return this builder
+         */
+        public Builder add(String name, Block block) {
+            if (null == block) {
+                throw new UdapiException("Not allowed to add null block.");
+            }
+            blockNames.add(name);
+            blocks.add(block);
+            return this;
+        }
+
+        /**
+         * @param quiet if false, each applied block is logged to standard error output
+         * @return this builder
+         */
+        public Builder quiet(boolean quiet) {
+            this.quiet = quiet;
+            return this;
+        }
+
+        /**
+         * Enables per-block metrics (time, throughput and allocations).
+         *
+         * @param metricsFormat format of the report printed at the end, null disables metrics
+         * @return this builder
+         */
+        public Builder metrics(BlockMetrics.Format metricsFormat) {
+            this.metricsFormat = metricsFormat;
+            return this;
+        }
+
+        /**
+         * Enables caching of results of deterministic blocks (see Block.isDeterministic).
+         *
+         * @param cache cache to use, null disables caching
+         * @return this builder
+         */
+        public Builder cache(BundleCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        /**
+         * Enables measuring of bundle latencies of each block (see BundleLatency).
+         * The histograms and slow-logs are printed to standard error output at the end.
+         * Fusion of blocks is not used when latencies are measured.
+         *
+         * @param slowLogSize number of the slowest bundles reported for each block, negative disables measuring
+         * @return this builder
+         */
+        public Builder latency(int slowLogSize) {
+            this.slowLogSize = slowLogSize;
+            return this;
+        }
+
+        /**
+         * Enables fusion of adjacent fusable blocks (see Block.isFusable), which are then applied
+         * in a single traversal of each tree. Fusion is not used when metrics or latencies are enabled.
+         *
+         * @param fuse true to fuse blocks, false by default
+         * @return this builder
+         */
+        public Builder fuse(boolean fuse) {
+            this.fuse = fuse;
+            return this;
+        }
+
+        /**
+         * @return new pipeline
+         */
+        public Pipeline build() {
+            return new Pipeline(this);
+        }
+    }
+}
@@ -158,6 +158,105 @@ public interface Root {
      */
     Node createChild();
 
+    /**
+     * Creates all nodes of an empty tree at once.
+     *
+     * The i-th item of each array describes the word with ord i+1. Heads are ords of the parents (0 is the root).
+     * The tree is validated once in linear time and parents and children are wired directly,
+     * so this is much faster than creating the nodes one by one and calling setParent.
+     * Attribute arrays may be null, in which case the attribute is not set.
+     *
+     * @param heads ords of the parents
+     * @param forms forms
+     * @param lemmas lemmas
+     * @param upos universal POS tags
+     * @param xpos language specific POS tags
+     * @param feats features
+     * @param deprels dependency relations
+     * @param deps enhanced dependencies in the CoNLL-U format
+     * @param misc misc
+     * @return created nodes in word order
+     */
+    List<Node> buildTree(int[] heads, String[] forms, String[] lemmas, String[] upos, String[] xpos,
+                         String[] feats, String[] deprels, String[] deps, String[] misc);
+
+    /**
+     * Rehangs all nodes of the tree at once.
+     *
+     * The i-th item of heads is the ord of the new parent of the node with ord i+1 (0 is the root).
+     * Without skipCycles, acyclicity is checked once for the whole tree. Child lists are rebuilt in one pass.
+     *
+     * @param heads ords of the new parents
+     * @param deprels new dependency relations or null to keep the current ones
+     * @param skipCycles if true, the heads are applied in ord order as by setParent(parent, true), i.e. a node keeps
+     *                   its current parent (and deprel) if the new parent is the node itself or its descendant
+     *                   at that moment. This costs time proportional to the depth of the tree per node.
+     *                   If false, UdapiException is thrown if the heads contain a cycle and the tree is not changed
+     */
+    void setHeads(int[] heads, String[] deprels, boolean skipCycles);
+
+    /**
+     * Rehangs all nodes of the tree at once. See setHeads(int[], String[], boolean).
+     *
+     * @param heads ords of the new parents
+     */
+    void setHeads(int[] heads);
+
+    /**
+     * Starts recording changes of the tree, so that they can be reverted by rollback.
+     *
+     * Changes made by setParent, remove, shift methods, createChild, setHeads and attribute setters of the nodes
+     * are recorded as compact undo records, so a speculative edit costs time and memory proportional to the changes.
+     */
+    void beginTransaction();
+
+    /**
+     * Keeps changes made since beginTransaction and ends the transaction.
+     */
+    void commit();
+
+    /**
+     * Reverts changes made since beginTransaction (including order of the nodes and children) and ends the transaction.
+     */
+    void rollback();
+
+    /**
+     *
+     * @return true if changes of the tree are being recorded
+     */
+    boolean isInTransaction();
+
+    /**
+     *
+     * @return true if the order of the nodes or their parents changed since beginTransaction,
+     * false if only attributes changed or the tree is not in a transaction
+     */
+    boolean hasStructuralChanges();
+
+    /**
+     * Sets lines of the sentence as they were read from the input (without line terminators).
+     * Used by readers, the tree is unmodified afterwards.
+     *
+     * @param rawLines lines of the sentence, null if they are not available
+     */
+    void setRawLines(List<String> rawLines);
+
+    /**
+     *
+     * @return lines of the sentence as they were read from the input, null if they are not available
+     * or if the tree has been modified since they were set
+     */
+    List<String> getRawLines();
+
+    /**
+     * Tells whether the tree has been modified since its raw lines were set. Any setter or structural change
+     * of the tree, its nodes, multiword tokens, comments or empty nodes makes the tree modified.
+     * Bundle, zone and id of the tree are not tracked.
+     *
+     * @return true if the tree has been modified or it has no raw lines
+     */
+    boolean isModified();
+
     /**
      *
      * @return form of the node
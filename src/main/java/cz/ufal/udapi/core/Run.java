@@ -1,8 +1,11 @@
 package cz.ufal.udapi.core;
 
+import cz.ufal.udapi.core.cache.BundleCache;
 import cz.ufal.udapi.core.impl.DefaultDocument;
 import cz.ufal.udapi.exception.UdapiException;
 
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -18,12 +21,18 @@ public class Run {
 
     private boolean dumpScenario;
     private boolean quiet;
+    private BlockMetrics.Format metricsFormat;
+    private String cacheDir;
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+    private boolean fusion;
+    private int slowLogSize = -1;
     private List<String> fileNames = new ArrayList<>();
     private Map<String, String> globalParams = new HashMap<>();
     private List<String> scenarios = new ArrayList();
 
     private static final String BLOCK_PACKAGE_PREFIX = "cz.ufal.udapi.block.";
     private static final String UD_BLOCK_PREFIX = "Udapi::Block::";
+    private static final long DEFAULT_CACHE_SIZE = 1024L * 1024 * 1024;
 
     /**
      * Entrypoint for scenario execution.
@@ -58,6 +67,84 @@ public class Run {
         execute();
     }
 
+    /**
+     * Enables per-block metrics. The report is printed to standard error output at the end of processing.
+     *
+     * @param format "table" or "json", null disables metrics
+     */
+    public void setMetrics(String format) {
+        if (null == format) {
+            metricsFormat = null;
+            return;
+        }
+        try {
+            metricsFormat = BlockMetrics.Format.valueOf(format.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new UdapiException("Unknown metrics format '" + format + "'. Use table or json.", e);
+        }
+    }
+
+    /**
+     * Enables on-disk cache of results of deterministic blocks.
+     *
+     * @param cacheDir directory of the cache, null disables the cache
+     */
+    public void setCache(String cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Sets maximal size of the cache. Least recently used results are deleted when it is exceeded.
+     *
+     * @param size size in bytes, optionally with suffix k, m or g
+     */
+    public void setCacheSize(String size) {
+        cacheSize = parseSize(size);
+    }
+
+    /**
+     * Enables measuring of per-bundle latencies of blocks. Latency histograms and the slowest bundles
+     * of each block are printed to standard error output at the end of processing.
+     *
+     * @param slowLogSize number of the slowest bundles reported for each block, negative disables measuring
+     */
+    public void setLatency(int slowLogSize) {
+        this.slowLogSize = slowLogSize;
+    }
+
+    /**
+     * Enables or disables fusion of adjacent fusable blocks (see Block.isFusable), disabled by default.
+     *
+     * @param fusion true to apply adjacent fusable blocks in a single traversal of each tree
+     */
+    public void setFusion(boolean fusion) {
+        this.fusion = fusion;
+    }
+
+    /**
+     * @param size number of bytes, optionally with suffix k, m or g (e.g. 512m)
+     * @return number of bytes
+     */
+    public static long parseSize(String size) {
+        String value = size.trim().toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+        if (value.endsWith("k")) {
+            multiplier = 1024L;
+        } else if (value.endsWith("m")) {
+            multiplier = 1024L * 1024;
+        } else if (value.endsWith("g")) {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if (1 != multiplier) {
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(value) * multiplier;
+        } catch (NumberFormatException e) {
+            throw new UdapiException("Invalid size '" + size + "'.", e);
+        }
+    }
+
     /**
      * Executes scenario.
      */
@@ -75,45 +162,35 @@ public class Run {
         //load blocks
 
         Map<String, Class> blocks = loadBlocks(blockItems);
-        Map<String, Block> blockInstances = new HashMap<>();
 
         //instantiate blocks
+        Pipeline.Builder pipelineBuilder = Pipeline.builder().quiet(quiet).metrics(metricsFormat).fuse(fusion)
+                .latency(slowLogSize);
+        if (null != cacheDir) {
+            pipelineBuilder.cache(new BundleCache(Paths.get(cacheDir), cacheSize));
+        }
         for (String blockName : blockNames) {
             Block blockInstance = createBlock(blocks.get(blockName), blockItems.get(blockName));
-            blockInstances.put(blockName, blockInstance);
+            pipelineBuilder.add(blockName, blockInstance);
         }
+        Pipeline pipeline = pipelineBuilder.build();
 
         //load models etc.
-        for (String blockName : blockNames) {
-            blockInstances.get(blockName).processStart();
-        }
+        pipeline.start();
 
         //the main processing
-        int numberOfBlocks = blockNames.size();
         boolean wasLastDocument = false;
 
         while (!wasLastDocument) {
             Document newDocument = new DefaultDocument();
 
-            int blockNumber = 0;
-            for (String blockName : blockNames) {
-                blockNumber++;
-                if (!quiet) {
-                    System.err.println("Applying block " + blockNumber + "/" + numberOfBlocks + " " + blockName);
-                }
-                Block block = blockInstances.get(blockName);
-                block.beforeProcessDocument(newDocument);
-                block.processDocument(newDocument);
-                block.afterProcessDocument(newDocument);
-            }
+            pipeline.process(newDocument);
 
-            wasLastDocument = true;
+            wasLastDocument = pipeline.isFinished();
         }
 
         //call processEnd
-        for (String blockName : blockNames) {
-            blockInstances.get(blockName).processEnd();
-        }
+        pipeline.end();
     }
 
     /**
@@ -183,7 +260,7 @@ public class Run {
     private String constructScenarioStringWithQuotedWhitespace() {
         StringBuilder scenarioString = new StringBuilder();
 
-        Pattern paramPatternWithSpace = Pattern.compile("(\\S+)=(.*\\s.*)$");
+        Pattern paramPatternWithSpace = Pattern.compile("([^=\\s]+)=(.*\\s.*)$");
         for (int i = 0; i < scenarios.size(); i++) {
 
             String scenario = scenarios.get(i);
@@ -336,14 +413,20 @@ public class Run {
         blockParameters.putAll(parameters);
 
         try {
-            return (Block) blockClass.getConstructor(Map.class).newInstance(blockParameters);
-        } catch (Exception e) {
-            //fallback to default constructor
             try {
+                return (Block) blockClass.getConstructor(Map.class).newInstance(blockParameters);
+            } catch (NoSuchMethodException e) {
+                //fallback to default constructor
                 return (Block) blockClass.getConstructor().newInstance();
-            } catch (Exception other) {
-                throw new UdapiException("Failed to instantiate block.", other);
             }
+        } catch (InvocationTargetException e) {
+            //e.g. invalid parameters
+            if (e.getCause() instanceof UdapiException) {
+                throw (UdapiException) e.getCause();
+            }
+            throw new UdapiException("Failed to instantiate block.", e.getCause());
+        } catch (Exception e) {
+            throw new UdapiException("Failed to instantiate block.", e);
         }
 
     }
@@ -0,0 +1,125 @@
+package cz.ufal.udapi.core;
+
+import cz.ufal.udapi.core.query.TreeQuery;
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Selects bundles and trees processed by a block. Every block accepts the selector parameters:
+ *
+ * zones - comma-separated zones of the trees to process, e.g. zones=en_udpipe,cs
+ * bundles - regular expression matching the whole id of the bundles to process
+ * trees - tree query (see TreeQuery) which the processed trees must match
+ *
+ * All parameters are compiled once, when the block is created.
+ * A bundle is skipped as a whole if its id does not match or none of its trees is in the selected zones.
+ *
+ * @author Martin Vojtek
+ */
+public class Selector {
+
+    public static final String PARAM_ZONES = "zones";
+    public static final String PARAM_BUNDLES = "bundles";
+    public static final String PARAM_TREES = "trees";
+
+    private static final String COMMA = ",";
+
+    /**
+     * Selected zones, null if all zones are selected.
+     */
+    private final Set<String> zones;
+
+    /**
+     * Pattern of bundle ids, null if all bundles are selected.
+     */
+    private final Pattern bundles;
+
+    /**
+     * Query the trees must match, null if all trees are selected.
+     */
+    private final TreeQuery trees;
+
+    private Selector(Set<String> zones, Pattern bundles, TreeQuery trees) {
+        this.zones = zones;
+        this.bundles = bundles;
+        this.trees = trees;
+    }
+
+    /**
+     * @param params parameters of a block
+     * @return selector given by the parameters or null if the parameters do not contain any selector
+     */
+    public static Selector of(Map<String, String> params) {
+        String zonesParam = params.get(PARAM_ZONES);
+        String bundlesParam = params.get(PARAM_BUNDLES);
+        String treesParam = params.get(PARAM_TREES);
+        if (null == zonesParam && null == bundlesParam && null == treesParam) {
+            return null;
+        }
+
+        Set<String> zones = null;
+        if (null != zonesParam) {
+            zones = new HashSet<>();
+            for (String zone : zonesParam.split(COMMA)) {
+                zones.add(zone.trim());
+            }
+        }
+
+        Pattern bundles = null;
+        if (null != bundlesParam) {
+            try {
+                bundles = Pattern.compile(bundlesParam);
+            } catch (PatternSyntaxException e) {
+                throw new UdapiException("Invalid " + PARAM_BUNDLES + " parameter: " + bundlesParam, e);
+            }
+        }
+
+        TreeQuery trees = null == treesParam ? null : TreeQuery.compile(treesParam);
+        return new Selector(zones, bundles, trees);
+    }
+
+    /**
+     * @return true if the trees must match a tree query
+     */
+    public boolean hasTreeQuery() {
+        return null != trees;
+    }
+
+    /**
+     * @param bundle bundle
+     * @return true if the bundle id matches and at least one of its trees is in a selected zone
+     */
+    public boolean acceptsBundle(Bundle bundle) {
+        if (null != bundles) {
+            String id = bundle.getId();
+            if (!bundles.matcher(null == id ? "" : id).matches()) {
+                return false;
+            }
+        }
+        if (null != zones) {
+            for (Root tree : bundle.getTrees()) {
+                if (zones.contains(tree.getZone())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param tree tree
+     * @return true if the tree is in a selected zone and matches the tree query
+     */
+    public boolean acceptsTree(Root tree) {
+        if (null != zones && !zones.contains(tree.getZone())) {
+            return false;
+        }
+        return null == trees || trees.matches(tree);
+    }
+}
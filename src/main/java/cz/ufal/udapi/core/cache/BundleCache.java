@@ -0,0 +1,568 @@
+package cz.ufal.udapi.core.cache;
+
+import cz.ufal.udapi.core.Bundle;
+import cz.ufal.udapi.core.Document;
+import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.io.UdapiIOException;
+import cz.ufal.udapi.core.io.impl.CoNLLUReader;
+import cz.ufal.udapi.core.io.impl.CoNLLUWriter;
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * On-disk cache of processed bundles.
+ *
+ * The key of a bundle is SHA-256 of the block class, its version (see Block.getVersion), its parameters
+ * and the bundle serialized into CoNLL-U, the value is the bundle serialized after the block has processed it.
+ * Editing a sentence therefore invalidates only its own entry.
+ * Only blocks which declare themselves deterministic (see Block.isDeterministic) should be cached.
+ *
+ * Stored entries are collected in memory and written together into pack files. Each pack starts
+ * with the keys, offsets and lengths of its entries, so that the cache can be loaded by reading
+ * only the beginnings of the packs. Least recently used packs are deleted when the size of the cache
+ * exceeds the limit. Access times are kept in memory and saved into an index file by close(),
+ * so that hits do not write to the disk.
+ *
+ * @author Martin Vojtek
+ */
+public class BundleCache {
+
+    /**
+     * Version of the serialization format, part of every key.
+     */
+    private static final String VERSION = "3";
+
+    private static final String SUFFIX = ".pack";
+
+    private static final String INDEX = "access.idx";
+
+    /**
+     * Pending entries are written into a pack when they exceed this size.
+     */
+    private static final int PACK_SIZE = 1024 * 1024;
+
+    private static final String TREE_HEADER = " udapi_tree = ";
+    private static final char NO_FLAGS = '-';
+    private static final char NO_SENT_ID = 'n';
+    private static final char ADDED_TEXT = 't';
+
+    /**
+     * After eviction the cache is at most this fraction of its maximal size.
+     */
+    private static final double EVICTION_RATIO = 0.9;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path directory;
+    private final long maxBytes;
+    private final CoNLLUWriter writer = new CoNLLUWriter();
+
+    /**
+     * Entries and packs of the cache, loaded on first use.
+     */
+    private Map<String, Entry> entries;
+    private Map<Path, Pack> packs;
+    private long totalBytes;
+
+    /**
+     * Entries stored since the last pack was written.
+     */
+    private final Map<String, byte[]> pending = new LinkedHashMap<>();
+    private long pendingBytes;
+
+    /**
+     * Pack read by the last restore, kept open for the following ones.
+     */
+    private Path openPack;
+    private FileChannel openChannel;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param directory directory of the cache, created if it does not exist
+     * @param maxBytes maximal size of the cache in bytes
+     */
+    public BundleCache(Path directory, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new UdapiException("Size of the cache must be positive: " + maxBytes);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to create cache directory '" + directory + "'.", e);
+        }
+    }
+
+    /**
+     * Computes the part of the keys common to all bundles processed by a block.
+     *
+     * @param blockClass class of the block
+     * @param version version of the block (see Block.getVersion)
+     * @param params parameters of the block
+     * @return prefix of the keys of the block
+     */
+    public String blockKey(Class<?> blockClass, String version, Map<String, String> params) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(VERSION).append('\n').append(blockClass.getName()).append('\n').append(version).append('\n');
+        for (Map.Entry<String, String> param : new TreeMap<>(params).entrySet()) {
+            sb.append(param.getKey()).append('=').append(param.getValue()).append('\n');
+        }
+        return sb.append('\n').toString();
+    }
+
+    /**
+     * Computes the cache key of a bundle before it is processed by a block.
+     *
+     * @param blockKey prefix computed by blockKey()
+     * @param bundle bundle to be processed
+     * @return key of the bundle
+     */
+    public String key(String blockKey, Bundle bundle) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new UdapiException("SHA-256 is not available.", e);
+        }
+
+        StringBuilder sb = new StringBuilder(blockKey);
+        serialize(sb, bundle);
+
+        byte[] hash = digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+        char[] hex = new char[2 * hash.length];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Replaces trees of the bundle with the cached result.
+     *
+     * @param key key computed by key() before processing
+     * @param bundle bundle to update
+     * @return true if the result was found in the cache
+     */
+    public boolean restore(String key, Bundle bundle) {
+        byte[] content = pending.get(key);
+        if (null == content) {
+            Entry entry = entries().get(key);
+            content = null != entry ? read(entry) : null;
+            if (null == content) {
+                misses++;
+                return false;
+            }
+            entry.pack.lastAccess = System.currentTimeMillis();
+        }
+
+        List<Root> trees = deserialize(new String(content, StandardCharsets.UTF_8), bundle.getDocument());
+        bundle.getTrees().clear();
+        for (Root tree : trees) {
+            bundle.addTree(tree);
+        }
+        hits++;
+        return true;
+    }
+
+    /**
+     * Stores processed bundle. It is written into the cache directory with other stored bundles
+     * when they exceed the size of a pack, or by close().
+     *
+     * @param key key computed by key() before processing
+     * @param bundle processed bundle
+     */
+    public void store(String key, Bundle bundle) {
+        StringBuilder sb = new StringBuilder();
+        serialize(sb, bundle);
+        byte[] content = sb.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] previous = pending.put(key, content);
+        pendingBytes += content.length - (null == previous ? 0 : previous.length);
+        if (pendingBytes >= PACK_SIZE) {
+            writePack();
+        }
+    }
+
+    /**
+     * Writes pending entries and saves access times of the packs into the index, so that the least
+     * recently used packs are evicted first also by the next process using the cache.
+     */
+    public void close() {
+        writePack();
+        closePack();
+        if (null == packs) {
+            return;
+        }
+        Path index = directory.resolve(INDEX);
+        try {
+            Path tmp = Files.createTempFile(directory, INDEX, ".tmp");
+            try (BufferedWriter indexWriter = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Pack pack : packs.values()) {
+                    indexWriter.write(pack.path.getFileName() + "\t" + pack.lastAccess + "\n");
+                }
+            }
+            move(tmp, index);
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to save cache index '" + index + "'.", e);
+        }
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Reads value of the entry from its pack.
+     *
+     * @return the value, null if the pack has been deleted by another process
+     */
+    private byte[] read(Entry entry) {
+        try {
+            if (!entry.pack.path.equals(openPack)) {
+                closePack();
+                openChannel = FileChannel.open(entry.pack.path, StandardOpenOption.READ);
+                openPack = entry.pack.path;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+            while (buffer.hasRemaining()) {
+                if (openChannel.read(buffer, entry.offset + buffer.position()) < 0) {
+                    throw new UdapiException("Corrupted cache pack '" + entry.pack.path + "'.");
+                }
+            }
+            return buffer.array();
+        } catch (NoSuchFileException e) {
+            removePack(entry.pack);
+            return null;
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to read cache pack '" + entry.pack.path + "'.", e);
+        }
+    }
+
+    private void closePack() {
+        if (null != openChannel) {
+            try {
+                openChannel.close();
+            } catch (IOException e) {
+                throw new UdapiIOException("Failed to close cache pack '" + openPack + "'.", e);
+            }
+            openChannel = null;
+            openPack = null;
+        }
+    }
+
+    /**
+     * Writes pending entries into a new pack. The pack starts with the number of the entries
+     * followed by a line with key, offset and length of each entry.
+     */
+    private void writePack() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        //load the existing packs before the new one is written
+        entries();
+
+        StringBuilder header = new StringBuilder();
+        header.append(pending.size()).append('\n');
+        long offset = 0;
+        for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+            header.append(entry.getKey()).append(' ').append(offset).append(' ').append(entry.getValue().length).append('\n');
+            offset += entry.getValue().length;
+        }
+        byte[] headerBytes = header.toString().getBytes(StandardCharsets.US_ASCII);
+
+        Path path;
+        try {
+            Path tmp = Files.createTempFile(directory, "pack-", ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer[] buffers = new ByteBuffer[pending.size() + 1];
+                buffers[0] = ByteBuffer.wrap(headerBytes);
+                int i = 1;
+                for (byte[] content : pending.values()) {
+                    buffers[i++] = ByteBuffer.wrap(content);
+                }
+                while (buffers[buffers.length - 1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+            String name = tmp.getFileName().toString();
+            path = directory.resolve(name.substring(0, name.length() - ".tmp".length()) + SUFFIX);
+            move(tmp, path);
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to store bundles into cache '" + directory + "'.", e);
+        }
+
+        Pack pack = new Pack(path, headerBytes.length + offset, System.currentTimeMillis());
+        addPack(pack);
+        offset = headerBytes.length;
+        for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+            entries.put(entry.getKey(), new Entry(pack, offset, entry.getValue().length));
+            pack.keys.add(entry.getKey());
+            offset += entry.getValue().length;
+        }
+        pending.clear();
+        pendingBytes = 0;
+        if (totalBytes > maxBytes) {
+            evict();
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Serializes trees of the bundle into CoNLL-U.
+     * Each tree is preceded by a comment with its zone and flags needed to restore it exactly.
+     */
+    private void serialize(StringBuilder sb, Bundle bundle) {
+        for (Root tree : bundle.getTrees()) {
+            boolean addText = null != tree.getSentence() && !tree.getComments().contains(" text = " + tree.getSentence());
+
+            //flags are never empty, because trailing whitespace is trimmed by the reader
+            sb.append('#').append(TREE_HEADER).append(tree.getZone()).append(' ').append(NO_FLAGS);
+            if (null == tree.getSentId()) {
+                sb.append(NO_SENT_ID);
+            }
+            if (addText) {
+                sb.append(ADDED_TEXT);
+            }
+            sb.append('\n');
+            if (addText) {
+                sb.append("# text = ").append(tree.getSentence()).append('\n');
+            }
+
+            if (tree.getDescendants().isEmpty()) {
+                //CoNLLUWriter skips empty trees
+                if (null != tree.getNewDocId()) {
+                    sb.append("# newdoc id = ").append(tree.getNewDocId()).append('\n');
+                }
+                if (null != tree.getNewParId()) {
+                    sb.append("# newpar id = ").append(tree.getNewParId()).append('\n');
+                }
+                if (null != tree.getSentId()) {
+                    sb.append("# sent_id = ").append(tree.getSentId()).append('\n');
+                }
+                for (String comment : tree.getComments()) {
+                    sb.append('#').append(comment).append('\n');
+                }
+                sb.append('\n');
+            } else {
+                int start = sb.length();
+                writer.processTree(sb, tree);
+                if (null == tree.getSentId()) {
+                    //sent_id generated from the bundle id depends on the position of the bundle, not on its content
+                    String generated = "# sent_id = " + tree.getAddress() + "\n";
+                    int index = sb.indexOf(generated, start);
+                    if (-1 != index) {
+                        sb.delete(index, index + generated.length());
+                    }
+                }
+            }
+        }
+    }
+
+    private List<Root> deserialize(String content, Document document) {
+        List<Root> trees = new ArrayList<>();
+        CoNLLUReader reader = new CoNLLUReader(new StringReader(content));
+        BufferedReader bufferedReader = new BufferedReader(new StringReader(content));
+        Optional<Root> root = reader.readTree(bufferedReader, document);
+        while (root.isPresent()) {
+            Root tree = root.get();
+            List<String> comments = tree.getComments();
+            String header = comments.remove(0);
+            int flagsIndex = header.lastIndexOf(' ');
+            String flags = header.substring(flagsIndex + 1);
+            tree.setZone(header.substring(TREE_HEADER.length(), flagsIndex));
+            if (-1 != flags.indexOf(NO_SENT_ID)) {
+                tree.setSentId(null);
+            }
+            if (-1 != flags.indexOf(ADDED_TEXT)) {
+                comments.remove(0);
+            }
+            trees.add(tree);
+            root = reader.readTree(bufferedReader, document);
+        }
+        return trees;
+    }
+
+    /**
+     * Loads entries of the cache from the headers of the packs, access times from the index.
+     * Packs missing in the index (e.g. when the last process did not close the cache) use modification times.
+     */
+    private Map<String, Entry> entries() {
+        if (null != entries) {
+            return entries;
+        }
+        Map<String, Long> accessTimes = new HashMap<>();
+        Path index = directory.resolve(INDEX);
+        if (Files.exists(index)) {
+            try {
+                for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+                    int tab = line.indexOf('\t');
+                    if (-1 != tab) {
+                        accessTimes.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                //the index is only a hint
+                accessTimes.clear();
+            }
+        }
+
+        entries = new HashMap<>();
+        packs = new HashMap<>();
+        totalBytes = 0;
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : paths) {
+                try {
+                    long lastAccess = accessTimes.containsKey(path.getFileName().toString())
+                            ? accessTimes.get(path.getFileName().toString())
+                            : Files.getLastModifiedTime(path).toMillis();
+                    loadPack(path, lastAccess);
+                } catch (NoSuchFileException e) {
+                    //deleted concurrently
+                }
+            }
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to list cache directory '" + directory + "'.", e);
+        }
+        return entries;
+    }
+
+    private void loadPack(Path path, long lastAccess) throws IOException {
+        Pack pack = new Pack(path, Files.size(path), lastAccess);
+        List<String[]> lines = new ArrayList<>();
+        long headerLength;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(path), StandardCharsets.US_ASCII))) {
+            String count = reader.readLine();
+            if (null == count) {
+                throw new UdapiException("Corrupted cache pack '" + path + "'.");
+            }
+            headerLength = count.length() + 1;
+            for (int i = Integer.parseInt(count); i > 0; i--) {
+                String line = reader.readLine();
+                if (null == line) {
+                    throw new UdapiException("Corrupted cache pack '" + path + "'.");
+                }
+                headerLength += line.length() + 1;
+                lines.add(line.split(" "));
+            }
+        } catch (NumberFormatException e) {
+            throw new UdapiException("Corrupted cache pack '" + path + "'.", e);
+        }
+        addPack(pack);
+        for (String[] line : lines) {
+            entries.put(line[0], new Entry(pack, headerLength + Long.parseLong(line[1]), Integer.parseInt(line[2])));
+            pack.keys.add(line[0]);
+        }
+    }
+
+    private void addPack(Pack pack) {
+        packs.put(pack.path, pack);
+        totalBytes += pack.size;
+    }
+
+    private void removePack(Pack pack) {
+        if (null == packs.remove(pack.path)) {
+            return;
+        }
+        for (String key : pack.keys) {
+            //the key may have been stored again into a newer pack
+            Entry entry = entries.get(key);
+            if (null != entry && entry.pack == pack) {
+                entries.remove(key);
+            }
+        }
+        totalBytes -= pack.size;
+    }
+
+    /**
+     * Deletes least recently used packs.
+     */
+    private void evict() {
+        List<Pack> sorted = new ArrayList<>(packs.values());
+        sorted.sort((a, b) -> Long.compare(a.lastAccess, b.lastAccess));
+
+        long limit = (long) (maxBytes * EVICTION_RATIO);
+        for (Pack pack : sorted) {
+            if (totalBytes <= limit) {
+                break;
+            }
+            if (pack.path.equals(openPack)) {
+                closePack();
+            }
+            try {
+                Files.deleteIfExists(pack.path);
+            } catch (IOException e) {
+                throw new UdapiIOException("Failed to evict '" + pack.path + "' from cache.", e);
+            }
+            removePack(pack);
+        }
+    }
+
+    /**
+     * Pack file with several entries.
+     */
+    private static class Pack {
+        final Path path;
+        final long size;
+        final List<String> keys = new ArrayList<>();
+        long lastAccess;
+
+        Pack(Path path, long size, long lastAccess) {
+            this.path = path;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Location of a value in a pack.
+     */
+    private static class Entry {
+        final Pack pack;
+        final long offset;
+        final int length;
+
+        Entry(Pack pack, long offset, int length) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
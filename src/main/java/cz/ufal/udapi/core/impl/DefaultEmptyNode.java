@@ -21,6 +21,7 @@ public class DefaultEmptyNode extends DefaultNode implements EmptyNode {
 
     @Override
     public void setEmptyNodeId(String id) {
+        markModified();
         this.id = id;
     }
 
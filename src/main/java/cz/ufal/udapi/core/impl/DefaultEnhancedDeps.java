@@ -27,6 +27,12 @@ public class DefaultEnhancedDeps implements EnhancedDeps {
         this.root = root;
     }
 
+    private void markModified() {
+        if (root instanceof DefaultRoot) {
+            ((DefaultRoot) root).markModified();
+        }
+    }
+
     @Override
     public List<Dep> getDeps() {
 
@@ -55,6 +61,7 @@ public class DefaultEnhancedDeps implements EnhancedDeps {
     }
 
     public void setMapping(String value) {
+        markModified();
         if (null == value) {
             deps.clear();
         } else {
@@ -68,6 +75,7 @@ public class DefaultEnhancedDeps implements EnhancedDeps {
     }
 
     public void setMapping(List<Dep> value) {
+        markModified();
         if (null == value) {
             deps.clear();
         } else {
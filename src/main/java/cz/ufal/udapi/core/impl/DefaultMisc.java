@@ -1,6 +1,7 @@
 package cz.ufal.udapi.core.impl;
 
 import cz.ufal.udapi.core.Misc;
+import cz.ufal.udapi.core.Root;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -14,6 +15,7 @@ public class DefaultMisc implements Misc {
 
     private Map<String, String> map = new HashMap<>();
     private String stringRepresentation;
+    private Root root;
 
     private static final String PIPE = "|";
     private static final String EQUAL = "=";
@@ -23,7 +25,23 @@ public class DefaultMisc implements Misc {
         setMapping(value);
     }
 
+    /**
+     * @param value string representation
+     * @param root tree which is marked as modified when the mapping changes, may be null
+     */
+    public DefaultMisc(String value, Root root) {
+        setMapping(value);
+        this.root = root;
+    }
+
+    private void markModified() {
+        if (root instanceof DefaultRoot) {
+            ((DefaultRoot) root).markModified();
+        }
+    }
+
     public void setMapping(String value) {
+        markModified();
         if (null == value) {
             map.clear();
         } else {
@@ -37,6 +55,7 @@ public class DefaultMisc implements Misc {
     }
 
     public void setMapping(Map<String, String> value) {
+        markModified();
         if (null == value) {
             map.clear();
         } else {
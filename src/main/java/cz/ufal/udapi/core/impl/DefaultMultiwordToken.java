@@ -30,6 +30,7 @@ public class DefaultMultiwordToken implements MultiwordToken {
 
     @Override
     public void setWords(List<Node> words) {
+        markModified();
         this.words.clear();
         if (null != words) {
             this.words.addAll(words);
@@ -61,12 +62,20 @@ public class DefaultMultiwordToken implements MultiwordToken {
 
     @Override
     public void setForm(String form) {
+        markModified();
         this.form = form;
     }
 
     @Override
     public void setMisc(String misc) {
-        this.misc = new DefaultMisc(misc);
+        markModified();
+        this.misc = new DefaultMisc(misc, root);
+    }
+
+    private void markModified() {
+        if (root instanceof DefaultRoot) {
+            ((DefaultRoot) root).markModified();
+        }
     }
 
     @Override
@@ -1,6 +1,7 @@
 package cz.ufal.udapi.core.impl;
 
 import cz.ufal.udapi.core.*;
+import cz.ufal.udapi.core.io.Column;
 import cz.ufal.udapi.exception.UdapiException;
 
 import java.util.*;
@@ -20,15 +21,20 @@ public class DefaultNode implements Node {
     private int ord = -1;
     private boolean isRemoved;
 
-    private String form;
-    private String lemma;
-    private String upos;
-    private String xpos;
-    private String feats;
-    private String head;
-    private String deprel;
+    private NodeAttributes attributes = new NodeAttributes();
     private EnhancedDeps deps;
-    private String misc;
+
+    /**
+     * Enhanced deps of the node this node was copied from, used to create deps of this node when needed.
+     */
+    private String copiedDeps;
+
+    /**
+     * CoNLLU line of the node with columns which have not been parsed yet (see setUnparsedColumns), or null.
+     */
+    private String unparsedLine;
+    private Set<Column> unparsedColumns;
+
     private Optional<MultiwordToken> mwt = Optional.empty();
 
     private Optional<Node> firstChild = Optional.empty();
@@ -67,6 +73,7 @@ public class DefaultNode implements Node {
     public void remove(EnumSet<Node.RemoveArg> args) {
         //already removed
         if (isRemoved) return;
+        markModified();
 
         Optional<Node> parent = getParent();
         if (args.contains(RemoveArg.REHANG)) {
@@ -81,6 +88,14 @@ public class DefaultNode implements Node {
 
         List<Node> toRemove = getDescendantsF();
         toRemove.add(this);
+        if (isJournaling()) {
+            journalRoot().journalDescendants(0, tree.getDescendants().size());
+            journalRoot().journal(() -> {
+                for (Node removedNode : toRemove) {
+                    toDefaultNode(removedNode).isRemoved = false;
+                }
+            });
+        }
         if (!toRemove.isEmpty()) {
             List<Node> allNodes = tree.getDescendants();
             allNodes.removeAll(toRemove);
@@ -90,16 +105,9 @@ public class DefaultNode implements Node {
         }
 
         //Disconnect the node from its parent (& siblings) and delete all attributes
-        Optional<Node> node = toDefaultNode(parent.get()).getFirstChild();
-        if (node.isPresent() && node.get() == this) {
-            toDefaultNode(parent.get()).setFirstChild(this.getNextSibling());
-        } else {
-            while (node.isPresent() && (!node.get().getNextSibling().isPresent() || this != node.get().getNextSibling().get())) {
-                node = node.get().getNextSibling();
-            }
-            if (node.isPresent()) {
-                node.get().setNextSibling(getNextSibling());
-            }
+        Optional<Node> prevSibling = unlink(toDefaultNode(parent.get()));
+        if (isJournaling()) {
+            journalRelink(parent, prevSibling);
         }
 
         for (Node removedNode : toRemove) {
@@ -150,8 +158,13 @@ public class DefaultNode implements Node {
 
     protected Node createNode() {
         DefaultNode newNode = new DefaultNode(tree);
-        tree.getDescendants().add(newNode);
-        newNode.ord = tree.getDescendants().size();
+        List<Node> descendants = tree.getDescendants();
+        descendants.add(newNode);
+        newNode.ord = descendants.size();
+        markModified();
+        if (isJournaling()) {
+            journalRoot().journalStructure(() -> descendants.remove(descendants.size() - 1));
+        }
         return newNode;
     }
 
@@ -221,20 +234,15 @@ public class DefaultNode implements Node {
             }
         }
 
+        markModified();
         //Disconnect the node from its original parent
         Optional<Node> origParent = getParent();
+        Optional<Node> origPrevSibling = Optional.empty();
         if (origParent.isPresent()) {
-            Optional<Node> node = toDefaultNode(origParent.get()).getFirstChild();
-            if (node.isPresent() && this == node.get()) {
-                toDefaultNode(origParent.get()).setFirstChild(nextSibling);
-            } else {
-                while (node.isPresent() && (!node.get().getNextSibling().isPresent() || this != node.get().getNextSibling().get())) {
-                    node = node.get().getNextSibling();
-                }
-                if (node.isPresent()) {
-                    node.get().setNextSibling(nextSibling);
-                }
-            }
+            origPrevSibling = unlink(toDefaultNode(origParent.get()));
+        }
+        if (isJournaling()) {
+            journalRelink(origParent, origPrevSibling);
         }
 
         //Attach the node to its parent and linked list of siblings.
@@ -243,6 +251,92 @@ public class DefaultNode implements Node {
         toDefaultNode(parent).setFirstChild(Optional.of(this));
     }
 
+    /**
+     * Disconnects the node from the linked list of children of given parent.
+     *
+     * @param parent parent of the node
+     * @return previous sibling in the linked list, empty if the node was the first child (or not found)
+     */
+    private Optional<Node> unlink(DefaultNode parent) {
+        Optional<Node> node = parent.getFirstChild();
+        if (node.isPresent() && this == node.get()) {
+            parent.setFirstChild(nextSibling);
+            return Optional.empty();
+        }
+        while (node.isPresent() && (!node.get().getNextSibling().isPresent() || this != node.get().getNextSibling().get())) {
+            node = node.get().getNextSibling();
+        }
+        if (node.isPresent()) {
+            node.get().setNextSibling(nextSibling);
+        }
+        return node;
+    }
+
+    /**
+     * Records how to put the node back to its original place among the children of its original parent.
+     *
+     * @param origParent original parent
+     * @param origPrevSibling original previous sibling in the linked list of children
+     */
+    private void journalRelink(Optional<Node> origParent, Optional<Node> origPrevSibling) {
+        journalRoot().journalStructure(() -> {
+            if (parent.isPresent()) {
+                unlink(toDefaultNode(parent.get()));
+            }
+            parent = origParent;
+            if (!origParent.isPresent()) {
+                nextSibling = Optional.empty();
+            } else if (origPrevSibling.isPresent()) {
+                nextSibling = origPrevSibling.get().getNextSibling();
+                origPrevSibling.get().setNextSibling(Optional.of(this));
+            } else {
+                nextSibling = toDefaultNode(origParent.get()).getFirstChild();
+                toDefaultNode(origParent.get()).setFirstChild(Optional.of(this));
+            }
+        });
+    }
+
+    /**
+     * Restores links of the node. Used when a transaction is rolled back.
+     */
+    void restoreLinks(Optional<Node> parent, Optional<Node> firstChild, Optional<Node> nextSibling) {
+        this.parent = parent;
+        this.firstChild = firstChild;
+        this.nextSibling = nextSibling;
+    }
+
+    /**
+     * @return true if changes of the node are recorded in a transaction journal of its tree
+     */
+    private boolean isJournaling() {
+        return tree instanceof DefaultRoot && ((DefaultRoot) tree).isInTransaction();
+    }
+
+    private DefaultRoot journalRoot() {
+        return (DefaultRoot) tree;
+    }
+
+    /**
+     * Marks the tree of the node as modified, so that its raw lines are not used any more.
+     */
+    void markModified() {
+        if (tree instanceof DefaultRoot) {
+            ((DefaultRoot) tree).markModified();
+        }
+    }
+
+    /**
+     * Attaches a new node to its parent without checking cycles.
+     * Used when the whole tree is built at once and has already been validated.
+     *
+     * @param parent new parent of the node
+     */
+    void attachTo(DefaultNode parent) {
+        this.parent = Optional.of(parent);
+        this.nextSibling = parent.firstChild;
+        parent.firstChild = Optional.of(this);
+    }
+
     @Override
     public boolean isRoot() {
         return false;
@@ -511,6 +605,10 @@ public class DefaultNode implements Node {
         //without children means moving just one node, which is easier
         if (withoutChildren) {
             int myOrd = getOrd();
+            if (isJournaling()) {
+                journalRoot().journalDescendants(Math.min(myOrd, referenceOrd) - 1,
+                        Math.min(allNodes.size(), Math.max(myOrd, referenceOrd)));
+            }
             if (referenceOrd > myOrd + 1) {
                 for (int newOrd = myOrd; newOrd < referenceOrd - 1; newOrd++) {
                     Node ordNode = allNodes.get(newOrd);
@@ -536,6 +634,10 @@ public class DefaultNode implements Node {
         List<Node> nodesToMove = getDescendants(EnumSet.of(DescendantsArg.ADD_SELF));
         int firstOrd = nodesToMove.get(0).getOrd();
         int lastOrd = nodesToMove.get(nodesToMove.size() - 1).getOrd();
+        if (isJournaling()) {
+            journalRoot().journalDescendants(Math.min(firstOrd, referenceOrd) - 1,
+                    Math.min(allNodes.size(), Math.max(lastOrd, referenceOrd)));
+        }
 
         //TODO: optimization in case of no "gaps"
 
@@ -627,6 +729,13 @@ public class DefaultNode implements Node {
     }
 
     public void setOrd(int ord) {
+        if (this.ord != ord) {
+            markModified();
+            if (isJournaling()) {
+                int origOrd = this.ord;
+                journalRoot().journal(() -> this.ord = origOrd);
+            }
+        }
         this.ord = ord;
     }
 
@@ -635,75 +744,172 @@ public class DefaultNode implements Node {
     }
 
     public String getForm() {
-        return form;
+        parseColumns();
+        return attributes.form;
     }
 
     public void setForm(String form) {
-        this.form = form;
+        writableAttributes().form = form;
     }
 
     public String getLemma() {
-        return lemma;
+        parseColumns();
+        return attributes.lemma;
     }
 
     public void setLemma(String lemma) {
-        this.lemma = lemma;
+        writableAttributes().lemma = lemma;
     }
 
     public String getUpos() {
-        return upos;
+        parseColumns();
+        return attributes.upos;
     }
 
     public void setUpos(String upos) {
-        this.upos = upos;
+        writableAttributes().upos = upos;
     }
 
     public String getXpos() {
-        return xpos;
+        parseColumns();
+        return attributes.xpos;
     }
 
     public void setXpos(String xpos) {
-        this.xpos = xpos;
+        writableAttributes().xpos = xpos;
     }
 
     public String getFeats() {
-        return feats;
+        parseColumns();
+        return attributes.feats;
     }
 
     public void setFeats(String feats) {
-        this.feats = feats;
+        writableAttributes().feats = feats;
     }
 
     public String getHead() {
-        return head;
+        return attributes.head;
     }
 
     public void setHead(String head) {
-        this.head = head;
+        writableAttributes().head = head;
     }
 
     public String getDeprel() {
-        return deprel;
+        parseColumns();
+        return attributes.deprel;
     }
 
     public void setDeprel(String deprel) {
-        this.deprel = deprel;
+        writableAttributes().deprel = deprel;
     }
 
     public EnhancedDeps getDeps() {
+        parseColumns();
+        if (null == deps && null != copiedDeps) {
+            deps = new DefaultEnhancedDeps(copiedDeps, tree);
+            copiedDeps = null;
+        }
         return deps;
     }
 
     public void setDeps(EnhancedDeps deps) {
+        parseColumns();
+        markModified();
+        if (isJournaling()) {
+            EnhancedDeps origDeps = this.deps;
+            String origCopiedDeps = this.copiedDeps;
+            journalRoot().journal(() -> {
+                this.deps = origDeps;
+                this.copiedDeps = origCopiedDeps;
+            });
+        }
         this.deps = deps;
+        this.copiedDeps = null;
+    }
+
+    /**
+     * @return attributes which can be modified, copied first if they are shared with another node
+     */
+    private NodeAttributes writableAttributes() {
+        parseColumns();
+        markModified();
+        if (isJournaling()) {
+            //keep the original attributes for rollback, they are copied below
+            NodeAttributes origAttributes = attributes;
+            origAttributes.shared = true;
+            journalRoot().journal(() -> attributes = origAttributes);
+        }
+        if (attributes.shared) {
+            attributes = attributes.copy();
+        }
+        return attributes;
+    }
+
+    /**
+     * Makes this node share attributes with given node. Enhanced deps are copied lazily,
+     * because they refer to the nodes of their tree.
+     *
+     * @param source node to share attributes with
+     */
+    void shareAttributes(DefaultNode source) {
+        source.parseColumns();
+        source.attributes.shared = true;
+        attributes = source.attributes;
+        deps = null;
+        copiedDeps = null != source.deps ? source.deps.toStringFormat() : source.copiedDeps;
+    }
+
+    /**
+     * Sets columns which were not parsed by the reader (column projection). They are parsed
+     * from the line when any of them is accessed or any attribute is changed, so they are never lost.
+     * Used by readers after the tree is built, the node is not modified by this method.
+     *
+     * @param line CoNLLU line of the node
+     * @param columns columns not parsed yet, any of FORM, LEMMA, UPOS, XPOS, FEATS, DEPREL, DEPS and MISC
+     */
+    public void setUnparsedColumns(String line, Set<Column> columns) {
+        this.unparsedLine = line;
+        this.unparsedColumns = columns;
+    }
+
+    /**
+     * Parses columns left by the reader.
+     */
+    private void parseColumns() {
+        if (null == unparsedLine) {
+            return;
+        }
+        String[] fields = unparsedLine.split("\t", 10);
+        unparsedLine = null;
+        for (Column column : unparsedColumns) {
+            switch (column) {
+                case FORM: attributes.form = fields[1]; break;
+                case LEMMA: attributes.lemma = fields[2]; break;
+                case UPOS: attributes.upos = fields[3]; break;
+                case XPOS: attributes.xpos = fields[4]; break;
+                case FEATS: attributes.feats = fields[5]; break;
+                case DEPREL: attributes.deprel = fields[7]; break;
+                case DEPS:
+                    if (null == deps && null == copiedDeps) {
+                        copiedDeps = fields[8];
+                    }
+                    break;
+                case MISC: attributes.misc = 10 == fields.length ? fields[9] : null; break;
+                default: break;
+            }
+        }
+        unparsedColumns = null;
     }
 
     public String getMisc() {
-        return misc;
+        parseColumns();
+        return attributes.misc;
     }
 
     public void setMisc(String misc) {
-        this.misc = misc;
+        writableAttributes().misc = misc;
     }
 
     @Override
@@ -713,11 +919,16 @@ public class DefaultNode implements Node {
 
     @Override
     public void setMwt(MultiwordToken mwt) {
+        markModified();
+        if (isJournaling()) {
+            Optional<MultiwordToken> origMwt = this.mwt;
+            journalRoot().journal(() -> this.mwt = origMwt);
+        }
         this.mwt = Optional.of(mwt);
     }
 
     @Override
     public String toString() {
-        return "DefaultNode[ord='" + ord + "', form='" + form + "']";
+        return "DefaultNode[ord='" + ord + "', form='" + getForm() + "']";
     }
 }
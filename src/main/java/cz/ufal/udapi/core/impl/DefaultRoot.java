@@ -2,9 +2,12 @@ package cz.ufal.udapi.core.impl;
 
 import cz.ufal.udapi.core.*;
 import cz.ufal.udapi.core.io.UdapiIOException;
+import cz.ufal.udapi.exception.UdapiException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
 
 /**
  * Implementation of Root.
@@ -33,6 +36,35 @@ public class DefaultRoot implements Root {
     private boolean isNewDoc;
     private boolean isNewPar;
 
+    /**
+     * Undo records of the current transaction, null if there is no transaction.
+     */
+    private List<Runnable> journal;
+
+    /**
+     * True if the structure (order of the nodes or their parents) has changed in the current transaction.
+     */
+    private boolean structuralChanges;
+
+    /**
+     * Lines of the sentence as read from the input, null if not available.
+     */
+    private List<String> rawLines;
+
+    /**
+     * Comments, empty nodes, multiword tokens and number of nodes when the raw lines were set,
+     * the lists can be modified directly, so they are compared in isModified.
+     */
+    private List<String> rawComments;
+    private List<EmptyNode> rawEmptyNodes;
+    private List<MultiwordToken> rawMultiwords;
+    private int rawSize;
+
+    /**
+     * True if the tree has been modified since the raw lines were set.
+     */
+    private boolean modified;
+
     public DefaultRoot(Document document) {
         this.document = document;
         this.node = createNode();
@@ -85,6 +117,7 @@ public class DefaultRoot implements Root {
 
     @Override
     public void setSentId(String sentId) {
+        markModified();
         if (null != bundle) {
             String[] parts = sentId.split("/", 1);
             bundle.setId(parts[0]);
@@ -112,10 +145,57 @@ public class DefaultRoot implements Root {
         return zone;
     }
 
+    /**
+     * Creates a copy of the tree, including multiword tokens, empty nodes, comments and enhanced deps.
+     *
+     * The copy is built in one pass over the nodes in word order. Attributes of the nodes are shared
+     * with this tree and copied only when they are modified in either tree (copy-on-write).
+     *
+     * @return copy of the tree
+     */
     @Override
     public Root copyTree() {
         DefaultRoot newRoot = new DefaultRoot(document, bundle);
-        copySubtree(getNode(), newRoot.getNode());
+        newRoot.zone = zone;
+        newRoot.comments.addAll(comments);
+        newRoot.text = text;
+        newRoot.id = id;
+        newRoot.sentId = sentId;
+        newRoot.newParId = newParId;
+        newRoot.newDocId = newDocId;
+        newRoot.isNewDoc = isNewDoc;
+        newRoot.isNewPar = isNewPar;
+
+        int size = descendants.size();
+        DefaultNode[] newNodes = new DefaultNode[size + 1];
+        newNodes[0] = (DefaultNode) newRoot.node;
+        ((ArrayList<Node>) newRoot.descendants).ensureCapacity(size);
+        for (int i = 0; i < size; i++) {
+            DefaultNode newNode = new DefaultNode(newRoot);
+            newNode.setOrd(i + 1);
+            newNode.shareAttributes((DefaultNode) descendants.get(i));
+            newNodes[i + 1] = newNode;
+            newRoot.descendants.add(newNode);
+        }
+        for (int i = 1; i <= size; i++) {
+            newNodes[i].attachTo(newNodes[descendants.get(i - 1).getParent().get().getOrd()]);
+        }
+
+        for (MultiwordToken mwt : multiwords) {
+            List<Node> words = new ArrayList<>(mwt.getWords().size());
+            for (Node word : mwt.getWords()) {
+                words.add(newNodes[word.getOrd()]);
+            }
+            newRoot.addMultiword(words, mwt.getForm(), null != mwt.getMisc() ? mwt.getMisc().toStringFormat() : null);
+        }
+
+        for (EmptyNode emptyNode : emptyNodes) {
+            DefaultEmptyNode newEmptyNode = new DefaultEmptyNode(newRoot);
+            newEmptyNode.shareAttributes((DefaultNode) emptyNode);
+            newEmptyNode.setEmptyNodeId(emptyNode.getEmptyNodeId());
+            newRoot.emptyNodes.add(newEmptyNode);
+        }
+
         return newRoot;
     }
 
@@ -164,6 +244,276 @@ public class DefaultRoot implements Root {
         return node.createChild();
     }
 
+    @Override
+    public List<Node> buildTree(int[] heads, String[] forms, String[] lemmas, String[] upos, String[] xpos,
+                                String[] feats, String[] deprels, String[] deps, String[] misc) {
+        if (!descendants.isEmpty()) {
+            throw new UdapiException("Tree " + getAddress() + " is not empty.");
+        }
+        markModified();
+
+        int size = heads.length;
+        checkLength(forms, size, "forms");
+        checkLength(lemmas, size, "lemmas");
+        checkLength(upos, size, "upos");
+        checkLength(xpos, size, "xpos");
+        checkLength(feats, size, "feats");
+        checkLength(deprels, size, "deprels");
+        checkLength(deps, size, "deps");
+        checkLength(misc, size, "misc");
+
+        checkHeadsRange(heads);
+        int cycleOrd = findCycle(heads);
+        if (-1 != cycleOrd) {
+            throw new UdapiException("Tree " + getAddress() + ": Attempt to set parent of " + cycleOrd
+                    + " to the node " + heads[cycleOrd - 1] + ", which would lead to a cycle.");
+        }
+
+        if (isInTransaction()) {
+            journalStructure(() -> {
+                descendants.clear();
+                ((DefaultNode) node).setFirstChild(Optional.empty());
+            });
+        }
+
+        DefaultNode[] nodes = new DefaultNode[size + 1];
+        nodes[0] = (DefaultNode) node;
+        if (descendants instanceof ArrayList) {
+            ((ArrayList<Node>) descendants).ensureCapacity(size);
+        }
+        for (int i = 0; i < size; i++) {
+            DefaultNode newNode = new DefaultNode(this);
+            newNode.setOrd(i + 1);
+            newNode.setHead(String.valueOf(heads[i]));
+            if (null != forms) newNode.setForm(forms[i]);
+            if (null != lemmas) newNode.setLemma(lemmas[i]);
+            if (null != upos) newNode.setUpos(upos[i]);
+            if (null != xpos) newNode.setXpos(xpos[i]);
+            if (null != feats) newNode.setFeats(feats[i]);
+            if (null != deprels) newNode.setDeprel(deprels[i]);
+            if (null != deps) newNode.setDeps(new DefaultEnhancedDeps(deps[i], this));
+            if (null != misc) newNode.setMisc(misc[i]);
+            nodes[i + 1] = newNode;
+            descendants.add(newNode);
+        }
+
+        for (int i = 1; i <= size; i++) {
+            nodes[i].attachTo(nodes[heads[i - 1]]);
+        }
+
+        return descendants;
+    }
+
+    private void checkLength(String[] values, int size, String name) {
+        if (null != values && values.length != size) {
+            throw new UdapiException("Tree " + getAddress() + ": " + name + " has " + values.length
+                    + " items, but there are " + size + " heads.");
+        }
+    }
+
+    @Override
+    public void setHeads(int[] heads) {
+        setHeads(heads, null, false);
+    }
+
+    @Override
+    public void setHeads(int[] heads, String[] deprels, boolean skipCycles) {
+        int size = descendants.size();
+        if (heads.length != size) {
+            throw new UdapiException("Tree " + getAddress() + ": there are " + heads.length + " heads, but "
+                    + size + " nodes.");
+        }
+        checkLength(deprels, size, "deprels");
+        checkHeadsRange(heads);
+
+        DefaultNode[] nodes = new DefaultNode[size + 1];
+        nodes[0] = (DefaultNode) node;
+        for (int i = 0; i < size; i++) {
+            nodes[i + 1] = (DefaultNode) descendants.get(i);
+        }
+
+        int[] newHeads = heads;
+        boolean[] skipped = null;
+        if (!skipCycles) {
+            int cycleOrd = findCycle(heads);
+            if (-1 != cycleOrd) {
+                throw new UdapiException("Tree " + getAddress() + ": Attempt to set parent of " + cycleOrd
+                        + " to the node " + heads[cycleOrd - 1] + ", which would lead to a cycle.");
+            }
+        } else {
+            //apply the heads in ord order against the evolving tree, as sequential setParent(parent, true) calls do
+            newHeads = new int[size];
+            for (int i = 1; i <= size; i++) {
+                newHeads[i - 1] = nodes[i].getParent().get().getOrd();
+            }
+            for (int i = 1; i <= size; i++) {
+                int head = heads[i - 1];
+                int ancestor = head;
+                while (0 != ancestor && i != ancestor) {
+                    ancestor = newHeads[ancestor - 1];
+                }
+                if (i == ancestor) {
+                    if (null == skipped) {
+                        skipped = new boolean[size + 1];
+                    }
+                    skipped[i] = true;
+                } else {
+                    newHeads[i - 1] = head;
+                }
+            }
+        }
+
+        markModified();
+        if (isInTransaction()) {
+            journalLinks(nodes);
+        }
+        for (DefaultNode n : nodes) {
+            n.setFirstChild(Optional.empty());
+        }
+        for (int i = 1; i <= size; i++) {
+            nodes[i].attachTo(nodes[newHeads[i - 1]]);
+            if (null != deprels && (null == skipped || !skipped[i])) {
+                nodes[i].setDeprel(deprels[i - 1]);
+            }
+        }
+    }
+
+    /**
+     * Records parents and linked lists of children of given nodes.
+     */
+    private void journalLinks(DefaultNode[] nodes) {
+        int size = nodes.length;
+        List<Optional<Node>> links = new ArrayList<>(3 * size);
+        for (DefaultNode n : nodes) {
+            links.add(n.getParent());
+            links.add(n.getFirstChild());
+            links.add(n.getNextSibling());
+        }
+        journalStructure(() -> {
+            for (int i = 0; i < size; i++) {
+                nodes[i].restoreLinks(links.get(3 * i), links.get(3 * i + 1), links.get(3 * i + 2));
+            }
+        });
+    }
+
+    private void checkHeadsRange(int[] heads) {
+        int size = heads.length;
+        for (int i = 0; i < size; i++) {
+            if (heads[i] < 0 || heads[i] > size) {
+                throw new UdapiException("Tree " + getAddress() + ": head " + heads[i] + " of node " + (i + 1)
+                        + " is out of range.");
+            }
+        }
+    }
+
+    /**
+     * Finds a cycle in the heads in linear time. Every node is visited at most twice.
+     *
+     * @param heads ords of the parents, all in range
+     * @return ord of a node on a cycle, -1 if heads form a tree rooted in the technical root
+     */
+    private static int findCycle(int[] heads) {
+        int size = heads.length;
+        //0 = not visited, 1 = on the current path, 2 = connected to the root
+        byte[] state = new byte[size + 1];
+        state[0] = 2;
+        for (int start = 1; start <= size; start++) {
+            int ord = start;
+            while (0 == state[ord]) {
+                state[ord] = 1;
+                ord = heads[ord - 1];
+            }
+            if (1 == state[ord]) {
+                return ord;
+            }
+            ord = start;
+            while (1 == state[ord]) {
+                state[ord] = 2;
+                ord = heads[ord - 1];
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void beginTransaction() {
+        if (null != journal) {
+            throw new UdapiException("Tree " + getAddress() + " is already in a transaction.");
+        }
+        journal = new ArrayList<>();
+        structuralChanges = false;
+    }
+
+    @Override
+    public void commit() {
+        checkTransaction();
+        journal = null;
+        structuralChanges = false;
+    }
+
+    @Override
+    public void rollback() {
+        checkTransaction();
+        List<Runnable> undoRecords = journal;
+        //undo must not be journaled
+        journal = null;
+        structuralChanges = false;
+        for (int i = undoRecords.size() - 1; i >= 0; i--) {
+            undoRecords.get(i).run();
+        }
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return null != journal;
+    }
+
+    @Override
+    public boolean hasStructuralChanges() {
+        return structuralChanges;
+    }
+
+    private void checkTransaction() {
+        if (null == journal) {
+            throw new UdapiException("Tree " + getAddress() + " is not in a transaction.");
+        }
+    }
+
+    /**
+     * Appends undo record to the journal of the current transaction.
+     *
+     * @param undo action which reverts a change
+     */
+    void journal(Runnable undo) {
+        journal.add(undo);
+    }
+
+    /**
+     * Appends undo record of a change of the order of the nodes or of their parents.
+     *
+     * @param undo action which reverts the change
+     */
+    void journalStructure(Runnable undo) {
+        structuralChanges = true;
+        journal.add(undo);
+    }
+
+    /**
+     * Records the nodes at given positions of the descendants (word order) before they are moved.
+     * The rest of the descendants is expected to keep its length until the record is undone.
+     *
+     * @param fromIndex first position (inclusive)
+     * @param toIndex last position (exclusive)
+     */
+    void journalDescendants(int fromIndex, int toIndex) {
+        Node[] saved = descendants.subList(fromIndex, toIndex).toArray(new Node[toIndex - fromIndex]);
+        int tailSize = descendants.size() - toIndex;
+        journalStructure(() -> {
+            descendants.subList(fromIndex, descendants.size() - tailSize).clear();
+            descendants.addAll(fromIndex, Arrays.asList(saved));
+        });
+    }
+
     @Override
     public String getForm() {
         return node.getForm();
@@ -206,6 +556,7 @@ public class DefaultRoot implements Root {
 
     @Override
     public void setNewParId(String newParId) {
+        markModified();
         this.newParId = newParId;
     }
 
@@ -216,6 +567,7 @@ public class DefaultRoot implements Root {
 
     @Override
     public void setNewDocId(String newDocId) {
+        markModified();
         this.newDocId = newDocId;
     }
 
@@ -231,6 +583,7 @@ public class DefaultRoot implements Root {
 
     @Override
     public void setEmptyNodes(List<EmptyNode> emptyNodes) {
+        markModified();
         this.emptyNodes.clear();
         if (null != emptyNodes) {
             this.emptyNodes.addAll(emptyNodes);
@@ -244,6 +597,7 @@ public class DefaultRoot implements Root {
 
     @Override
     public void setIsNewDoc(boolean isNewDoc) {
+        markModified();
         this.isNewDoc = isNewDoc;
     }
 
@@ -254,27 +608,12 @@ public class DefaultRoot implements Root {
 
     @Override
     public void setIsNewPar(boolean isNewPar) {
+        markModified();
         this.isNewPar = isNewPar;
     }
 
-    private void copySubtree(Node oldNode, Node newNode) {
-        for (Node child : oldNode.getChildren()) {
-            Node newChild = newNode.createChild();
-            newChild.setDeps(child.getDeps());
-            newChild.setDeprel(child.getDeprel());
-            newChild.setFeats(child.getFeats());
-            newChild.setForm(child.getForm());
-            newChild.setHead(child.getHead());
-            newChild.setLemma(child.getLemma());
-            newChild.setMisc(child.getMisc());
-            newChild.setOrd(child.getOrd());
-            newChild.setUpos(child.getUpos());
-            newChild.setXpos(child.getXpos());
-            copySubtree(child, newChild);
-        }
-    }
-
     public void addComment(String comment) {
+        markModified();
         this.comments.add(comment);
     }
 
@@ -284,11 +623,12 @@ public class DefaultRoot implements Root {
 
     @Override
     public void addMultiword(List<Node> words, String form, String misc) {
+        markModified();
         MultiwordToken newMwt = new DefaultMultiwordToken();
+        newMwt.setRoot(this);
         newMwt.setWords(words);
         newMwt.setForm(form);
         newMwt.setMisc(misc);
-        newMwt.setRoot(this);
 
         words.forEach(m -> m.setMwt(newMwt));
 
@@ -301,6 +641,7 @@ public class DefaultRoot implements Root {
 
     @Override
     public void setSentence(String sentenceText) {
+        markModified();
         this.text = sentenceText;
     }
 
@@ -309,5 +650,42 @@ public class DefaultRoot implements Root {
         return text;
     }
 
+    @Override
+    public void setRawLines(List<String> rawLines) {
+        this.rawLines = rawLines;
+        if (null != rawLines) {
+            rawComments = new ArrayList<>(comments);
+            rawEmptyNodes = new ArrayList<>(emptyNodes);
+            rawMultiwords = new ArrayList<>(multiwords);
+            rawSize = descendants.size();
+        } else {
+            rawComments = null;
+            rawEmptyNodes = null;
+            rawMultiwords = null;
+        }
+        modified = false;
+    }
+
+    @Override
+    public List<String> getRawLines() {
+        return isModified() ? null : rawLines;
+    }
+
+    @Override
+    public boolean isModified() {
+        if (!modified && null != rawLines && (rawSize != descendants.size() || !comments.equals(rawComments)
+                || !emptyNodes.equals(rawEmptyNodes) || !multiwords.equals(rawMultiwords))) {
+            modified = true;
+        }
+        return modified || null == rawLines;
+    }
+
+    /**
+     * Marks the tree as modified, called by every change of the tree, its nodes, multiword tokens and empty nodes.
+     */
+    void markModified() {
+        modified = true;
+    }
+
 
 }
@@ -0,0 +1,42 @@
+package cz.ufal.udapi.core.impl;
+
+/**
+ * Attributes of a node.
+ *
+ * Attributes can be shared by nodes of a tree and of its copy (see DefaultRoot.copyTree).
+ * Shared attributes are never modified, the node copies them before the first change (copy-on-write).
+ *
+ * @author Martin Vojtek
+ */
+class NodeAttributes {
+
+    String form;
+    String lemma;
+    String upos;
+    String xpos;
+    String feats;
+    String head;
+    String deprel;
+    String misc;
+
+    /**
+     * True if the attributes are used by more than one node.
+     */
+    boolean shared;
+
+    /**
+     * @return unshared copy of the attributes
+     */
+    NodeAttributes copy() {
+        NodeAttributes copy = new NodeAttributes();
+        copy.form = form;
+        copy.lemma = lemma;
+        copy.upos = upos;
+        copy.xpos = xpos;
+        copy.feats = feats;
+        copy.head = head;
+        copy.deprel = deprel;
+        copy.misc = misc;
+        return copy;
+    }
+}
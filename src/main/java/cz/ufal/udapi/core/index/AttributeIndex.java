@@ -0,0 +1,350 @@
+package cz.ufal.udapi.core.index;
+
+import cz.ufal.udapi.core.Node;
+import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.io.UdapiIOException;
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Inverted index of node attributes.
+ *
+ * For each term (form, lemma, upos, deprel or a single feature, e.g. lemma=dog or feats=Number=Plur)
+ * the index keeps a postings list of nodes having the term. A node is identified by the number of its tree
+ * (position of the tree in the indexed corpus, starting with 0) and its ord.
+ * Postings are compressed with delta and variable-byte encoding.
+ *
+ * Example usage:
+ * <code>
+ *     AttributeIndex index = AttributeIndex.load(path);
+ *     int[] trees = index.searchTrees("lemma=be &amp; (deprel=cop | deprel=aux) &amp; !feats=Polarity=Neg");
+ * </code>
+ *
+ * @author Martin Vojtek
+ */
+public class AttributeIndex {
+
+    public static final String FORM = "form";
+    public static final String LEMMA = "lemma";
+    public static final String UPOS = "upos";
+    public static final String DEPREL = "deprel";
+    public static final String FEATS = "feats";
+
+    private static final int MAGIC = 0x55444958; //UDIX
+    private static final int VERSION = 1;
+
+    private static final char EQUALS = '=';
+    private static final char PIPE = '|';
+    private static final String UNDERSCORE = "_";
+
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    /**
+     * Number of nodes of each indexed tree.
+     */
+    private int[] treeSizes = new int[1024];
+    private int numberOfTrees;
+
+    /**
+     * Adds nodes of the tree to the index. The tree gets the next tree number.
+     *
+     * @param tree tree to index
+     * @return number of the tree
+     */
+    public int add(Root tree) {
+        int treeNumber = numberOfTrees;
+        if (treeNumber == treeSizes.length) {
+            treeSizes = Arrays.copyOf(treeSizes, 2 * treeNumber);
+        }
+        treeSizes[treeNumber] = tree.getDescendants().size();
+        numberOfTrees++;
+
+        for (Node node : tree.getDescendants()) {
+            int ord = node.getOrd();
+            addPosting(FORM, node.getForm(), treeNumber, ord);
+            addPosting(LEMMA, node.getLemma(), treeNumber, ord);
+            addPosting(UPOS, node.getUpos(), treeNumber, ord);
+            addPosting(DEPREL, node.getDeprel(), treeNumber, ord);
+
+            String feats = node.getFeats();
+            if (null != feats && !UNDERSCORE.equals(feats)) {
+                int start = 0;
+                while (start < feats.length()) {
+                    int end = feats.indexOf(PIPE, start);
+                    if (-1 == end) {
+                        end = feats.length();
+                    }
+                    if (end > start) {
+                        addPosting(FEATS, feats.substring(start, end), treeNumber, ord);
+                    }
+                    start = end + 1;
+                }
+            }
+        }
+        return treeNumber;
+    }
+
+    private void addPosting(String attribute, String value, int tree, int ord) {
+        if (null == value) {
+            return;
+        }
+        postings.computeIfAbsent(attribute + EQUALS + value, k -> new Postings()).add(tree, ord);
+    }
+
+    /**
+     * @return number of indexed trees
+     */
+    public int getNumberOfTrees() {
+        return numberOfTrees;
+    }
+
+    /**
+     * @return number of indexed nodes
+     */
+    public long getNumberOfNodes() {
+        long size = 0;
+        for (int tree = 0; tree < numberOfTrees; tree++) {
+            size += treeSizes[tree];
+        }
+        return size;
+    }
+
+    /**
+     * @param attribute form, lemma, upos, deprel or feats
+     * @param value value of the attribute, a single feature (e.g. Number=Sing) for feats
+     * @return number of nodes having the value
+     */
+    public int getFrequency(String attribute, String value) {
+        Postings p = postings.get(attribute + EQUALS + value);
+        return null == p ? 0 : p.size;
+    }
+
+    /**
+     * Finds nodes matching the query.
+     *
+     * Query is a boolean expression over terms attribute=value, with operators &amp; (and), | (or),
+     * ! (not) and parentheses, e.g. "lemma=dog &amp; !(deprel=nsubj | feats=Number=Plur)".
+     *
+     * @param query query
+     * @return matching nodes in increasing order, see tree(long) and ord(long)
+     */
+    public long[] search(String query) {
+        return new IndexQuery(query, this).evaluate();
+    }
+
+    /**
+     * @param query query, see search(String)
+     * @return numbers of trees with at least one matching node in increasing order
+     */
+    public int[] searchTrees(String query) {
+        return trees(search(query));
+    }
+
+    private static int[] trees(long[] nodes) {
+        int[] trees = new int[nodes.length];
+        int size = 0;
+        for (long node : nodes) {
+            int tree = tree(node);
+            if (0 == size || trees[size - 1] != tree) {
+                trees[size++] = tree;
+            }
+        }
+        return Arrays.copyOf(trees, size);
+    }
+
+    /**
+     * @param attribute form, lemma, upos, deprel or feats
+     * @param value value of the attribute, a single feature (e.g. Number=Sing) for feats
+     * @return numbers of trees with a node having the value in increasing order
+     */
+    public int[] getTrees(String attribute, String value) {
+        return trees(postings(attribute + EQUALS + value));
+    }
+
+    /**
+     * @param node node returned by search
+     * @return number of the tree of the node
+     */
+    public static int tree(long node) {
+        return (int) (node >>> 32);
+    }
+
+    /**
+     * @param node node returned by search
+     * @return ord of the node
+     */
+    public static int ord(long node) {
+        return (int) node;
+    }
+
+    static long node(int tree, int ord) {
+        return ((long) tree << 32) | (ord & 0xffffffffL);
+    }
+
+    /**
+     * @param term attribute=value
+     * @return decoded postings of the term
+     */
+    long[] postings(String term) {
+        int eq = term.indexOf(EQUALS);
+        if (-1 == eq) {
+            throw new UdapiException("Invalid term '" + term + "', expected attribute=value.");
+        }
+        String attribute = term.substring(0, eq);
+        if (!FORM.equals(attribute) && !LEMMA.equals(attribute) && !UPOS.equals(attribute)
+                && !DEPREL.equals(attribute) && !FEATS.equals(attribute)) {
+            throw new UdapiException("Attribute '" + attribute + "' is not indexed.");
+        }
+        Postings p = postings.get(term);
+        return null == p ? new long[0] : p.decode();
+    }
+
+    /**
+     * @return all indexed nodes
+     */
+    long[] allNodes() {
+        long[] nodes = new long[(int) getNumberOfNodes()];
+        int i = 0;
+        for (int tree = 0; tree < numberOfTrees; tree++) {
+            for (int ord = 1; ord <= treeSizes[tree]; ord++) {
+                nodes[i++] = node(tree, ord);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Saves the index into the file.
+     *
+     * @param path where to save
+     */
+    public void save(Path path) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numberOfTrees);
+            for (int tree = 0; tree < numberOfTrees; tree++) {
+                out.writeInt(treeSizes[tree]);
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+                Postings p = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(p.size);
+                out.writeInt(p.length);
+                out.write(p.bytes, 0, p.length);
+            }
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to save index '" + path + "'.", e);
+        }
+    }
+
+    /**
+     * Loads index saved by save(Path).
+     * Loaded index can be searched, but no trees should be added to it.
+     *
+     * @param path file with the index
+     * @return loaded index
+     */
+    public static AttributeIndex load(Path path) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+                throw new UdapiIOException("File '" + path + "' is not a Udapi index.");
+            }
+            AttributeIndex index = new AttributeIndex();
+            index.numberOfTrees = in.readInt();
+            index.treeSizes = new int[Math.max(1, index.numberOfTrees)];
+            for (int tree = 0; tree < index.numberOfTrees; tree++) {
+                index.treeSizes[tree] = in.readInt();
+            }
+            int terms = in.readInt();
+            for (int i = 0; i < terms; i++) {
+                String term = in.readUTF();
+                Postings p = new Postings();
+                p.size = in.readInt();
+                p.length = in.readInt();
+                p.bytes = new byte[p.length];
+                in.readFully(p.bytes);
+                index.postings.put(term, p);
+            }
+            return index;
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to load index '" + path + "'.", e);
+        }
+    }
+
+    /**
+     * Postings list compressed with variable-byte encoding.
+     *
+     * Each posting is stored as the difference of tree numbers followed by the ord
+     * (or by the difference of ords if the tree is the same as in the previous posting).
+     */
+    private static class Postings {
+        byte[] bytes = new byte[8];
+        int length;
+        int size;
+        int lastTree;
+        int lastOrd;
+
+        void add(int tree, int ord) {
+            int treeDelta = tree - lastTree;
+            writeVarInt(treeDelta);
+            writeVarInt(0 == treeDelta && size > 0 ? ord - lastOrd : ord);
+            lastTree = tree;
+            lastOrd = ord;
+            size++;
+        }
+
+        private void writeVarInt(int value) {
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * bytes.length + 5);
+            }
+            while ((value & ~0x7f) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        long[] decode() {
+            long[] nodes = new long[size];
+            int[] position = new int[1];
+            int tree = 0;
+            int ord = 0;
+            for (int i = 0; i < size; i++) {
+                int treeDelta = readVarInt(position);
+                int ordValue = readVarInt(position);
+                if (0 == treeDelta && i > 0) {
+                    ord += ordValue;
+                } else {
+                    tree += treeDelta;
+                    ord = ordValue;
+                }
+                nodes[i] = node(tree, ord);
+            }
+            return nodes;
+        }
+
+        private int readVarInt(int[] position) {
+            int result = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position[0]++];
+                result |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package cz.ufal.udapi.core.index;
+
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.util.Arrays;
+
+/**
+ * Boolean query over an attribute index.
+ *
+ * Grammar:
+ * <code>
+ *     or   := and ('|' and)*
+ *     and  := not ('&amp;' not)*
+ *     not  := '!' not | '(' or ')' | term
+ *     term := attribute=value
+ * </code>
+ *
+ * @author Martin Vojtek
+ */
+class IndexQuery {
+
+    private final String query;
+    private final AttributeIndex index;
+    private int position;
+
+    IndexQuery(String query, AttributeIndex index) {
+        this.query = query;
+        this.index = index;
+    }
+
+    /**
+     * @return matching nodes in increasing order
+     */
+    long[] evaluate() {
+        long[] result = parseOr();
+        skipWhitespace();
+        if (position < query.length()) {
+            throw error("Unexpected '" + query.charAt(position) + "'");
+        }
+        return result;
+    }
+
+    private long[] parseOr() {
+        long[] result = parseAnd();
+        while (accept('|')) {
+            result = union(result, parseAnd());
+        }
+        return result;
+    }
+
+    private long[] parseAnd() {
+        long[] result = parseNot();
+        while (accept('&')) {
+            result = intersection(result, parseNot());
+        }
+        return result;
+    }
+
+    private long[] parseNot() {
+        if (accept('!')) {
+            return difference(index.allNodes(), parseNot());
+        }
+        if (accept('(')) {
+            long[] result = parseOr();
+            if (!accept(')')) {
+                throw error("Missing ')'");
+            }
+            return result;
+        }
+        return parseTerm();
+    }
+
+    private long[] parseTerm() {
+        skipWhitespace();
+        int start = position;
+        while (position < query.length() && !isOperator(query.charAt(position))
+                && !Character.isWhitespace(query.charAt(position))) {
+            position++;
+        }
+        if (start == position) {
+            throw error("Missing term");
+        }
+        return index.postings(query.substring(start, position));
+    }
+
+    private static boolean isOperator(char c) {
+        return '&' == c || '|' == c || '!' == c || '(' == c || ')' == c;
+    }
+
+    private boolean accept(char c) {
+        skipWhitespace();
+        if (position < query.length() && c == query.charAt(position)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (position < query.length() && Character.isWhitespace(query.charAt(position))) {
+            position++;
+        }
+    }
+
+    private UdapiException error(String message) {
+        return new UdapiException(message + " at position " + position + " of query '" + query + "'.");
+    }
+
+    static long[] intersection(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    static long[] union(long[] a, long[] b) {
+        long[] result = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[size++] = a[i++];
+            } else if (i == a.length || a[i] > b[j]) {
+                result[size++] = b[j++];
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    static long[] difference(long[] a, long[] b) {
+        long[] result = new long[a.length];
+        int j = 0;
+        int size = 0;
+        for (long value : a) {
+            while (j < b.length && b[j] < value) {
+                j++;
+            }
+            if (j == b.length || b[j] != value) {
+                result[size++] = value;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+}
@@ -0,0 +1,39 @@
+package cz.ufal.udapi.core.io;
+
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * Columns of the CoNLLU format.
+ *
+ * Used for column projection, i.e. to tell readers which columns are needed by the following blocks.
+ *
+ * @author Martin Vojtek
+ */
+public enum Column {
+    ID, FORM, LEMMA, UPOS, XPOS, FEATS, HEAD, DEPREL, DEPS, MISC;
+
+    /**
+     * Parses comma separated names of columns, e.g. "form,head,deprel". Case is ignored.
+     *
+     * @param columns names of columns
+     * @return set of the columns
+     */
+    public static EnumSet<Column> parse(String columns) {
+        EnumSet<Column> result = EnumSet.noneOf(Column.class);
+        for (String column : columns.split(",")) {
+            String name = column.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            try {
+                result.add(valueOf(name.toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw new UdapiException("Unknown column: " + name);
+            }
+        }
+        return result;
+    }
+}
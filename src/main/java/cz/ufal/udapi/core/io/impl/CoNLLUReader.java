@@ -5,15 +5,21 @@ import cz.ufal.udapi.core.impl.DefaultDocument;
 import cz.ufal.udapi.core.impl.DefaultEmptyNode;
 import cz.ufal.udapi.core.impl.DefaultEnhancedDeps;
 import cz.ufal.udapi.core.impl.DefaultRoot;
+import cz.ufal.udapi.core.impl.DefaultNode;
+import cz.ufal.udapi.core.io.Column;
 import cz.ufal.udapi.core.io.DocumentReader;
 import cz.ufal.udapi.core.io.UdapiIOException;
+import cz.ufal.udapi.core.jfr.DocumentReadEvent;
 
 import java.io.*;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -40,6 +46,33 @@ public class CoNLLUReader implements DocumentReader {
     private static final Pattern textPattern = Pattern.compile("^# text\\s*=\\s*(.+)");
     private static final Pattern newParDocPattern = Pattern.compile("^# ("+NEWPAR+"|newdoc) (?:\\s*id\\s*=\\s*(.+))?");
 
+    /**
+     * If true, original lines of each sentence are kept in its tree (see Root.getRawLines).
+     */
+    private boolean keepRawLines;
+
+    /**
+     * Patterns which sent_id, text and newdoc id of a sentence must contain, null if not filtered.
+     */
+    private Pattern sentIdFilter;
+    private Pattern textFilter;
+    private Pattern newDocFilter;
+
+    /**
+     * Id of the last newdoc seen in the input, empty if it had no id, null if there was no newdoc.
+     */
+    private String newDocId;
+
+    /**
+     * Columns which are not parsed when the nodes are created, null if all columns are parsed.
+     */
+    private Set<Column> unparsedColumns;
+
+    /**
+     * Start indices of the columns of the current line, used with column projection.
+     */
+    private final int[] columnStarts = new int[10];
+
     public CoNLLUReader(Reader reader) {
         this.reader = reader;
     }
@@ -68,6 +101,120 @@ public class CoNLLUReader implements DocumentReader {
         }
     }
 
+    public boolean isKeepRawLines() {
+        return keepRawLines;
+    }
+
+    /**
+     * @param keepRawLines if true, original lines of each sentence are kept in its tree,
+     *                     so that writers can copy unmodified trees verbatim (see Root.getRawLines)
+     */
+    public void setKeepRawLines(boolean keepRawLines) {
+        this.keepRawLines = keepRawLines;
+    }
+
+    /**
+     * Sets metadata predicate of the sentences to load. The predicate is evaluated on the comment lines
+     * before any node is created and other sentences are skipped by scanning to the next blank line.
+     *
+     * A sentence is loaded if sent_id and text contain (Matcher.find) the given patterns and if the id of the last
+     * newdoc before the sentence (including the sentence itself) contains newDoc. Null patterns are not checked.
+     *
+     * @param sentId pattern of sent_id or null
+     * @param text pattern of text or null
+     * @param newDoc pattern of newdoc id or null
+     */
+    public void setMetadataFilter(Pattern sentId, Pattern text, Pattern newDoc) {
+        this.sentIdFilter = sentId;
+        this.textFilter = text;
+        this.newDocFilter = newDoc;
+    }
+
+    /**
+     * Forgets the state of the previous input, called when the reader starts reading a new input.
+     */
+    public void reset() {
+        newDocId = null;
+    }
+
+    /**
+     * Sets columns to parse when the nodes are created (column projection). Other columns are kept
+     * as the original line of the node and parsed on first access (see DefaultNode.setUnparsedColumns),
+     * so they are still written unchanged. ID and HEAD are always parsed. Multiword tokens and empty nodes
+     * are parsed completely.
+     *
+     * @param columns columns to parse, null to parse all columns
+     */
+    public void setColumns(Set<Column> columns) {
+        if (null == columns) {
+            unparsedColumns = null;
+            return;
+        }
+        EnumSet<Column> unparsed = EnumSet.allOf(Column.class);
+        unparsed.removeAll(columns);
+        unparsed.remove(Column.ID);
+        unparsed.remove(Column.HEAD);
+        unparsedColumns = unparsed.isEmpty() ? null : unparsed;
+    }
+
+    /**
+     * @return columns parsed when the nodes are created, null if all columns are parsed
+     */
+    public Set<Column> getColumns() {
+        if (null == unparsedColumns) {
+            return null;
+        }
+        return EnumSet.complementOf(EnumSet.copyOf(unparsedColumns));
+    }
+
+    private boolean hasMetadataFilter() {
+        return null != sentIdFilter || null != textFilter || null != newDocFilter;
+    }
+
+    /**
+     * Evaluates metadata predicate on the comments of a sentence.
+     *
+     * @param comments trimmed comment lines of the sentence
+     * @return true if the sentence should be loaded
+     */
+    private boolean matchesMetadata(List<String> comments) {
+        String sentId = null;
+        String text = null;
+        for (String comment : comments) {
+            Matcher sentIdMatcher = sentIdPattern.matcher(comment);
+            if (sentIdMatcher.matches()) {
+                sentId = sentIdMatcher.group(1);
+                continue;
+            }
+            Matcher textMatcher = textPattern.matcher(comment);
+            if (textMatcher.matches()) {
+                text = textMatcher.group(1);
+                continue;
+            }
+            Matcher newParDocMatcher = newParDocPattern.matcher(comment);
+            if (newParDocMatcher.matches() && !NEWPAR.equals(newParDocMatcher.group(1))) {
+                newDocId = null == newParDocMatcher.group(2) ? EMPTY_STRING : newParDocMatcher.group(2);
+            }
+        }
+        return matches(sentIdFilter, sentId) && matches(textFilter, text) && matches(newDocFilter, newDocId);
+    }
+
+    private static boolean matches(Pattern filter, String value) {
+        return null == filter || (null != value && filter.matcher(value).find());
+    }
+
+    /**
+     * Skips the rest of the current sentence.
+     */
+    private static void skipSentence(BufferedReader bufferedReader) throws IOException {
+        String currLine;
+        while ((currLine = bufferedReader.readLine()) != null) {
+            if (isBlank(currLine)) {
+                return;
+            }
+        }
+    }
+
     @Override
     public Document readDocument() {
         final Document document = new DefaultDocument();
@@ -85,6 +232,9 @@ public class CoNLLUReader implements DocumentReader {
     @Override
     public void readInDocument(final Document document) throws UdapiIOException {
 
+        DocumentReadEvent event = new DocumentReadEvent();
+        event.begin();
+
         ExecutorService executor = Executors.newSingleThreadExecutor();
 
         int sentenceId = 1;
@@ -92,23 +242,51 @@ public class CoNLLUReader implements DocumentReader {
         try (BufferedReader bufferedReader = new BufferedReader(reader)) {
             String currLine;
             List<String> words = new ArrayList<>();
+            List<String> rawLines = keepRawLines ? new ArrayList<>() : null;
+            boolean filtered = hasMetadataFilter();
 
             while ((currLine = bufferedReader.readLine()) != null) {
                 String trimLine = currLine.trim();
                 if (EMPTY_STRING.equals(trimLine)) {
                     //end of sentence
+                    if (filtered && !words.isEmpty() && !matchesMetadata(words)) {
+                        words = new ArrayList<>();
+                        rawLines = keepRawLines ? new ArrayList<>() : null;
+                        continue;
+                    }
+                    filtered = hasMetadataFilter();
                     List<String> finalWords = words;
+                    List<String> finalRawLines = rawLines;
                     final int finalSentenceId = sentenceId++;
-                    executor.submit(() -> processSentenceWithBundle(finalSentenceId, document, finalWords));
+                    executor.submit(() -> processSentenceWithBundle(finalSentenceId, document, finalWords, finalRawLines));
                     words = new ArrayList<>();
+                    rawLines = keepRawLines ? new ArrayList<>() : null;
                 } else {
+                    if (filtered && trimLine.charAt(0) != HASH) {
+                        //all comments of the sentence have been read
+                        filtered = false;
+                        if (!matchesMetadata(words)) {
+                            skipSentence(bufferedReader);
+                            filtered = true;
+                            words = new ArrayList<>();
+                            rawLines = keepRawLines ? new ArrayList<>() : null;
+                            continue;
+                        }
+                    }
                     words.add(trimLine);
+                    if (null != rawLines) {
+                        rawLines.add(currLine);
+                    }
                 }
             }
             //process last sentence if there was no empty line after it
+            if (filtered && !words.isEmpty() && !matchesMetadata(words)) {
+                words = new ArrayList<>();
+            }
             List<String> finalWords = words;
+            List<String> finalRawLines = rawLines;
             final int finalSentenceId = sentenceId;
-            executor.submit(() -> processSentenceWithBundle(finalSentenceId, document, finalWords));
+            executor.submit(() -> processSentenceWithBundle(finalSentenceId, document, finalWords, finalRawLines));
         } catch (IOException e) {
             throw new UdapiIOException(e);
         }
@@ -119,6 +297,76 @@ public class CoNLLUReader implements DocumentReader {
         } catch (InterruptedException e) {
             System.err.println("Wait for executor termination interrupted.");
         }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.reader = getClass().getName();
+            event.bundles = document.getBundles().size();
+            event.commit();
+        }
+    }
+
+    /**
+     * Skips the next sentence without parsing it.
+     * Close of the reader is responsibility of caller.
+     *
+     * @param bufferedReader reader to use
+     * @return false if there was no sentence left
+     * @throws UdapiIOException If any IOException happens
+     */
+    public boolean skipTree(BufferedReader bufferedReader) throws UdapiIOException {
+        try {
+            boolean inSentence = false;
+            String currLine;
+            while ((currLine = bufferedReader.readLine()) != null) {
+                if (isBlank(currLine)) {
+                    if (inSentence) {
+                        return true;
+                    }
+                } else {
+                    inSentence = true;
+                }
+            }
+            return inSentence;
+        } catch (IOException e) {
+            throw new UdapiIOException(e);
+        }
+    }
+
+    /**
+     * Reads the next sentence without parsing it.
+     * Close of the reader is responsibility of caller.
+     *
+     * @param bufferedReader reader to use
+     * @return lines of the sentence, each terminated by a new line, or null if there was no sentence left
+     * @throws UdapiIOException If any IOException happens
+     */
+    public String readSentence(BufferedReader bufferedReader) throws UdapiIOException {
+        try {
+            StringBuilder sb = new StringBuilder();
+            String currLine;
+            while ((currLine = bufferedReader.readLine()) != null) {
+                if (isBlank(currLine)) {
+                    if (sb.length() > 0) {
+                        return sb.toString();
+                    }
+                } else {
+                    sb.append(currLine).append('\n');
+                }
+            }
+            return sb.length() > 0 ? sb.toString() : null;
+        } catch (IOException e) {
+            throw new UdapiIOException(e);
+        }
+    }
+
+    private static boolean isBlank(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -137,24 +385,48 @@ public class CoNLLUReader implements DocumentReader {
         try {
             String currLine;
             List<String> words = new ArrayList<>();
+            List<String> rawLines = keepRawLines ? new ArrayList<>() : null;
+            boolean filtered = hasMetadataFilter();
 
             while ((currLine = bufferedReader.readLine()) != null) {
                 String trimLine = currLine.trim();
                 if (EMPTY_STRING.equals(trimLine)) {
                     //end of sentence
+                    if (filtered && !words.isEmpty() && !matchesMetadata(words)) {
+                        words = new ArrayList<>();
+                        rawLines = keepRawLines ? new ArrayList<>() : null;
+                        continue;
+                    }
                     List<String> finalWords = words;
-                    Root root = processSentence(document, finalWords);
+                    Root root = processSentence(document, finalWords, rawLines);
                     if (null != root) {
                         return Optional.of(root);
                     }
                     words = new ArrayList<>();
                 } else {
+                    if (filtered && trimLine.charAt(0) != HASH) {
+                        //all comments of the sentence have been read
+                        filtered = false;
+                        if (!matchesMetadata(words)) {
+                            skipSentence(bufferedReader);
+                            filtered = true;
+                            words = new ArrayList<>();
+                            rawLines = keepRawLines ? new ArrayList<>() : null;
+                            continue;
+                        }
+                    }
                     words.add(trimLine);
+                    if (null != rawLines) {
+                        rawLines.add(currLine);
+                    }
                 }
             }
             //process last sentence if there was no empty line after it
+            if (filtered && !words.isEmpty() && !matchesMetadata(words)) {
+                return Optional.empty();
+            }
             List<String> finalWords = words;
-            Root root = processSentence(document, finalWords);
+            Root root = processSentence(document, finalWords, rawLines);
             if (null == root) {
                 return Optional.empty();
             }
@@ -180,9 +452,9 @@ public class CoNLLUReader implements DocumentReader {
         }
     }
 
-    private void processSentenceWithBundle(int sentenceId, final Document document, List<String> words) {
+    private void processSentenceWithBundle(int sentenceId, final Document document, List<String> words, List<String> rawLines) {
 
-        Root tree = processSentence(document, words);
+        Root tree = processSentence(document, words, rawLines);
 
         String treeId = tree.getId();
         //add tree to correct bundle
@@ -230,9 +502,10 @@ public class CoNLLUReader implements DocumentReader {
      *
      * @param document document to load into
      * @param words words of the sentence
+     * @param rawLines original lines of the sentence, null if they are not kept
      * @return constructed tree
      */
-    private Root processSentence(final Document document, List<String> words) {
+    private Root processSentence(final Document document, List<String> words, List<String> rawLines) {
 
         //ignore empty sentences
         if (words.isEmpty()) {
@@ -241,13 +514,8 @@ public class CoNLLUReader implements DocumentReader {
 
         Root tree = new DefaultRoot(document);
 
-        Node root = tree.getNode();
-
-        List<Node> nodes = new ArrayList<>();
+        Words nodeWords = new Words(unparsedColumns);
         List<EmptyNode> emptyNodes = new ArrayList<>();
-        nodes.add(root);
-        List<Integer> parents = new ArrayList<>();
-        parents.add(0);
 
         List<MwtStruct> mwtStructs = new ArrayList<>();
 
@@ -296,13 +564,16 @@ public class CoNLLUReader implements DocumentReader {
                 }
             } else {
                 //process word
-                processWord(tree, root, nodes, parents, emptyNodes, mwtStructs, word);
+                processWord(tree, nodeWords, emptyNodes, mwtStructs, word);
             }
         }
 
+        //create nodes with correct parents
+        List<Node> nodes = nodeWords.build(tree);
+
         //process multiwords
         mwtStructs.forEach(m -> {
-            List<Node> wordsList = nodes.subList(m.rangeStart, m.rangeEnd+1);
+            List<Node> wordsList = nodes.subList(m.rangeStart - 1, m.rangeEnd);
             tree.addMultiword(wordsList, m.form, m.misc);
 
         });
@@ -310,9 +581,8 @@ public class CoNLLUReader implements DocumentReader {
         //add empty nodes to the tree
         tree.setEmptyNodes(emptyNodes);
 
-        //set correct parents
-        for (int i = 1; i < nodes.size(); i++) {
-            nodes.get(i).setParent(nodes.get(parents.get(i)));
+        if (null != rawLines) {
+            tree.setRawLines(rawLines);
         }
 
         return tree;
@@ -321,7 +591,11 @@ public class CoNLLUReader implements DocumentReader {
     /**
      * Processes word.
      */
-    private void processWord(Root tree, Node root, List<Node> nodes, List<Integer> parents, List<EmptyNode> emptyNodes, List<MwtStruct> mwtStructs, String word) {
+    private void processWord(Root tree, Words nodeWords, List<EmptyNode> emptyNodes, List<MwtStruct> mwtStructs, String word) {
+
+        if (null != unparsedColumns && processProjectedWord(nodeWords, word)) {
+            return;
+        }
 
         String[] fields = tabPattern.split(word, 10);
         String id = fields[0];
@@ -367,19 +641,135 @@ public class CoNLLUReader implements DocumentReader {
 
             emptyNodes.add(newEmptyNode);
         } else {
-            Node child = root.createChild();
-            child.setForm(form);
-            child.setLemma(lemma);
-            child.setUpos(upos);
-            child.setXpos(xpos);
-            child.setFeats(feats);
-            child.setHead(head);
-            child.setDeprel(deprel);
-            child.setDeps(new DefaultEnhancedDeps(deps, tree));
-            child.setMisc(misc);
-
-            nodes.add(child);
-            parents.add(Integer.parseInt(head));
+            nodeWords.add(Integer.parseInt(head), form, lemma, upos, xpos, feats, deprel, deps, misc, word);
+        }
+    }
+
+    /**
+     * Processes line of a regular node with column projection. Only the needed columns are extracted,
+     * the line is not split.
+     *
+     * @return false if the line is not a regular node (or it has less than 9 columns) and has to be processed by processWord
+     */
+    private boolean processProjectedWord(Words nodeWords, String word) {
+        int lastColumn = 0;
+        for (int i = 0; i < word.length() && lastColumn < 9; i++) {
+            char c = word.charAt(i);
+            if ('\t' == c) {
+                columnStarts[++lastColumn] = i + 1;
+            } else if (0 == lastColumn && ('-' == c || '.' == c)) {
+                //multiword token or empty node
+                return false;
+            }
+        }
+        if (lastColumn < 8) {
+            return false;
+        }
+
+        nodeWords.add(Integer.parseInt(column(word, 6, lastColumn)),
+                projectedColumn(word, Column.FORM, 1, lastColumn),
+                projectedColumn(word, Column.LEMMA, 2, lastColumn),
+                projectedColumn(word, Column.UPOS, 3, lastColumn),
+                projectedColumn(word, Column.XPOS, 4, lastColumn),
+                projectedColumn(word, Column.FEATS, 5, lastColumn),
+                projectedColumn(word, Column.DEPREL, 7, lastColumn),
+                projectedColumn(word, Column.DEPS, 8, lastColumn),
+                9 == lastColumn ? projectedColumn(word, Column.MISC, 9, lastColumn) : null,
+                word);
+        return true;
+    }
+
+    private String projectedColumn(String word, Column column, int index, int lastColumn) {
+        return unparsedColumns.contains(column) ? null : column(word, index, lastColumn);
+    }
+
+    private String column(String word, int index, int lastColumn) {
+        int end = index == lastColumn ? word.length() : columnStarts[index + 1] - 1;
+        return word.substring(columnStarts[index], end);
+    }
+
+    /**
+     * Columns of the words of one sentence, used to build the tree at once.
+     */
+    private static class Words {
+        /**
+         * Columns which are not parsed, null if all columns are parsed.
+         */
+        final Set<Column> unparsedColumns;
+        int size;
+        int[] heads = new int[32];
+        String[] forms = new String[32];
+        String[] lemmas = new String[32];
+        String[] upos = new String[32];
+        String[] xpos = new String[32];
+        String[] feats = new String[32];
+        String[] deprels = new String[32];
+        String[] deps = new String[32];
+        String[] misc = new String[32];
+        String[] lines;
+
+        Words(Set<Column> unparsedColumns) {
+            this.unparsedColumns = unparsedColumns;
+            if (null != unparsedColumns) {
+                lines = new String[32];
+            }
+        }
+
+        void add(int head, String form, String lemma, String upos, String xpos, String feats,
+                 String deprel, String deps, String misc, String line) {
+            if (size == heads.length) {
+                int capacity = 2 * size;
+                this.heads = Arrays.copyOf(this.heads, capacity);
+                this.forms = Arrays.copyOf(this.forms, capacity);
+                this.lemmas = Arrays.copyOf(this.lemmas, capacity);
+                this.upos = Arrays.copyOf(this.upos, capacity);
+                this.xpos = Arrays.copyOf(this.xpos, capacity);
+                this.feats = Arrays.copyOf(this.feats, capacity);
+                this.deprels = Arrays.copyOf(this.deprels, capacity);
+                this.deps = Arrays.copyOf(this.deps, capacity);
+                this.misc = Arrays.copyOf(this.misc, capacity);
+                if (null != lines) {
+                    this.lines = Arrays.copyOf(this.lines, capacity);
+                }
+            }
+            this.heads[size] = head;
+            this.forms[size] = form;
+            this.lemmas[size] = lemma;
+            this.upos[size] = upos;
+            this.xpos[size] = xpos;
+            this.feats[size] = feats;
+            this.deprels[size] = deprel;
+            this.deps[size] = deps;
+            this.misc[size] = misc;
+            if (null != lines) {
+                this.lines[size] = line;
+            }
+            size++;
+        }
+
+        List<Node> build(Root tree) {
+            if (null == unparsedColumns) {
+                return tree.buildTree(Arrays.copyOf(heads, size), Arrays.copyOf(forms, size),
+                        Arrays.copyOf(lemmas, size), Arrays.copyOf(upos, size), Arrays.copyOf(xpos, size),
+                        Arrays.copyOf(feats, size), Arrays.copyOf(deprels, size), Arrays.copyOf(deps, size),
+                        Arrays.copyOf(misc, size));
+            }
+
+            List<Node> nodes = tree.buildTree(Arrays.copyOf(heads, size), copyOf(forms, Column.FORM),
+                    copyOf(lemmas, Column.LEMMA), copyOf(upos, Column.UPOS), copyOf(xpos, Column.XPOS),
+                    copyOf(feats, Column.FEATS), copyOf(deprels, Column.DEPREL), copyOf(deps, Column.DEPS),
+                    copyOf(misc, Column.MISC));
+            for (int i = 0; i < size; i++) {
+                ((DefaultNode) nodes.get(i)).setUnparsedColumns(lines[i], unparsedColumns);
+            }
+            return nodes;
+        }
+
+        /**
+         * @return values of the column, null if the column is not parsed
+         */
+        private String[] copyOf(String[] values, Column column) {
+            return unparsedColumns.contains(column) ? null : Arrays.copyOf(values, size);
         }
     }
 
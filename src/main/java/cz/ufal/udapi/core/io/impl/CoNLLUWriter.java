@@ -3,6 +3,8 @@ package cz.ufal.udapi.core.io.impl;
 import cz.ufal.udapi.core.*;
 import cz.ufal.udapi.core.io.DocumentWriter;
 import cz.ufal.udapi.core.io.UdapiIOException;
+import cz.ufal.udapi.core.jfr.DocumentWriteEvent;
+import cz.ufal.udapi.exception.UdapiException;
 
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -12,12 +14,21 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Writer for CoNLLU format.
  *
  * Serializes Document into CoNLLU format.
  *
+ * With more than one thread (see setThreads), ranges of bundles are serialized into separate buffers
+ * on a worker pool and the buffers are written in document order. Only a bounded number of buffers
+ * is pending at a time. The output is identical to the single-threaded one.
+ *
  * @author Martin Vojtek
  */
 public class CoNLLUWriter implements DocumentWriter {
@@ -28,7 +39,19 @@ public class CoNLLUWriter implements DocumentWriter {
     private static final Charset utf8Charset = StandardCharsets.UTF_8;
 
     private static final int BUFFER = 256 * 1024;
+    private static final int BUNDLES_PER_TASK = 256;
     private boolean printSentId = true;
+    private boolean passthrough;
+    private int threads = 1;
+    private ExecutorService executor;
+
+    /**
+     * Writes serialized parts of a document.
+     */
+    @FunctionalInterface
+    private interface PartWriter<T> {
+        void write(T part) throws IOException;
+    }
 
     public boolean isPrintSentId() {
         return printSentId;
@@ -38,6 +61,49 @@ public class CoNLLUWriter implements DocumentWriter {
         this.printSentId = printSentId;
     }
 
+    public boolean isPassthrough() {
+        return passthrough;
+    }
+
+    /**
+     * @param passthrough if true, trees which have not been modified since they were read
+     *                    are written as their original lines (see Root.getRawLines), unless printSentId is false
+     */
+    public void setPassthrough(boolean passthrough) {
+        this.passthrough = passthrough;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads number of threads serializing bundles, 1 (default) serializes on the calling thread
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new UdapiException("Number of threads must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Stops the worker threads. The writer can still be used, the threads are started again when needed.
+     */
+    public void shutdown() {
+        if (null != executor) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private ExecutorService executor() {
+        if (null == executor) {
+            executor = Parallel.newDaemonPool(threads, "conllu-writer");
+        }
+        return executor;
+    }
+
     /**
      * Serializes document into given path.
      *
@@ -47,6 +113,9 @@ public class CoNLLUWriter implements DocumentWriter {
     @Override
     public void writeDocument(Document document, Path path) {
 
+        DocumentWriteEvent event = new DocumentWriteEvent();
+        event.begin();
+
         Set<StandardOpenOption> options = new HashSet<>();
         options.add(StandardOpenOption.CREATE);
         options.add(StandardOpenOption.WRITE);
@@ -56,26 +125,15 @@ public class CoNLLUWriter implements DocumentWriter {
         try {
             fileChannel = FileChannel.open(path, options);
 
-            StringBuilder sb = new StringBuilder();
-
-
-            for (Bundle bundle : document.getBundles()) {
-
-                for (Root tree : bundle.getTrees()) {
-                    processTree(sb, tree);
-                }
-                if (sb.length() > BUFFER) {
-                    fileChannel.write(ByteBuffer.wrap(sb.toString().getBytes(utf8Charset)));
-                    sb.setLength(0);
-                }
-            }
-
-            fileChannel.write(ByteBuffer.wrap(sb.toString().getBytes(utf8Charset)));
+            writeParts(document.getBundles(), bundle -> true, tree -> true,
+                    sb -> ByteBuffer.wrap(sb.toString().getBytes(utf8Charset)), fileChannel::write, null);
             fileChannel.close();
 
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        commitEvent(event, document);
     }
 
     /**
@@ -85,23 +143,131 @@ public class CoNLLUWriter implements DocumentWriter {
      * @param writer writer to write with
      */
     public void writeDocument(Document document, Writer writer) {
+        DocumentWriteEvent event = new DocumentWriteEvent();
+        event.begin();
         try (BufferedWriter bufferedWriter = new BufferedWriter(writer)) {
+            writeBundles(document.getBundles(), bundle -> true, tree -> true, bufferedWriter);
+        } catch (IOException e) {
+            throw new UdapiIOException(e);
+        }
+        commitEvent(event, document);
+    }
+
+    /**
+     * Serializes selected trees of given bundles into the writer, which is not closed.
+     *
+     * @param bundles bundles to serialize
+     * @param bundleFilter selects bundles to serialize
+     * @param treeFilter selects trees of the selected bundles to serialize
+     * @param writer writer to write with
+     * @throws IOException If writing fails
+     */
+    public void writeBundles(List<Bundle> bundles, Predicate<Bundle> bundleFilter, Predicate<Root> treeFilter,
+                             Writer writer) throws IOException {
+        writeBundles(bundles, bundleFilter, treeFilter, writer, null);
+    }
+
+    /**
+     * Serializes selected trees of given bundles into the writer, which is not closed,
+     * and measures serialization time of each bundle.
+     *
+     * @param bundles bundles to serialize
+     * @param bundleFilter selects bundles to serialize
+     * @param treeFilter selects trees of the selected bundles to serialize
+     * @param writer writer to write with
+     * @param nanos serialization times of the bundles are stored here (at the indices of the bundles), null if they are not measured
+     * @throws IOException If writing fails
+     */
+    public void writeBundles(List<Bundle> bundles, Predicate<Bundle> bundleFilter, Predicate<Root> treeFilter,
+                             Writer writer, long[] nanos) throws IOException {
+        writeParts(bundles, bundleFilter, treeFilter, StringBuilder::toString,
+                content -> writer.write(content, 0, content.length()), nanos);
+    }
+
+    /**
+     * Serializes trees into parts, which are converted by encoder (on the worker thread) and written in document order.
+     */
+    private <T> void writeParts(List<Bundle> bundles, Predicate<Bundle> bundleFilter, Predicate<Root> treeFilter,
+                                Function<StringBuilder, T> encoder, PartWriter<T> partWriter, long[] nanos) throws IOException {
+        if (1 == threads) {
             StringBuilder sb = new StringBuilder();
-            for (Bundle bundle : document.getBundles()) {
-                for (Root tree : bundle.getTrees()) {
-                    processTree(sb, tree);
+            for (int i = 0; i < bundles.size(); i++) {
+                Bundle bundle = bundles.get(i);
+                if (bundleFilter.test(bundle)) {
+                    writeBundle(sb, bundle, treeFilter, nanos, i);
                 }
                 if (sb.length() > BUFFER) {
-                    String content = sb.toString();
-                    bufferedWriter.write(content, 0, content.length());
+                    partWriter.write(encoder.apply(sb));
                     sb.setLength(0);
                 }
             }
-            String content = sb.toString();
-            bufferedWriter.write(content, 0, content.length());
-            sb.setLength(0);
-        } catch (IOException e) {
-            throw new UdapiIOException(e);
+            partWriter.write(encoder.apply(sb));
+            return;
+        }
+
+        ExecutorService pool = executor();
+        Deque<Future<T>> pending = new ArrayDeque<>();
+        try {
+            for (int start = 0; start < bundles.size(); start += BUNDLES_PER_TASK) {
+                int partStart = start;
+                int partEnd = Math.min(bundles.size(), start + BUNDLES_PER_TASK);
+                pending.add(pool.submit(() -> {
+                    StringBuilder sb = new StringBuilder();
+                    for (int i = partStart; i < partEnd; i++) {
+                        Bundle bundle = bundles.get(i);
+                        if (bundleFilter.test(bundle)) {
+                            writeBundle(sb, bundle, treeFilter, nanos, i);
+                        }
+                    }
+                    return encoder.apply(sb);
+                }));
+                //bound the memory used by serialized parts
+                if (pending.size() >= 2 * threads) {
+                    partWriter.write(next(pending));
+                }
+            }
+            while (!pending.isEmpty()) {
+                partWriter.write(next(pending));
+            }
+        } finally {
+            for (Future<T> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void writeBundle(StringBuilder sb, Bundle bundle, Predicate<Root> treeFilter, long[] nanos, int index) {
+        long start = null != nanos ? System.nanoTime() : 0;
+        for (Root tree : bundle.getTrees()) {
+            if (treeFilter.test(tree)) {
+                processTree(sb, tree);
+            }
+        }
+        if (null != nanos) {
+            nanos[index] = System.nanoTime() - start;
+        }
+    }
+
+    private static <T> T next(Deque<Future<T>> pending) {
+        try {
+            return pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UdapiIOException("Interrupted while serializing trees.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UdapiIOException("Failed to serialize trees.", e.getCause());
+        }
+    }
+
+    private void commitEvent(DocumentWriteEvent event, Document document) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.writer = getClass().getName();
+            event.bundles = document.getBundles().size();
+            event.commit();
         }
     }
 
@@ -112,6 +278,18 @@ public class CoNLLUWriter implements DocumentWriter {
         //do not write empty sentences
         if (descendants.size() > 0) {
 
+            if (passthrough && isPrintSentId()) {
+                List<String> rawLines = tree.getRawLines();
+                if (null != rawLines) {
+                    for (String line : rawLines) {
+                        sb.append(line);
+                        sb.append(NEW_LINE);
+                    }
+                    sb.append(NEW_LINE);
+                    return;
+                }
+            }
+
             if (isPrintSentId()) {
 
                 if (null != tree.getNewDocId()) {
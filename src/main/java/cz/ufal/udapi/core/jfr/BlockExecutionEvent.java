@@ -0,0 +1,27 @@
+package cz.ufal.udapi.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of one block applied to one document
+ * (beforeProcessDocument, processDocument and afterProcessDocument).
+ *
+ * @author Martin Vojtek
+ */
+@Name("cz.ufal.udapi.BlockExecution")
+@Label("Block Execution")
+@Category("Udapi")
+@Description("Block applied to a document")
+public class BlockExecutionEvent extends Event {
+
+    @Label("Block")
+    public String block;
+
+    @Label("Bundles")
+    @Description("Number of bundles in the document after the block was applied")
+    public int bundles;
+}
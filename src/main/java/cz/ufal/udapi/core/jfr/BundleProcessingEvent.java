@@ -0,0 +1,29 @@
+package cz.ufal.udapi.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of one bundle processed by a block.
+ *
+ * @author Martin Vojtek
+ */
+@Name("cz.ufal.udapi.BundleProcessing")
+@Label("Bundle Processing")
+@Category("Udapi")
+@Description("Bundle processed by a block")
+public class BundleProcessingEvent extends Event {
+
+    @Label("Block")
+    public String block;
+
+    @Label("Bundle Id")
+    public String bundleId;
+
+    @Label("Nodes")
+    @Description("Number of nodes in all trees of the bundle")
+    public int nodes;
+}
@@ -0,0 +1,25 @@
+package cz.ufal.udapi.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of reading (a part of) a document.
+ *
+ * @author Martin Vojtek
+ */
+@Name("cz.ufal.udapi.DocumentRead")
+@Label("Document Read")
+@Category("Udapi")
+@Description("Trees read into a document")
+public class DocumentReadEvent extends Event {
+
+    @Label("Reader")
+    public String reader;
+
+    @Label("Bundles")
+    public int bundles;
+}
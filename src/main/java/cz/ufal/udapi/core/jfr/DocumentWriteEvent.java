@@ -0,0 +1,25 @@
+package cz.ufal.udapi.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of writing a document.
+ *
+ * @author Martin Vojtek
+ */
+@Name("cz.ufal.udapi.DocumentWrite")
+@Label("Document Write")
+@Category("Udapi")
+@Description("Document serialized by a writer")
+public class DocumentWriteEvent extends Event {
+
+    @Label("Writer")
+    public String writer;
+
+    @Label("Bundles")
+    public int bundles;
+}
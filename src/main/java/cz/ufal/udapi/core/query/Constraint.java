@@ -0,0 +1,182 @@
+package cz.ufal.udapi.core.query;
+
+import cz.ufal.udapi.core.Node;
+import cz.ufal.udapi.core.index.AttributeIndex;
+
+import java.util.regex.Pattern;
+
+/**
+ * Constraint on an attribute of a node, e.g. upos=NOUN, deprel!=punct, lemma~^be or feats=Case=Loc.
+ *
+ * For feats and misc, = and != test presence of a single item, ~ matches the whole value.
+ *
+ * @author Martin Vojtek
+ */
+class Constraint {
+
+    enum Attribute {
+        FORM(AttributeIndex.FORM, 0.005, true) {
+            @Override
+            String get(Node node) {
+                return node.getForm();
+            }
+        },
+        LEMMA(AttributeIndex.LEMMA, 0.01, true) {
+            @Override
+            String get(Node node) {
+                return node.getLemma();
+            }
+        },
+        UPOS(AttributeIndex.UPOS, 0.1, true) {
+            @Override
+            String get(Node node) {
+                return node.getUpos();
+            }
+        },
+        XPOS("xpos", 0.05, false) {
+            @Override
+            String get(Node node) {
+                return node.getXpos();
+            }
+        },
+        DEPREL(AttributeIndex.DEPREL, 0.1, true) {
+            @Override
+            String get(Node node) {
+                return node.getDeprel();
+            }
+        },
+        FEATS(AttributeIndex.FEATS, 0.3, true) {
+            @Override
+            String get(Node node) {
+                return node.getFeats();
+            }
+        },
+        MISC("misc", 0.3, false) {
+            @Override
+            String get(Node node) {
+                return node.getMisc();
+            }
+        };
+
+        private final String name;
+
+        /**
+         * Estimated fraction of nodes having a particular value, used without an index.
+         */
+        private final double selectivity;
+
+        private final boolean indexed;
+
+        Attribute(String name, double selectivity, boolean indexed) {
+            this.name = name;
+            this.selectivity = selectivity;
+            this.indexed = indexed;
+        }
+
+        abstract String get(Node node);
+
+        static Attribute of(String name) {
+            for (Attribute attribute : values()) {
+                if (attribute.name.equals(name)) {
+                    return attribute;
+                }
+            }
+            return null;
+        }
+    }
+
+    enum Operator {
+        EQUALS("="), NOT_EQUALS("!="), MATCHES("~");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+    }
+
+    private static final double REGEX_SELECTIVITY = 0.5;
+    private static final char PIPE = '|';
+
+    private final Attribute attribute;
+    private final Operator operator;
+    private final String value;
+    private final Pattern pattern;
+    private final boolean multiValued;
+
+    Constraint(Attribute attribute, Operator operator, String value) {
+        this.attribute = attribute;
+        this.operator = operator;
+        this.value = value;
+        this.pattern = Operator.MATCHES == operator ? Pattern.compile(value) : null;
+        this.multiValued = Attribute.FEATS == attribute || Attribute.MISC == attribute;
+    }
+
+    boolean test(Node node) {
+        String nodeValue = attribute.get(node);
+        switch (operator) {
+            case EQUALS:
+                return matches(nodeValue);
+            case NOT_EQUALS:
+                return !matches(nodeValue);
+            default:
+                return null != nodeValue && pattern.matcher(nodeValue).matches();
+        }
+    }
+
+    private boolean matches(String nodeValue) {
+        if (null == nodeValue) {
+            return false;
+        }
+        if (!multiValued) {
+            return value.equals(nodeValue);
+        }
+        int start = 0;
+        while (start <= nodeValue.length()) {
+            int end = nodeValue.indexOf(PIPE, start);
+            if (-1 == end) {
+                end = nodeValue.length();
+            }
+            if (end - start == value.length() && nodeValue.startsWith(value, start)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * @param index index with frequencies of values, may be null
+     * @return estimated fraction of nodes satisfying the constraint
+     */
+    double selectivity(AttributeIndex index) {
+        if (Operator.MATCHES == operator) {
+            return REGEX_SELECTIVITY;
+        }
+        double selectivity = attribute.selectivity;
+        if (null != index && attribute.indexed && index.getNumberOfNodes() > 0) {
+            selectivity = (double) index.getFrequency(attribute.name, value) / index.getNumberOfNodes();
+        }
+        return Operator.EQUALS == operator ? selectivity : 1 - selectivity;
+    }
+
+    /**
+     * @return attribute of the attribute index whose value (see getValue) every matching node has,
+     * null if there is no such attribute
+     */
+    String indexedAttribute() {
+        if (Operator.EQUALS == operator && attribute.indexed) {
+            return attribute.name;
+        }
+        return null;
+    }
+
+    String getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return attribute.name + operator.symbol + value;
+    }
+}
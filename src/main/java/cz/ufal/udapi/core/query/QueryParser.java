@@ -0,0 +1,167 @@
+package cz.ufal.udapi.core.query;
+
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser of tree queries.
+ *
+ * Grammar:
+ * <code>
+ *     query       := statement (';' statement)* ';'?
+ *     statement   := variable ':' constraints? | variable relation variable
+ *     constraints := constraint ('&amp;' constraint)*
+ *     constraint  := attribute ('=' | '!=' | '~') value
+ *     variable    := '$' name
+ * </code>
+ *
+ * Values may be enclosed in double quotes to contain whitespace, '&amp;' or ';'.
+ *
+ * @author Martin Vojtek
+ */
+class QueryParser {
+
+    private final String query;
+    private int position;
+
+    private final List<String> variables = new ArrayList<>();
+    private final List<List<Constraint>> constraints = new ArrayList<>();
+    private final List<TreeQuery.Edge> edges = new ArrayList<>();
+
+    QueryParser(String query) {
+        this.query = query;
+    }
+
+    TreeQuery parse() {
+        skipWhitespace();
+        while (position < query.length()) {
+            parseStatement();
+            skipWhitespace();
+            if (position < query.length() && !accept(';')) {
+                throw error("Expected ';'");
+            }
+            skipWhitespace();
+        }
+        if (variables.isEmpty()) {
+            throw error("No variable");
+        }
+        return new TreeQuery(query, variables, constraints, edges);
+    }
+
+    private void parseStatement() {
+        int variable = parseVariable();
+        skipWhitespace();
+        if (accept(':')) {
+            skipWhitespace();
+            if (position < query.length() && ';' != query.charAt(position)) {
+                constraints.get(variable).add(parseConstraint());
+                while (accept('&')) {
+                    constraints.get(variable).add(parseConstraint());
+                }
+            }
+        } else {
+            String name = parseName();
+            Relation relation = Relation.of(name);
+            if (null == relation) {
+                throw error("Unknown relation '" + name + "'");
+            }
+            int other = parseVariable();
+            if (other == variable) {
+                throw error("Relation of a variable with itself");
+            }
+            edges.add(new TreeQuery.Edge(variable, relation, other));
+        }
+    }
+
+    private int parseVariable() {
+        skipWhitespace();
+        if (!accept('$')) {
+            throw error("Expected variable");
+        }
+        String name = parseName();
+        int variable = variables.indexOf(name);
+        if (-1 == variable) {
+            variable = variables.size();
+            variables.add(name);
+            constraints.add(new ArrayList<>());
+        }
+        return variable;
+    }
+
+    private Constraint parseConstraint() {
+        String name = parseName();
+        Constraint.Attribute attribute = Constraint.Attribute.of(name);
+        if (null == attribute) {
+            throw error("Unknown attribute '" + name + "'");
+        }
+        Constraint.Operator operator;
+        if (accept('=')) {
+            operator = Constraint.Operator.EQUALS;
+        } else if (accept('!')) {
+            if (!accept('=')) {
+                throw error("Expected '='");
+            }
+            operator = Constraint.Operator.NOT_EQUALS;
+        } else if (accept('~')) {
+            operator = Constraint.Operator.MATCHES;
+        } else {
+            throw error("Expected operator");
+        }
+        return new Constraint(attribute, operator, parseValue());
+    }
+
+    private String parseValue() {
+        skipWhitespace();
+        if (accept('"')) {
+            int end = query.indexOf('"', position);
+            if (-1 == end) {
+                throw error("Missing '\"'");
+            }
+            String value = query.substring(position, end);
+            position = end + 1;
+            return value;
+        }
+        int start = position;
+        while (position < query.length() && '&' != query.charAt(position) && ';' != query.charAt(position)) {
+            position++;
+        }
+        String value = query.substring(start, position).trim();
+        if (value.isEmpty()) {
+            throw error("Missing value");
+        }
+        return value;
+    }
+
+    private String parseName() {
+        skipWhitespace();
+        int start = position;
+        while (position < query.length() && (Character.isLetterOrDigit(query.charAt(position)) || '_' == query.charAt(position))) {
+            position++;
+        }
+        if (start == position) {
+            throw error("Expected name");
+        }
+        return query.substring(start, position);
+    }
+
+    private boolean accept(char c) {
+        skipWhitespace();
+        if (position < query.length() && c == query.charAt(position)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (position < query.length() && Character.isWhitespace(query.charAt(position))) {
+            position++;
+        }
+    }
+
+    private UdapiException error(String message) {
+        return new UdapiException(message + " at position " + position + " of query '" + query + "'.");
+    }
+}
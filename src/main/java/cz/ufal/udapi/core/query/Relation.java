@@ -0,0 +1,213 @@
+package cz.ufal.udapi.core.query;
+
+import cz.ufal.udapi.core.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Relation between two nodes of a tree pattern, "x relation y".
+ *
+ * @author Martin Vojtek
+ */
+enum Relation {
+
+    /**
+     * x is a child of y.
+     */
+    CHILD("child", 2) {
+        @Override
+        boolean test(Node x, Node y) {
+            Optional<Node> parent = x.getParent();
+            return parent.isPresent() && parent.get() == y;
+        }
+
+        @Override
+        List<Node> candidates(Node y, List<Node> nodes) {
+            return y.getChildren();
+        }
+    },
+
+    /**
+     * x is the parent of y.
+     */
+    PARENT("parent", 1) {
+        @Override
+        boolean test(Node x, Node y) {
+            Optional<Node> parent = y.getParent();
+            return parent.isPresent() && parent.get() == x;
+        }
+
+        @Override
+        List<Node> candidates(Node y, List<Node> nodes) {
+            Optional<Node> parent = y.getParent();
+            if (parent.isPresent() && !parent.get().isRoot()) {
+                return Collections.singletonList(parent.get());
+            }
+            return Collections.emptyList();
+        }
+    },
+
+    /**
+     * x is a descendant of y.
+     */
+    DESCENDANT("descendant", 5) {
+        @Override
+        boolean test(Node x, Node y) {
+            return x.isDescendantOf(y);
+        }
+
+        @Override
+        List<Node> candidates(Node y, List<Node> nodes) {
+            return y.getDescendants();
+        }
+    },
+
+    /**
+     * x is an ancestor of y.
+     */
+    ANCESTOR("ancestor", 3) {
+        @Override
+        boolean test(Node x, Node y) {
+            return y.isDescendantOf(x);
+        }
+
+        @Override
+        List<Node> candidates(Node y, List<Node> nodes) {
+            List<Node> ancestors = new ArrayList<>();
+            Optional<Node> parent = y.getParent();
+            while (parent.isPresent() && !parent.get().isRoot()) {
+                ancestors.add(parent.get());
+                parent = parent.get().getParent();
+            }
+            return ancestors;
+        }
+    },
+
+    /**
+     * x and y have the same parent.
+     */
+    SIBLING("sibling", 2) {
+        @Override
+        boolean test(Node x, Node y) {
+            Optional<Node> parent = x.getParent();
+            Optional<Node> otherParent = y.getParent();
+            return x != y && parent.isPresent() && otherParent.isPresent() && parent.get() == otherParent.get();
+        }
+
+        @Override
+        List<Node> candidates(Node y, List<Node> nodes) {
+            Optional<Node> parent = y.getParent();
+            return parent.isPresent() ? parent.get().getChildren() : Collections.emptyList();
+        }
+    },
+
+    /**
+     * x precedes y in the word order.
+     */
+    PRECEDES("precedes", 10) {
+        @Override
+        boolean test(Node x, Node y) {
+            return x.getOrd() < y.getOrd();
+        }
+
+        @Override
+        List<Node> candidates(Node y, List<Node> nodes) {
+            List<Node> preceding = new ArrayList<>();
+            for (Node node : nodes) {
+                if (node.getOrd() < y.getOrd()) {
+                    preceding.add(node);
+                }
+            }
+            return preceding;
+        }
+    },
+
+    /**
+     * x follows y in the word order.
+     */
+    FOLLOWS("follows", 10) {
+        @Override
+        boolean test(Node x, Node y) {
+            return x.getOrd() > y.getOrd();
+        }
+
+        @Override
+        List<Node> candidates(Node y, List<Node> nodes) {
+            List<Node> following = new ArrayList<>();
+            for (Node node : nodes) {
+                if (node.getOrd() > y.getOrd()) {
+                    following.add(node);
+                }
+            }
+            return following;
+        }
+    };
+
+    private final String name;
+
+    /**
+     * Estimated number of candidates for x when y is known.
+     */
+    private final int fanout;
+
+    Relation(String name, int fanout) {
+        this.name = name;
+        this.fanout = fanout;
+    }
+
+    /**
+     * @param x first node
+     * @param y second node
+     * @return true if "x relation y" holds
+     */
+    abstract boolean test(Node x, Node y);
+
+    /**
+     * @param y known node
+     * @param nodes all nodes of the tree
+     * @return superset of nodes x for which "x relation y" holds
+     */
+    abstract List<Node> candidates(Node y, List<Node> nodes);
+
+    int getFanout() {
+        return fanout;
+    }
+
+    /**
+     * @return relation r such that "x this y" iff "y r x"
+     */
+    Relation inverse() {
+        switch (this) {
+            case CHILD:
+                return PARENT;
+            case PARENT:
+                return CHILD;
+            case DESCENDANT:
+                return ANCESTOR;
+            case ANCESTOR:
+                return DESCENDANT;
+            case PRECEDES:
+                return FOLLOWS;
+            case FOLLOWS:
+                return PRECEDES;
+            default:
+                return this;
+        }
+    }
+
+    /**
+     * @param name name used in queries
+     * @return relation with the name or null
+     */
+    static Relation of(String name) {
+        for (Relation relation : values()) {
+            if (relation.name.equals(name)) {
+                return relation;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,306 @@
+package cz.ufal.udapi.core.query;
+
+import cz.ufal.udapi.core.Node;
+import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.index.AttributeIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiled tree query.
+ *
+ * Query consists of statements separated by ';'. A statement either declares constraints of a node variable
+ * or states a relation between two variables. E.g. ADP whose parent is a NOUN to its left, with a case sibling:
+ * <code>
+ *     $a: upos=ADP; $n: upos=NOUN; $s: deprel=case; $a child $n; $n precedes $a; $s sibling $a
+ * </code>
+ *
+ * Constraints: attribute=value, attribute!=value and attribute~regex joined by '&amp;',
+ * attributes are form, lemma, upos, xpos, deprel, feats and misc (feats=Case=Loc tests a single feature).
+ * Relations "$x relation $y": child, parent, descendant, ancestor, sibling, precedes, follows.
+ * Different variables are bound to different nodes.
+ *
+ * The query is compiled into a plan which binds variables in the order of estimated selectivity.
+ * Each next variable is preferably searched among nodes related to an already bound node
+ * (e.g. only the parent is tried for "$x parent $y" if $y is bound).
+ *
+ * @author Martin Vojtek
+ */
+public class TreeQuery {
+
+    /**
+     * Estimated number of nodes of a tree.
+     */
+    private static final int TREE_SIZE = 20;
+
+    private final String query;
+    private final List<String> variables;
+    private final List<List<Constraint>> constraints;
+    private final List<Edge> edges;
+
+    /**
+     * Variables in the order they are bound.
+     */
+    private Step[] plan;
+
+    TreeQuery(String query, List<String> variables, List<List<Constraint>> constraints, List<Edge> edges) {
+        this.query = query;
+        this.variables = variables;
+        this.constraints = constraints;
+        this.edges = edges;
+    }
+
+    /**
+     * Compiles the query. Selectivity of constraints is estimated by default values.
+     *
+     * @param query query
+     * @return compiled query
+     */
+    public static TreeQuery compile(String query) {
+        return compile(query, null);
+    }
+
+    /**
+     * Compiles the query. Selectivity of constraints is estimated from the frequencies in the index.
+     *
+     * @param query query
+     * @param index index of the corpus, may be null
+     * @return compiled query
+     */
+    public static TreeQuery compile(String query, AttributeIndex index) {
+        TreeQuery treeQuery = new QueryParser(query).parse();
+        treeQuery.plan(index);
+        return treeQuery;
+    }
+
+    /**
+     * @return names of the variables (without '$') in the order of their first occurrence
+     */
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(variables);
+    }
+
+    /**
+     * @param tree tree to search
+     * @return true if the tree contains a match
+     */
+    public boolean matches(Root tree) {
+        return !findMatches(tree, 1).isEmpty();
+    }
+
+    /**
+     * @param tree tree to search
+     * @return all matches, each match contains nodes bound to the variables (see getVariables)
+     */
+    public List<Node[]> findMatches(Root tree) {
+        return findMatches(tree, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param tree tree to search
+     * @param limit maximal number of returned matches
+     * @return matches, each match contains nodes bound to the variables (see getVariables)
+     */
+    public List<Node[]> findMatches(Root tree, int limit) {
+        List<Node[]> matches = new ArrayList<>();
+        List<Node> nodes = tree.getDescendants();
+        if (nodes.size() >= plan.length) {
+            bind(0, new Node[plan.length], nodes, matches, limit);
+        }
+        return matches;
+    }
+
+    /**
+     * Uses the index to find trees which may contain a match.
+     *
+     * @param index index of the corpus
+     * @return numbers of candidate trees in increasing order, null if the index does not restrict the query
+     */
+    public int[] candidateTrees(AttributeIndex index) {
+        int[] trees = null;
+        for (List<Constraint> variableConstraints : constraints) {
+            for (Constraint constraint : variableConstraints) {
+                String attribute = constraint.indexedAttribute();
+                if (null != attribute) {
+                    int[] termTrees = index.getTrees(attribute, constraint.getValue());
+                    trees = null == trees ? termTrees : intersection(trees, termTrees);
+                }
+            }
+        }
+        return trees;
+    }
+
+    private static int[] intersection(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private boolean bind(int stepIndex, Node[] binding, List<Node> nodes, List<Node[]> matches, int limit) {
+        if (stepIndex == plan.length) {
+            matches.add(binding.clone());
+            return matches.size() >= limit;
+        }
+
+        Step step = plan[stepIndex];
+        List<Node> candidates = -1 == step.anchor ? nodes : step.anchorRelation.candidates(binding[step.anchor], nodes);
+        for (Node candidate : candidates) {
+            if (isBound(candidate, binding) || !test(step, candidate, binding)) {
+                continue;
+            }
+            binding[step.variable] = candidate;
+            if (bind(stepIndex + 1, binding, nodes, matches, limit)) {
+                return true;
+            }
+        }
+        binding[step.variable] = null;
+        return false;
+    }
+
+    private static boolean isBound(Node node, Node[] binding) {
+        for (Node bound : binding) {
+            if (bound == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean test(Step step, Node candidate, Node[] binding) {
+        for (Constraint constraint : constraints.get(step.variable)) {
+            if (!constraint.test(candidate)) {
+                return false;
+            }
+        }
+        for (Edge edge : step.checks) {
+            Node x = edge.from == step.variable ? candidate : binding[edge.from];
+            Node y = edge.to == step.variable ? candidate : binding[edge.to];
+            if (!edge.relation.test(x, y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Greedily orders the variables, the cheapest variable is bound first.
+     * Cost of a variable is the estimated number of candidates times its selectivity.
+     */
+    private void plan(AttributeIndex index) {
+        int size = variables.size();
+        double[] selectivity = new double[size];
+        for (int variable = 0; variable < size; variable++) {
+            selectivity[variable] = 1;
+            for (Constraint constraint : constraints.get(variable)) {
+                selectivity[variable] *= constraint.selectivity(index);
+            }
+        }
+
+        plan = new Step[size];
+        boolean[] bound = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Step best = null;
+            double bestCost = Double.MAX_VALUE;
+            for (int variable = 0; variable < size; variable++) {
+                if (bound[variable]) {
+                    continue;
+                }
+                Step step = new Step(variable);
+                int fanout = TREE_SIZE;
+                for (Edge edge : edges) {
+                    int other = edge.from == variable ? edge.to : edge.to == variable ? edge.from : -1;
+                    if (-1 == other || !bound[other]) {
+                        continue;
+                    }
+                    Relation relation = edge.from == variable ? edge.relation : edge.relation.inverse();
+                    if (relation.getFanout() < fanout) {
+                        fanout = relation.getFanout();
+                        step.anchor = other;
+                        step.anchorRelation = relation;
+                        step.anchorEdge = edge;
+                    }
+                }
+                double cost = fanout * selectivity[variable];
+                if (cost < bestCost) {
+                    best = step;
+                    bestCost = cost;
+                }
+            }
+
+            bound[best.variable] = true;
+            for (Edge edge : edges) {
+                if (edge != best.anchorEdge && (edge.from == best.variable || edge.to == best.variable)
+                        && bound[edge.from] && bound[edge.to]) {
+                    best.checks.add(edge);
+                }
+            }
+            plan[i] = best;
+        }
+    }
+
+    /**
+     * @return the query and the order in which its variables are bound
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(query).append(" [plan:");
+        for (Step step : plan) {
+            sb.append(" $").append(variables.get(step.variable));
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Relation "from relation to" of two variables.
+     */
+    static class Edge {
+        final int from;
+        final Relation relation;
+        final int to;
+
+        Edge(int from, Relation relation, int to) {
+            this.from = from;
+            this.relation = relation;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Binding of a single variable.
+     */
+    private static class Step {
+        final int variable;
+
+        /**
+         * Bound variable whose related nodes are the candidates, -1 if all nodes are candidates.
+         */
+        int anchor = -1;
+        Relation anchorRelation;
+        Edge anchorEdge;
+
+        /**
+         * Relations with already bound variables, which have to be tested.
+         */
+        final List<Edge> checks = new ArrayList<>();
+
+        Step(int variable) {
+            this.variable = variable;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package cz.ufal.udapi.core.stats;
+
+import cz.ufal.udapi.core.Node;
+import cz.ufal.udapi.core.Root;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Statistics of a corpus: distributions of UPOS, deprels and features, sentence lengths
+ * and non-projectivity.
+ *
+ * Partial statistics (e.g. computed by different threads) are combined with merge,
+ * which is associative and commutative.
+ *
+ * @author Martin Vojtek
+ */
+public class CorpusStats {
+
+    private static final String UNDERSCORE = "_";
+    private static final char PIPE = '|';
+
+    private final Counter upos = new Counter();
+    private final Counter deprels = new Counter();
+    private final Counter feats = new Counter();
+    private final Histogram sentenceLengths = new Histogram();
+
+    private long trees;
+    private long nodes;
+    private long nonProjectiveTrees;
+    private long nonProjectiveEdges;
+
+    /**
+     * Adds statistics of the tree.
+     *
+     * @param tree tree to add
+     */
+    public void add(Root tree) {
+        List<Node> descendants = tree.getDescendants();
+        trees++;
+        nodes += descendants.size();
+        sentenceLengths.add(descendants.size());
+
+        for (Node node : descendants) {
+            if (null != node.getUpos()) {
+                upos.add(node.getUpos());
+            }
+            if (null != node.getDeprel()) {
+                deprels.add(node.getDeprel());
+            }
+            addFeats(node.getFeats());
+        }
+
+        int edges = countNonProjectiveEdges(descendants);
+        if (edges > 0) {
+            nonProjectiveTrees++;
+            nonProjectiveEdges += edges;
+        }
+    }
+
+    private void addFeats(String value) {
+        if (null == value || UNDERSCORE.equals(value)) {
+            return;
+        }
+        int start = 0;
+        while (start < value.length()) {
+            int end = value.indexOf(PIPE, start);
+            if (-1 == end) {
+                end = value.length();
+            }
+            if (end > start) {
+                feats.add(value.substring(start, end));
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Edge from h to d is non-projective if a node between h and d is not a descendant of h.
+     * Descendants are tested in constant time using DFS entry and exit times.
+     */
+    static int countNonProjectiveEdges(List<Node> descendants) {
+        int size = descendants.size();
+        int[] parents = new int[size + 1];
+        int[] firstChild = new int[size + 1];
+        int[] nextSibling = new int[size + 1];
+        for (Node node : descendants) {
+            int ord = node.getOrd();
+            parents[ord] = node.getParent().map(Node::getOrd).orElse(0);
+        }
+        //children linked in reverse order of ords, the order does not matter
+        for (int ord = 1; ord <= size; ord++) {
+            nextSibling[ord] = firstChild[parents[ord]];
+            firstChild[parents[ord]] = ord;
+        }
+
+        int[] entry = new int[size + 1];
+        int[] exit = new int[size + 1];
+        int[] stack = new int[size + 1];
+        int[] nextChild = new int[size + 1];
+        int time = 0;
+        int top = 0;
+        stack[0] = 0;
+        entry[0] = time++;
+        nextChild[0] = firstChild[0];
+        while (top >= 0) {
+            int node = stack[top];
+            int child = nextChild[node];
+            if (0 != child) {
+                nextChild[node] = nextSibling[child];
+                entry[child] = time++;
+                nextChild[child] = firstChild[child];
+                stack[++top] = child;
+            } else {
+                exit[node] = time++;
+                top--;
+            }
+        }
+
+        int edges = 0;
+        for (int dependent = 1; dependent <= size; dependent++) {
+            int head = parents[dependent];
+            int from = Math.min(head, dependent) + 1;
+            int to = Math.max(head, dependent);
+            for (int between = from; between < to; between++) {
+                if (entry[between] < entry[head] || exit[between] > exit[head]) {
+                    edges++;
+                    break;
+                }
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Adds statistics of another partial result.
+     *
+     * @param other statistics to add
+     */
+    public void merge(CorpusStats other) {
+        upos.merge(other.upos);
+        deprels.merge(other.deprels);
+        feats.merge(other.feats);
+        sentenceLengths.merge(other.sentenceLengths);
+        trees += other.trees;
+        nodes += other.nodes;
+        nonProjectiveTrees += other.nonProjectiveTrees;
+        nonProjectiveEdges += other.nonProjectiveEdges;
+    }
+
+    public Counter getUpos() {
+        return upos;
+    }
+
+    public Counter getDeprels() {
+        return deprels;
+    }
+
+    public Counter getFeats() {
+        return feats;
+    }
+
+    public Histogram getSentenceLengths() {
+        return sentenceLengths;
+    }
+
+    public long getTrees() {
+        return trees;
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+
+    public long getNonProjectiveTrees() {
+        return nonProjectiveTrees;
+    }
+
+    public long getNonProjectiveEdges() {
+        return nonProjectiveEdges;
+    }
+
+    /**
+     * @return statistics as a JSON object
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\n  \"trees\": ").append(trees)
+                .append(",\n  \"nodes\": ").append(nodes)
+                .append(",\n  \"nonProjectiveTrees\": ").append(nonProjectiveTrees)
+                .append(",\n  \"nonProjectiveEdges\": ").append(nonProjectiveEdges)
+                .append(String.format(Locale.ROOT, ",\n  \"nonProjectiveTreeRate\": %.5f", rate(nonProjectiveTrees, trees)))
+                .append(String.format(Locale.ROOT, ",\n  \"nonProjectiveEdgeRate\": %.5f", rate(nonProjectiveEdges, nodes)))
+                .append(",\n  \"sentenceLength\": ");
+        sentenceLengths.appendJson(sb);
+        sb.append(",\n  \"upos\": ");
+        upos.appendJson(sb);
+        sb.append(",\n  \"deprel\": ");
+        deprels.appendJson(sb);
+        sb.append(",\n  \"feats\": ");
+        feats.appendJson(sb);
+        sb.append("\n}");
+        return sb.toString();
+    }
+
+    private static double rate(long count, long all) {
+        return 0 == all ? 0 : (double) count / all;
+    }
+
+    static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ('"' == c || '\\' == c) {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,93 @@
+package cz.ufal.udapi.core.stats;
+
+import java.util.Arrays;
+
+/**
+ * Counts of strings, dictionary-encoded into a primitive array.
+ *
+ * @author Martin Vojtek
+ */
+public class Counter {
+
+    private final Dictionary dictionary = new Dictionary();
+    private long[] counts = new long[16];
+    private long total;
+
+    /**
+     * @param key string to count
+     */
+    public void add(String key) {
+        add(key, 1);
+    }
+
+    /**
+     * @param key string to count
+     * @param count count to add
+     */
+    public void add(String key, long count) {
+        int id = dictionary.add(key);
+        if (id == counts.length) {
+            counts = Arrays.copyOf(counts, 2 * id);
+        }
+        counts[id] += count;
+        total += count;
+    }
+
+    /**
+     * @param key counted string
+     * @return count of the string
+     */
+    public long get(String key) {
+        int id = dictionary.getId(key);
+        return -1 == id ? 0 : counts[id];
+    }
+
+    /**
+     * @return sum of all counts
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return number of distinct strings
+     */
+    public int size() {
+        return dictionary.size();
+    }
+
+    /**
+     * Adds counts of another counter.
+     *
+     * @param other counter to add
+     */
+    public void merge(Counter other) {
+        for (int id = 0; id < other.dictionary.size(); id++) {
+            add(other.dictionary.getKey(id), other.counts[id]);
+        }
+    }
+
+    /**
+     * Appends JSON object with the counts sorted by count in descending order.
+     *
+     * @param sb where to append
+     */
+    public void appendJson(StringBuilder sb) {
+        Integer[] ids = new Integer[dictionary.size()];
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = id;
+        }
+        Arrays.sort(ids, (a, b) -> 0 != Long.compare(counts[b], counts[a])
+                ? Long.compare(counts[b], counts[a]) : dictionary.getKey(a).compareTo(dictionary.getKey(b)));
+
+        sb.append('{');
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            CorpusStats.appendString(sb, dictionary.getKey(ids[i]));
+            sb.append(": ").append(counts[ids[i]]);
+        }
+        sb.append('}');
+    }
+}
@@ -0,0 +1,91 @@
+package cz.ufal.udapi.core.stats;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary encoding strings as dense ids 0, 1, 2, ...
+ * Lookup uses open addressing over primitive arrays, so no boxed values are created.
+ *
+ * @author Martin Vojtek
+ */
+public class Dictionary {
+
+    private String[] keys = new String[16];
+
+    /**
+     * Hash table of ids increased by one, 0 means an empty slot.
+     */
+    private int[] table = new int[32];
+
+    private int size;
+
+    /**
+     * @param key string to look up
+     * @return id of the string or -1 if it is not in the dictionary
+     */
+    public int getId(String key) {
+        int slot = slot(key);
+        return table[slot] - 1;
+    }
+
+    /**
+     * @param key string to add
+     * @return id of the string, a new id if it was not in the dictionary
+     */
+    public int add(String key) {
+        int slot = slot(key);
+        if (0 != table[slot]) {
+            return table[slot] - 1;
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * size);
+        }
+        keys[size] = key;
+        table[slot] = ++size;
+        if (2 * size > table.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /**
+     * @param id id returned by add
+     * @return the string
+     */
+    public String getKey(int id) {
+        return keys[id];
+    }
+
+    /**
+     * @return number of strings
+     */
+    public int size() {
+        return size;
+    }
+
+    private int slot(String key) {
+        int mask = table.length - 1;
+        int slot = mix(key.hashCode()) & mask;
+        while (0 != table[slot] && !keys[table[slot] - 1].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        table = new int[2 * table.length];
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(keys[id].hashCode()) & mask;
+            while (0 != table[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,101 @@
+package cz.ufal.udapi.core.stats;
+
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Histogram of non-negative integer values with a bin for each value.
+ *
+ * @author Martin Vojtek
+ */
+public class Histogram {
+
+    private long[] bins = new long[64];
+    private long count;
+    private long sum;
+    private int max = -1;
+
+    /**
+     * @param value value to add
+     */
+    public void add(int value) {
+        add(value, 1);
+    }
+
+    private void add(int value, long times) {
+        if (value < 0) {
+            throw new UdapiException("Histogram value must not be negative: " + value);
+        }
+        if (value >= bins.length) {
+            bins = Arrays.copyOf(bins, Math.max(2 * bins.length, value + 1));
+        }
+        bins[value] += times;
+        count += times;
+        sum += value * times;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * @param value value
+     * @return how many times the value was added
+     */
+    public long get(int value) {
+        return value < bins.length ? bins[value] : 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return mean of the values, 0 for empty histogram
+     */
+    public double getMean() {
+        return 0 == count ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return maximal value, -1 for empty histogram
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Adds values of another histogram.
+     *
+     * @param other histogram to add
+     */
+    public void merge(Histogram other) {
+        for (int value = 0; value <= other.max; value++) {
+            if (0 != other.bins[value]) {
+                add(value, other.bins[value]);
+            }
+        }
+    }
+
+    /**
+     * Appends JSON object with count, mean, max and non-empty bins.
+     *
+     * @param sb where to append
+     */
+    public void appendJson(StringBuilder sb) {
+        sb.append("{\"count\": ").append(count)
+                .append(String.format(Locale.ROOT, ", \"mean\": %.3f", getMean()))
+                .append(", \"max\": ").append(max)
+                .append(", \"bins\": {");
+        boolean first = true;
+        for (int value = 0; value <= max; value++) {
+            if (0 != bins[value]) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                sb.append('"').append(value).append("\": ").append(bins[value]);
+                first = false;
+            }
+        }
+        sb.append("}}");
+    }
+}
@@ -0,0 +1,434 @@
+package cz.ufal.udapi.core.stats;
+
+import cz.ufal.udapi.core.io.UdapiIOException;
+import cz.ufal.udapi.exception.UdapiException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts of keys consisting of a fixed number of int ids (e.g. ids of head lemma, deprel and dependent lemma).
+ *
+ * Counts are kept in an open-addressing hash table in a direct (off-heap) buffer. When the table
+ * would exceed the memory limit, its entries are sorted and spilled to a run file on disk
+ * and the table is cleared. finish() merges the runs and the table and reports each key once.
+ *
+ * Example usage:
+ * <code>
+ *     OffHeapCounter counter = new OffHeapCounter(3, 256 * 1024 * 1024, tmpDir);
+ *     counter.add(new int[]{head, deprel, dependent});
+ *     counter.finish((key, count) -&gt; System.out.println(Arrays.toString(key) + " " + count));
+ * </code>
+ *
+ * @author Martin Vojtek
+ */
+public class OffHeapCounter {
+
+    /**
+     * Receives merged counts.
+     */
+    @FunctionalInterface
+    public interface Consumer {
+        /**
+         * @param key key, the array is reused between calls
+         * @param count count of the key
+         */
+        void accept(int[] key, long count);
+    }
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final double MAX_LOAD = 0.7;
+
+    private final int keyLength;
+    private final int entrySize;
+    private final long maxBytes;
+    private final Path tmpDir;
+
+    private ByteBuffer table;
+    private int capacity;
+    private int size;
+    private final List<Path> runs = new ArrayList<>();
+
+    /**
+     * @param keyLength number of ids in a key
+     * @param maxBytes maximal size of the hash table in bytes, at most 1 GiB is used
+     * @param tmpDir directory for spilled runs
+     */
+    public OffHeapCounter(int keyLength, long maxBytes, Path tmpDir) {
+        if (keyLength <= 0) {
+            throw new UdapiException("Key length must be positive: " + keyLength);
+        }
+        this.keyLength = keyLength;
+        this.entrySize = 4 * keyLength + 8;
+        this.tmpDir = tmpDir;
+
+        int maxCapacity = INITIAL_CAPACITY;
+        while ((long) maxCapacity * 2 * entrySize <= maxBytes && maxCapacity < (1 << 30) / entrySize) {
+            maxCapacity *= 2;
+        }
+        if ((long) maxCapacity * entrySize > maxBytes) {
+            throw new UdapiException("Memory limit " + maxBytes + " is too small, at least "
+                    + (long) INITIAL_CAPACITY * entrySize + " bytes are needed.");
+        }
+        this.maxBytes = (long) maxCapacity * entrySize;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int newCapacity) {
+        capacity = newCapacity;
+        table = ByteBuffer.allocateDirect(capacity * entrySize).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Adds one occurrence of the key.
+     *
+     * @param key ids, keyLength of them
+     */
+    public void add(int[] key) {
+        add(key, 1);
+    }
+
+    /**
+     * @param key ids, keyLength of them
+     * @param count count to add, must be positive
+     */
+    public void add(int[] key, long count) {
+        int slot = find(table, capacity, key);
+        int offset = slot * entrySize;
+        long current = table.getLong(offset + 4 * keyLength);
+        if (0 != current) {
+            table.putLong(offset + 4 * keyLength, current + count);
+            return;
+        }
+
+        if (size + 1 > capacity * MAX_LOAD) {
+            if ((long) capacity * 2 * entrySize <= maxBytes) {
+                grow();
+            } else {
+                spill();
+            }
+            slot = find(table, capacity, key);
+            offset = slot * entrySize;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            table.putInt(offset + 4 * i, key[i]);
+        }
+        table.putLong(offset + 4 * keyLength, count);
+        size++;
+    }
+
+    /**
+     * @return number of distinct keys in memory
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of runs spilled to disk
+     */
+    public int getNumberOfRuns() {
+        return runs.size();
+    }
+
+    private int find(ByteBuffer buffer, int tableCapacity, int[] key) {
+        int mask = tableCapacity - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            int offset = slot * entrySize;
+            if (0 == buffer.getLong(offset + 4 * keyLength) || equalsKey(buffer, offset, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean equalsKey(ByteBuffer buffer, int offset, int[] key) {
+        for (int i = 0; i < keyLength; i++) {
+            if (buffer.getInt(offset + 4 * i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(int[] key) {
+        int hash = 0;
+        for (int id : key) {
+            hash = (hash + id) * 0x9e3779b9;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() {
+        ByteBuffer oldTable = table;
+        int oldCapacity = capacity;
+        allocate(2 * capacity);
+        int[] key = new int[keyLength];
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int offset = slot * entrySize;
+            long count = oldTable.getLong(offset + 4 * keyLength);
+            if (0 != count) {
+                readKey(oldTable, offset, key);
+                int newOffset = find(table, capacity, key) * entrySize;
+                for (int i = 0; i < keyLength; i++) {
+                    table.putInt(newOffset + 4 * i, key[i]);
+                }
+                table.putLong(newOffset + 4 * keyLength, count);
+            }
+        }
+    }
+
+    private void readKey(ByteBuffer buffer, int offset, int[] key) {
+        for (int i = 0; i < keyLength; i++) {
+            key[i] = buffer.getInt(offset + 4 * i);
+        }
+    }
+
+    /**
+     * Moves the entries to the beginning of the table and sorts them by key.
+     * The table is not a valid hash table afterwards.
+     */
+    private void compactAndSort() {
+        int next = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = slot * entrySize;
+            if (0 != table.getLong(offset + 4 * keyLength)) {
+                if (next != slot) {
+                    copyEntry(offset, next * entrySize);
+                }
+                next++;
+            }
+        }
+        sort(0, size - 1, new byte[entrySize], new byte[entrySize]);
+    }
+
+    private void copyEntry(int from, int to) {
+        for (int i = 0; i < entrySize; i += 4) {
+            table.putInt(to + i, table.getInt(from + i));
+        }
+    }
+
+    private void sort(int low, int high, byte[] a, byte[] b) {
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            swap(middle, high, a, b);
+            int store = low;
+            for (int i = low; i < high; i++) {
+                if (compareEntries(i, high) < 0) {
+                    swap(i, store++, a, b);
+                }
+            }
+            swap(store, high, a, b);
+            //recurse into the smaller part to bound the stack depth
+            if (store - low < high - store) {
+                sort(low, store - 1, a, b);
+                low = store + 1;
+            } else {
+                sort(store + 1, high, a, b);
+                high = store - 1;
+            }
+        }
+    }
+
+    private int compareEntries(int first, int second) {
+        int firstOffset = first * entrySize;
+        int secondOffset = second * entrySize;
+        for (int i = 0; i < keyLength; i++) {
+            int cmp = Integer.compare(table.getInt(firstOffset + 4 * i), table.getInt(secondOffset + 4 * i));
+            if (0 != cmp) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private void swap(int first, int second, byte[] a, byte[] b) {
+        if (first == second) {
+            return;
+        }
+        int firstOffset = first * entrySize;
+        int secondOffset = second * entrySize;
+        table.position(firstOffset);
+        table.get(a);
+        table.position(secondOffset);
+        table.get(b);
+        table.position(firstOffset);
+        table.put(b);
+        table.position(secondOffset);
+        table.put(a);
+        table.clear();
+    }
+
+    /**
+     * Writes sorted entries into a new run and clears the table.
+     */
+    private void spill() {
+        compactAndSort();
+        try {
+            Path run = Files.createTempFile(tmpDir, "udapi-run", ".bin");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+                for (int entry = 0; entry < size; entry++) {
+                    int offset = entry * entrySize;
+                    for (int i = 0; i < keyLength; i++) {
+                        out.writeInt(table.getInt(offset + 4 * i));
+                    }
+                    out.writeLong(table.getLong(offset + 4 * keyLength));
+                }
+            }
+            runs.add(run);
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to spill counts into '" + tmpDir + "'.", e);
+        }
+        clear();
+    }
+
+    private void clear() {
+        for (int offset = 0; offset < capacity * entrySize; offset += 8) {
+            table.putLong(offset, 0);
+        }
+        size = 0;
+    }
+
+    /**
+     * Merges spilled runs with the entries in memory and reports the counts ordered by key.
+     * Runs are deleted and the counter is empty afterwards.
+     *
+     * @param consumer receives each key once with its total count
+     */
+    public void finish(Consumer consumer) {
+        compactAndSort();
+
+        PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> compareKeys(a.key, b.key));
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            readers.add(new MemoryRunReader());
+            for (Path run : runs) {
+                readers.add(new FileRunReader(run));
+            }
+            for (RunReader reader : readers) {
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+
+            int[] key = new int[keyLength];
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                System.arraycopy(reader.key, 0, key, 0, keyLength);
+                long count = reader.count;
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+                while (!queue.isEmpty() && 0 == compareKeys(queue.peek().key, key)) {
+                    RunReader same = queue.poll();
+                    count += same.count;
+                    if (same.next()) {
+                        queue.add(same);
+                    }
+                }
+                consumer.accept(key, count);
+            }
+        } catch (IOException e) {
+            throw new UdapiIOException("Failed to merge spilled counts.", e);
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+            for (Path run : runs) {
+                try {
+                    Files.deleteIfExists(run);
+                } catch (IOException e) {
+                    System.err.println("Failed to delete '" + run + "'.");
+                }
+            }
+            runs.clear();
+            clear();
+        }
+    }
+
+    private int compareKeys(int[] first, int[] second) {
+        for (int i = 0; i < keyLength; i++) {
+            int cmp = Integer.compare(first[i], second[i]);
+            if (0 != cmp) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Sorted sequence of entries.
+     */
+    private abstract class RunReader {
+        final int[] key = new int[keyLength];
+        long count;
+
+        /**
+         * Reads the next entry into key and count.
+         *
+         * @return false at the end of the run
+         */
+        abstract boolean next() throws IOException;
+
+        void close() {
+        }
+    }
+
+    private class MemoryRunReader extends RunReader {
+        private int entry;
+
+        @Override
+        boolean next() {
+            if (entry == size) {
+                return false;
+            }
+            int offset = entry++ * entrySize;
+            readKey(table, offset, key);
+            count = table.getLong(offset + 4 * keyLength);
+            return true;
+        }
+    }
+
+    private class FileRunReader extends RunReader {
+        private final DataInputStream in;
+
+        FileRunReader(Path run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 1 << 16));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            try {
+                key[0] = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            for (int i = 1; i < keyLength; i++) {
+                key[i] = in.readInt();
+            }
+            count = in.readLong();
+            return true;
+        }
+
+        @Override
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close run: " + e.getMessage());
+            }
+        }
+    }
+}
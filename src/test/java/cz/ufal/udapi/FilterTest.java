@@ -0,0 +1,153 @@
+package cz.ufal.udapi;
+
+import cz.ufal.udapi.block.util.Filter;
+import cz.ufal.udapi.block.util.Index;
+import cz.ufal.udapi.core.Block;
+import cz.ufal.udapi.core.Bundle;
+import cz.ufal.udapi.core.Document;
+import cz.ufal.udapi.core.Pipeline;
+import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.io.impl.CoNLLUWriter;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of Util::Filter.
+ */
+public class FilterTest {
+
+    private static final String AUX = "$a: upos=AUX";
+
+    @Test
+    public void testTreesAreKeptOrDeleted() throws Exception {
+        assertEquals("[b1/cs:16]", filter(AUX, "keep", "tree"));
+        assertEquals("[b1/en:6, b2/en:6]", filter(AUX, "delete", "tree"));
+    }
+
+    @Test
+    public void testBundlesAreKeptOrDeleted() throws Exception {
+        assertEquals("[b1/cs:16, b1/en:6]", filter(AUX, "keep", "bundle"));
+        assertEquals("[b2/en:6]", filter(AUX, "delete", "bundle"));
+    }
+
+    @Test
+    public void testNodesAreKeptOrDeleted() throws Exception {
+        assertEquals("[b1/cs:2, b1/en:0, b2/en:0]", filter(AUX, "keep", "node"));
+        assertEquals("[b1/cs:14, b1/en:6, b2/en:6]", filter(AUX, "delete", "node"));
+    }
+
+    @Test
+    public void testMatchesAreMarked() throws Exception {
+        assertEquals("[b1/cs:16, b1/en:6, b2/en:6]", filter(AUX, "mark", "tree"));
+        String output = filterOutput(AUX, "mark", "tree", null, 1);
+        assertEquals(2, output.split("Mark=1", -1).length - 1);
+        //all nodes of the match are marked
+        output = filterOutput("$a: upos=ADP; $c: upos=CONJ; $a parent $c", "mark", "tree", null, 1);
+        assertEquals(4, output.split("Mark=1", -1).length - 1);
+    }
+
+    @Test
+    public void testIndexPrunesCandidates() throws Exception {
+        Path indexFile = Files.createTempFile("udapi-index", ".idx");
+        try {
+            Map<String, String> params = new HashMap<>();
+            params.put(Index.PARAM_FILE, indexFile.toString());
+            cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU();
+            reader.setInput(new StringReader(input()));
+            Pipeline pipeline = Pipeline.builder().add(reader).add(new Zones()).add(new Index(params)).build();
+            pipeline.start();
+            pipeline.process();
+            pipeline.end();
+
+            for (String action : new String[]{"keep", "delete", "mark"}) {
+                for (String pattern : new String[]{AUX, "$a: upos=ADP; $b: upos=NOUN; $a parent $b"}) {
+                    assertEquals(filterOutput(pattern, action, "tree", null, 1),
+                            filterOutput(pattern, action, "tree", indexFile.toString(), 1));
+                }
+            }
+        } finally {
+            Files.delete(indexFile);
+        }
+    }
+
+    private String input() throws Exception {
+        String enhDeps = resource("enh_deps.conllu");
+        return resource("mwt_test.conllu") + enhDeps + enhDeps;
+    }
+
+    /**
+     * Filters the input with one and more threads, checks that the results are identical
+     * and describes the remaining trees by their addresses and numbers of nodes.
+     */
+    private String filter(String pattern, String action, String scope) throws Exception {
+        String output = filterOutput(pattern, action, scope, null, 1);
+        assertEquals(output, filterOutput(pattern, action, scope, null, 4));
+
+        List<String> trees = new ArrayList<>();
+        for (Bundle bundle : process(pattern, action, scope, null, 1).getBundles()) {
+            for (Root tree : bundle.getTrees()) {
+                trees.add(tree.getAddress() + ":" + tree.getDescendants().size());
+            }
+        }
+        return trees.toString();
+    }
+
+    private String filterOutput(String pattern, String action, String scope, String index, int threads) throws Exception {
+        StringWriter output = new StringWriter();
+        new CoNLLUWriter().writeDocument(process(pattern, action, scope, index, threads), output);
+        return output.toString();
+    }
+
+    private Document process(String pattern, String action, String scope, String index, int threads) throws Exception {
+        Map<String, String> params = new HashMap<>();
+        params.put(Filter.PARAM_PATTERN, pattern);
+        params.put(Filter.PARAM_ACTION, action);
+        params.put(Filter.PARAM_SCOPE, scope);
+        params.put(Filter.PARAM_THREADS, String.valueOf(threads));
+        if (null != index) {
+            params.put(Filter.PARAM_INDEX, index);
+        }
+        cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU();
+        reader.setInput(new StringReader(input()));
+        Pipeline pipeline = Pipeline.builder().add(reader).add(new Zones()).add(new Filter(params)).build();
+        pipeline.start();
+        Document document = pipeline.process();
+        pipeline.end();
+        return document;
+    }
+
+    private String resource(String name) throws Exception {
+        return new String(Files.readAllBytes(Paths.get(getClass().getResource(name).toURI())), "UTF-8");
+    }
+
+    /**
+     * Groups the three input trees into bundles. Bundle b1 contains a Czech tree with two auxiliaries
+     * and an English tree without them, bundle b2 contains an English tree only.
+     */
+    private static class Zones extends Block {
+
+        @Override
+        public void processDocument(Document document) {
+            List<Bundle> bundles = new ArrayList<>(document.getBundles());
+            Root en = bundles.get(1).getTrees().get(0);
+            bundles.get(1).remove();
+            bundles.get(0).addTree(en);
+            bundles.get(0).setId("b1");
+            bundles.get(0).getTrees().get(0).setZone("cs");
+            en.setZone("en");
+            bundles.get(2).setId("b2");
+            bundles.get(2).getTrees().get(0).setZone("en");
+        }
+    }
+}
@@ -1,16 +1,28 @@
 package cz.ufal.udapi;
 
 import cz.ufal.udapi.core.*;
+import cz.ufal.udapi.core.impl.DefaultDocument;
+import cz.ufal.udapi.core.impl.DefaultRoot;
 import cz.ufal.udapi.core.io.impl.CoNLLUReader;
 import cz.ufal.udapi.core.io.impl.CoNLLUWriter;
+import cz.ufal.udapi.core.query.TreeQuery;
+import cz.ufal.udapi.exception.UdapiException;
 import org.junit.Test;
 
 import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Optional;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 
 /**
  * Created by mvojtek on 03/06/2017.
@@ -93,4 +105,219 @@ public class NodeTest {
         String originalContent = new String(Files.readAllBytes(Paths.get(getClass().getResource(documentPath).toURI())));
         assertEquals(originalContent, resultConllu);
     }
+
+    @Test
+    public void testParallelWriterKeepsOrder() throws Exception {
+        CoNLLUReader reader = new CoNLLUReader(Paths.get(getClass().getResource("mwt_test.conllu").toURI()));
+        Root tree = reader.readDocument().getBundles().get(0).getTrees().get(0);
+
+        Document document = new DefaultDocument();
+        for (int i = 0; i < 1000; i++) {
+            Bundle bundle = document.createBundle();
+            bundle.setId("s" + i);
+            Root copy = tree.copyTree();
+            copy.setSentId("s" + i);
+            bundle.addTree(copy);
+        }
+
+        StringWriter expected = new StringWriter();
+        new CoNLLUWriter().writeDocument(document, expected);
+
+        CoNLLUWriter writer = new CoNLLUWriter();
+        writer.setThreads(4);
+        StringWriter actual = new StringWriter();
+        writer.writeDocument(document, actual);
+        writer.shutdown();
+
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void testBuildTree() {
+        Root tree = new DefaultRoot(new DefaultDocument());
+
+        List<Node> nodes = tree.buildTree(new int[]{2, 0, 2}, new String[]{"Dogs", "bark", "."},
+                null, new String[]{"NOUN", "VERB", "PUNCT"}, null, null,
+                new String[]{"nsubj", "root", "punct"}, null, null);
+
+        assertEquals(3, nodes.size());
+        assertEquals(nodes, tree.getDescendants());
+        assertEquals(1, tree.getNode().getChildren().size());
+        Node bark = tree.getNode().getChildren().get(0);
+        assertEquals("bark", bark.getForm());
+        assertEquals(2, bark.getOrd());
+        assertEquals(Arrays.asList(nodes.get(0), nodes.get(2)), bark.getChildren());
+        assertEquals(bark, nodes.get(0).getParent().get());
+        assertEquals("punct", nodes.get(2).getDeprel());
+        assertNull(nodes.get(2).getLemma());
+    }
+
+    @Test(expected = UdapiException.class)
+    public void testBuildTreeWithCycle() {
+        Root tree = new DefaultRoot(new DefaultDocument());
+        tree.buildTree(new int[]{0, 3, 2}, null, null, null, null, null, null, null, null);
+    }
+
+    @Test
+    public void testSetHeads() {
+        Root tree = new DefaultRoot(new DefaultDocument());
+        List<Node> nodes = tree.buildTree(new int[]{2, 0, 2}, null, null, null, null, null, null, null, null);
+
+        tree.setHeads(new int[]{0, 1, 1}, new String[]{"root", "dep", "punct"}, false);
+        assertEquals(Arrays.asList(nodes.get(0)), tree.getNode().getChildren());
+        assertEquals(Arrays.asList(nodes.get(1), nodes.get(2)), nodes.get(0).getChildren());
+        assertEquals("dep", nodes.get(1).getDeprel());
+
+        assertSetHeadsMatchesSetParent(new int[]{0, 1, 0}, new int[]{2, 2, 1});
+        assertSetHeadsMatchesSetParent(new int[]{0, 0, 2, 1, 1}, new int[]{3, 5, 5, 2, 0});
+
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            int size = 1 + random.nextInt(8);
+            //random tree: each node in a random order hangs on an already attached node
+            int[] oldHeads = new int[size];
+            List<Integer> attached = new ArrayList<>(Arrays.asList(0));
+            List<Integer> ords = new ArrayList<>();
+            for (int ord = 1; ord <= size; ord++) {
+                ords.add(ord);
+            }
+            Collections.shuffle(ords, random);
+            for (int ord : ords) {
+                oldHeads[ord - 1] = attached.get(random.nextInt(attached.size()));
+                attached.add(ord);
+            }
+            //random heads, including self-loops and cycles
+            int[] newHeads = new int[size];
+            for (int j = 0; j < size; j++) {
+                newHeads[j] = random.nextInt(size + 1);
+            }
+            assertSetHeadsMatchesSetParent(oldHeads, newHeads);
+        }
+    }
+
+    private static void assertSetHeadsMatchesSetParent(int[] oldHeads, int[] newHeads) {
+        int size = oldHeads.length;
+        String[] oldDeprels = new String[size];
+        String[] newDeprels = new String[size];
+        for (int i = 0; i < size; i++) {
+            oldDeprels[i] = "old" + i;
+            newDeprels[i] = "new" + i;
+        }
+
+        Root bulk = new DefaultRoot(new DefaultDocument());
+        List<Node> bulkNodes = bulk.buildTree(oldHeads, null, null, null, null, null, oldDeprels, null, null);
+        bulk.setHeads(newHeads, newDeprels, true);
+
+        Root sequential = new DefaultRoot(new DefaultDocument());
+        List<Node> nodes = sequential.buildTree(oldHeads, null, null, null, null, null, oldDeprels, null, null);
+        for (int i = 0; i < size; i++) {
+            Node parent = 0 == newHeads[i] ? sequential.getNode() : nodes.get(newHeads[i] - 1);
+            nodes.get(i).setParent(parent, true);
+            if (nodes.get(i).getParent().get() == parent) {
+                nodes.get(i).setDeprel(newDeprels[i]);
+            }
+        }
+
+        String message = Arrays.toString(oldHeads) + " -> " + Arrays.toString(newHeads);
+        for (int i = 0; i < size; i++) {
+            assertEquals(message, nodes.get(i).getParent().get().getOrd(), bulkNodes.get(i).getParent().get().getOrd());
+            assertEquals(message, nodes.get(i).getDeprel(), bulkNodes.get(i).getDeprel());
+        }
+    }
+
+    @Test
+    public void testCopyTree() throws Exception {
+        for (String documentPath : Arrays.asList("mwt_test.conllu", "enh_deps.conllu")) {
+            CoNLLUReader reader = new CoNLLUReader(Paths.get(getClass().getResource(documentPath).toURI()));
+            Document document = reader.readDocument();
+            Bundle bundle = document.getDefaultBundle();
+            Root tree = bundle.getTrees().get(0);
+
+            Root copy = tree.copyTree();
+            bundle.getTrees().set(0, copy);
+
+            CoNLLUWriter writer = new CoNLLUWriter();
+            StringWriter sw = new StringWriter();
+            writer.writeDocument(document, sw);
+
+            String originalContent = new String(Files.readAllBytes(Paths.get(getClass().getResource(documentPath).toURI())));
+            assertEquals(originalContent, sw.toString());
+
+            //changes of the copy do not affect the original tree
+            Node copiedNode = copy.getDescendants().get(0);
+            copiedNode.setForm("changed");
+            copiedNode.setParent(copy.getNode());
+            assertEquals("changed", copiedNode.getForm());
+
+            bundle.getTrees().set(0, tree);
+            sw = new StringWriter();
+            writer.writeDocument(document, sw);
+            assertEquals(originalContent, sw.toString());
+        }
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        String documentPath = "mwt_test.conllu";
+        CoNLLUReader reader = new CoNLLUReader(Paths.get(getClass().getResource(documentPath).toURI()));
+        Document document = reader.readDocument();
+        Root tree = document.getDefaultBundle().getTrees().get(0);
+        List<Node> nodes = new ArrayList<>(tree.getDescendants());
+        List<List<Node>> children = new ArrayList<>();
+        List<Optional<Node>> nextSiblings = new ArrayList<>();
+        for (Node node : nodes) {
+            children.add(node.getChildren());
+            nextSiblings.add(node.getNextSibling());
+        }
+
+        tree.beginTransaction();
+        nodes.get(0).setForm("changed");
+        nodes.get(4).setParent(nodes.get(0));
+        nodes.get(1).shiftAfterNode(nodes.get(10));
+        nodes.get(8).shiftBeforeSubtree(nodes.get(0), EnumSet.of(Node.ShiftArg.WITHOUT_CHILDREN));
+        nodes.get(5).remove(EnumSet.of(Node.RemoveArg.REHANG));
+        nodes.get(12).remove();
+        nodes.get(3).createChild().setForm("new");
+        tree.normalizeOrder();
+        tree.rollback();
+
+        assertFalse(tree.isInTransaction());
+        assertEquals(nodes, tree.getDescendants());
+        for (int i = 0; i < nodes.size(); i++) {
+            assertEquals(i + 1, nodes.get(i).getOrd());
+            assertEquals(children.get(i), nodes.get(i).getChildren());
+            assertEquals(nextSiblings.get(i), nodes.get(i).getNextSibling());
+        }
+
+        CoNLLUWriter writer = new CoNLLUWriter();
+        StringWriter sw = new StringWriter();
+        writer.writeDocument(document, sw);
+        String originalContent = new String(Files.readAllBytes(Paths.get(getClass().getResource(documentPath).toURI())));
+        assertEquals(originalContent, sw.toString());
+
+        tree.beginTransaction();
+        nodes.get(0).setForm("changed");
+        tree.commit();
+        assertEquals("changed", nodes.get(0).getForm());
+    }
+
+    @Test
+    public void testTreeQuery() throws Exception {
+        CoNLLUReader reader = new CoNLLUReader(Paths.get(getClass().getResource("mwt_test.conllu").toURI()));
+        Root tree = reader.readDocument().getDefaultBundle().getTrees().get(0);
+
+        TreeQuery query = TreeQuery.compile("$a: upos=ADP; $n: upos=NOUN; $a child $n; $a precedes $n");
+        List<Node[]> matches = query.findMatches(tree);
+        assertEquals(1, matches.size());
+        assertEquals(11, matches.get(0)[0].getOrd());
+        assertEquals(15, matches.get(0)[1].getOrd());
+
+        query = TreeQuery.compile("$n: upos=NOUN & feats=Case=Loc; $x: upos=ADJ & feats=Case=Loc & deprel!=amod; $x descendant $n");
+        matches = query.findMatches(tree);
+        assertEquals(1, matches.size());
+        assertEquals(14, matches.get(0)[1].getOrd());
+
+        assertFalse(TreeQuery.compile("$a: upos=ADP; $b: upos=ADP; $a sibling $b").matches(tree));
+        assertEquals(3, TreeQuery.compile("$v: upos~AUX|VERB; $m: deprel=mark").findMatches(tree).size());
+    }
 }
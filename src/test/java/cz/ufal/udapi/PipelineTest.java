@@ -0,0 +1,692 @@
+package cz.ufal.udapi;
+
+import cz.ufal.udapi.block.tutorial.DeleteCommas;
+import cz.ufal.udapi.block.util.Index;
+import cz.ufal.udapi.block.util.Stats;
+import cz.ufal.udapi.core.Block;
+import cz.ufal.udapi.core.BlockMetrics;
+import cz.ufal.udapi.core.Bundle;
+import cz.ufal.udapi.core.BundleLatency;
+import cz.ufal.udapi.core.Document;
+import cz.ufal.udapi.core.Node;
+import cz.ufal.udapi.core.Parallel;
+import cz.ufal.udapi.core.Pipeline;
+import cz.ufal.udapi.core.Root;
+import cz.ufal.udapi.core.Selector;
+import cz.ufal.udapi.core.cache.BundleCache;
+import cz.ufal.udapi.core.impl.DefaultDocument;
+import cz.ufal.udapi.core.impl.DefaultRoot;
+import cz.ufal.udapi.core.index.AttributeIndex;
+import cz.ufal.udapi.core.stats.CorpusStats;
+import cz.ufal.udapi.core.stats.OffHeapCounter;
+import cz.ufal.udapi.exception.UdapiException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the embeddable pipeline API.
+ */
+public class PipelineTest {
+
+    @Test
+    public void testPipelineIsReusable() throws Exception {
+        String conllu = resource("mwt_test.conllu");
+
+        cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU();
+        cz.ufal.udapi.block.write.CoNLLU writer = new cz.ufal.udapi.block.write.CoNLLU();
+        NodeCounter counter = new NodeCounter();
+
+        Pipeline pipeline = Pipeline.builder().add(reader).add(counter).add(writer).build();
+        pipeline.start();
+
+        for (int i = 1; i <= 3; i++) {
+            StringWriter response = new StringWriter();
+            reader.setInput(new StringReader(conllu));
+            writer.setOutput(response);
+
+            Document document = pipeline.process();
+
+            assertEquals(1, document.getBundles().size());
+            assertEquals(conllu, response.toString());
+            assertEquals(16 * i, counter.nodes);
+        }
+
+        pipeline.end();
+    }
+
+    @Test
+    public void testSamplingReaderIsReusable() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String enhDeps = resource("enh_deps.conllu");
+        String conllu = enhDeps + mwt + enhDeps;
+
+        Map<String, String> limitParams = new HashMap<>();
+        limitParams.put(cz.ufal.udapi.block.read.CoNLLU.PARAM_LIMIT, "1");
+        Map<String, String> reservoirParams = new HashMap<>();
+        reservoirParams.put(cz.ufal.udapi.block.read.CoNLLU.PARAM_RESERVOIR, "2");
+        reservoirParams.put(cz.ufal.udapi.block.read.CoNLLU.PARAM_SEED, "1");
+        Map<String, String> newDocParams = new HashMap<>();
+        newDocParams.put(cz.ufal.udapi.block.read.CoNLLU.PARAM_NEWDOC, "mf920901");
+
+        //each input is read from its beginning, nothing is carried over from the previous one
+        assertArrayEquals(new int[]{1, 1, 1}, readBundles(limitParams, conllu, mwt, conllu));
+        assertArrayEquals(new int[]{2, 1, 2}, readBundles(reservoirParams, conllu, mwt, conllu));
+        //mwt_test.conllu has no newdoc, so it does not inherit the one of the previous input
+        assertArrayEquals(new int[]{3, 0, 3}, readBundles(newDocParams, conllu, mwt, conllu));
+    }
+
+    @Test
+    public void testSentencesAreReadInChunks() {
+        Map<String, String> params = new HashMap<>();
+        params.put(cz.ufal.udapi.block.read.Sentences.PARAM_BUNDLES_PER_DOC, "2");
+        cz.ufal.udapi.block.read.Sentences reader = new cz.ufal.udapi.block.read.Sentences(params);
+        reader.setInput(new StringReader("First sentence.\nSecond sentence.\nThird sentence.\n"));
+
+        Pipeline pipeline = Pipeline.builder().add(reader).build();
+        pipeline.start();
+
+        Document document = pipeline.process();
+        assertEquals(2, document.getBundles().size());
+        assertEquals("Second sentence.", document.getBundles().get(1).getTrees().get(0).getSentence());
+        assertFalse(pipeline.isFinished());
+
+        document = pipeline.process();
+        assertEquals(1, document.getBundles().size());
+        assertEquals("Third sentence.", document.getBundles().get(0).getTrees().get(0).getSentence());
+        assertTrue(pipeline.isFinished());
+
+        pipeline.end();
+
+        //the number of sentences is a multiple of bundlesPerDoc, there is no empty document at the end
+        reader = new cz.ufal.udapi.block.read.Sentences(params);
+        reader.setInput(new StringReader("First sentence.\nSecond sentence.\nThird sentence.\nFourth sentence.\n"));
+        pipeline = Pipeline.builder().add(reader).build();
+        pipeline.start();
+        document = pipeline.process();
+        assertEquals(2, document.getBundles().size());
+        assertFalse(pipeline.isFinished());
+        document = pipeline.process();
+        assertEquals(2, document.getBundles().size());
+        assertEquals("Fourth sentence.", document.getBundles().get(1).getTrees().get(0).getSentence());
+        assertTrue(pipeline.isFinished());
+        pipeline.end();
+    }
+
+    @Test
+    public void testCachedResultsAreReused() throws Exception {
+        String conllu = resource("mwt_test.conllu");
+        Path cacheDir = Files.createTempDirectory("udapi-cache");
+        try {
+            BundleCache cache = new BundleCache(cacheDir, 1024 * 1024);
+
+            cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU();
+            cz.ufal.udapi.block.write.CoNLLU writer = new cz.ufal.udapi.block.write.CoNLLU();
+            Pipeline pipeline = Pipeline.builder().add(reader).add(new DeleteCommas()).add(writer).cache(cache).build();
+            pipeline.start();
+
+            //the last input inserts a sentence before the cached one, which is still found by its content
+            String[] inputs = {conllu, conllu, resource("enh_deps.conllu") + conllu};
+            String[] results = new String[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                StringWriter response = new StringWriter();
+                reader.setInput(new StringReader(inputs[i]));
+                writer.setOutput(response);
+                pipeline.process();
+                results[i] = response.toString();
+            }
+            pipeline.end();
+
+            assertEquals(2, cache.getHits());
+            assertEquals(2, cache.getMisses());
+            assertEquals(results[0], results[1]);
+            assertTrue(results[2].endsWith(results[1]));
+            assertFalse(results[1].contains("\t,\t,\t"));
+        } finally {
+            delete(cacheDir);
+        }
+    }
+
+    @Test
+    public void testIndexedTreesAreRead() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String enhDeps = resource("enh_deps.conllu");
+        String conllu = enhDeps + mwt + enhDeps;
+        Path indexFile = Files.createTempFile("udapi-index", ".idx");
+        try {
+            Map<String, String> indexParams = new HashMap<>();
+            indexParams.put(Index.PARAM_FILE, indexFile.toString());
+            cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU();
+            reader.setInput(new StringReader(conllu));
+            Pipeline pipeline = Pipeline.builder().add(reader).add(new Index(indexParams)).build();
+            pipeline.start();
+            pipeline.process();
+            pipeline.end();
+
+            AttributeIndex index = AttributeIndex.load(indexFile);
+            assertEquals(3, index.getNumberOfTrees());
+            assertEquals(5, index.getFrequency(AttributeIndex.UPOS, "ADP"));
+            assertArrayEquals(new int[]{0, 2}, index.searchTrees("upos=ADP & !feats=Case=Loc"));
+            assertArrayEquals(new int[]{1}, index.searchTrees("upos=AUX | (lemma=v & feats=Case=Loc)"));
+
+            Map<String, String> readerParams = new HashMap<>();
+            readerParams.put(cz.ufal.udapi.block.read.CoNLLU.PARAM_INDEX, indexFile.toString());
+            readerParams.put(cz.ufal.udapi.block.read.CoNLLU.PARAM_QUERY, "upos=AUX");
+            reader = new cz.ufal.udapi.block.read.CoNLLU(readerParams);
+            reader.setInput(new StringReader(conllu));
+            cz.ufal.udapi.block.write.CoNLLU writer = new cz.ufal.udapi.block.write.CoNLLU();
+            StringWriter response = new StringWriter();
+            writer.setOutput(response);
+            pipeline = Pipeline.builder().add(reader).add(writer).build();
+            pipeline.start();
+            Document document = pipeline.process();
+            pipeline.end();
+
+            assertEquals(1, document.getBundles().size());
+            assertEquals(mwt, response.toString());
+        } finally {
+            delete(indexFile);
+        }
+    }
+
+    @Test(expected = UdapiException.class)
+    public void testIndexRejectsSelectors() {
+        Map<String, String> params = new HashMap<>();
+        params.put(Selector.PARAM_ZONES, "en");
+        new Index(params);
+    }
+
+    @Test
+    public void testParallelStatsAreMerged() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String enhDeps = resource("enh_deps.conllu");
+        String conllu = enhDeps + mwt + enhDeps + mwt + mwt;
+
+        String[] results = new String[2];
+        for (int threads = 1; threads <= 2; threads++) {
+            Map<String, String> params = new HashMap<>();
+            params.put(Stats.PARAM_THREADS, String.valueOf(threads));
+            Stats stats = new Stats(params);
+            cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU();
+            reader.setInput(new StringReader(conllu));
+            Pipeline pipeline = Pipeline.builder().add(reader).add(stats).build();
+            pipeline.start();
+            pipeline.process();
+            pipeline.end();
+
+            CorpusStats corpusStats = stats.getStats();
+            assertEquals(5, corpusStats.getTrees());
+            assertEquals(3 * 16 + 2 * 6, corpusStats.getNodes());
+            assertEquals(7, corpusStats.getUpos().get("ADP"));
+            assertEquals(12, corpusStats.getFeats().get("Case=Loc"));
+            assertEquals(3, corpusStats.getSentenceLengths().get(16));
+            results[threads - 1] = corpusStats.toJson();
+        }
+        assertEquals(results[0], results[1]);
+
+        Root tree = new DefaultRoot(new DefaultDocument());
+        tree.buildTree(new int[]{3, 4, 0, 3}, null, null, null, null, null, null, null, null);
+        CorpusStats corpusStats = new CorpusStats();
+        corpusStats.add(tree);
+        assertEquals(1, corpusStats.getNonProjectiveTrees());
+        assertEquals(1, corpusStats.getNonProjectiveEdges());
+    }
+
+    @Test
+    public void testSpilledCountsAreMerged() throws Exception {
+        Path tmpDir = Files.createTempDirectory("udapi-runs");
+        try {
+            OffHeapCounter counter = new OffHeapCounter(2, 4096 * 16, tmpDir);
+            Map<Long, Long> expected = new HashMap<>();
+            Random random = new Random(42);
+            for (int i = 0; i < 50000; i++) {
+                int[] key = {random.nextInt(100), random.nextInt(100)};
+                counter.add(key);
+                expected.merge(((long) key[0] << 32) | key[1], 1L, Long::sum);
+            }
+            assertTrue(counter.getNumberOfRuns() > 0);
+
+            Map<Long, Long> actual = new HashMap<>();
+            long[] last = {-1};
+            counter.finish((key, count) -> {
+                long packed = ((long) key[0] << 32) | key[1];
+                assertTrue(packed > last[0]);
+                last[0] = packed;
+                actual.put(packed, count);
+            });
+            assertEquals(expected, actual);
+            assertEquals(0, tmpDir.toFile().list().length);
+        } finally {
+            delete(tmpDir);
+        }
+    }
+
+    @Test
+    public void testSelectorsSkipBundlesAndTrees() {
+        Document document = new DefaultDocument();
+        String[][] bundles = {{"s1", "cs", "NOUN"}, {"s1", "en", "CONJ"}, {"s2", "cs", "NOUN"}, {"s3", "en", "NOUN"}};
+        Bundle bundle = null;
+        for (String[] tree : bundles) {
+            if (null == bundle || !tree[0].equals(bundle.getId())) {
+                bundle = document.createBundle();
+                bundle.setId(tree[0]);
+            }
+            Root root = bundle.createTree();
+            root.setZone(tree[1]);
+            root.buildTree(new int[]{0}, null, null, new String[]{tree[2]}, null, null, null, null, null);
+        }
+
+        String[][] selectors = {{"zones", "cs"}, {"zones", "en,de"}, {"bundles", "s[2-9]"}, {"trees", "$c: upos=CONJ"}};
+        int[] expectedBundles = {2, 2, 2, 3};
+        int[] expectedTrees = {2, 2, 2, 1};
+        for (int i = 0; i < selectors.length; i++) {
+            Map<String, String> params = new HashMap<>();
+            params.put(selectors[i][0], selectors[i][1]);
+            TreeCounter counter = new TreeCounter(params);
+            Pipeline pipeline = Pipeline.builder().add(counter).build();
+            pipeline.start();
+            pipeline.process(document);
+            pipeline.end();
+
+            assertEquals(selectors[i][0], expectedBundles[i], counter.bundles);
+            assertEquals(selectors[i][0], expectedTrees[i], counter.trees);
+        }
+    }
+
+    @Test
+    public void testFusedBlocksMatchSequentialBlocks() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String enhDeps = resource("enh_deps.conllu");
+        String conllu = mwt + enhDeps;
+
+        String[] outputs = new String[2];
+        for (int i = 0; i < outputs.length; i++) {
+            cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU();
+            cz.ufal.udapi.block.write.CoNLLU writer = new cz.ufal.udapi.block.write.CoNLLU();
+            StringWriter output = new StringWriter();
+            reader.setInput(new StringReader(conllu));
+            writer.setOutput(output);
+
+            //FusableDeleteCommas changes the structure of some trees, UposToXpos only attributes
+            Pipeline pipeline = Pipeline.builder().fuse(0 == i).add(reader).add(new UposToXpos())
+                    .add(new FusableDeleteCommas()).add(new UposToXpos()).add(writer).build();
+            pipeline.start();
+            pipeline.process();
+            pipeline.end();
+            outputs[i] = output.toString();
+        }
+
+        assertEquals(outputs[1], outputs[0]);
+        assertFalse(outputs[0].equals(conllu));
+    }
+
+    @Test
+    public void testSlowBundlesAreLogged() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String enhDeps = resource("enh_deps.conllu");
+
+        cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU();
+        reader.setInput(new StringReader(mwt + enhDeps));
+        cz.ufal.udapi.block.write.CoNLLU writer = new cz.ufal.udapi.block.write.CoNLLU();
+        writer.setOutput(new StringWriter());
+        Pipeline pipeline = Pipeline.builder().latency(2).add(reader).add(new NodeCounter()).add(writer).build();
+        pipeline.start();
+        Document document = pipeline.process();
+
+        //the reader and the writer override processDocument, but they record latencies as well
+        List<BundleLatency> latencies = pipeline.getLatencies();
+        assertEquals(document.getBundles().size(), latencies.get(0).getCount());
+        assertEquals(document.getBundles().size(), latencies.get(2).getCount());
+        BundleLatency latency = latencies.get(1);
+        assertEquals(document.getBundles().size(), latency.getCount());
+        List<BundleLatency.SlowBundle> slowBundles = latency.getSlowBundles();
+        assertEquals(2, slowBundles.size());
+        assertTrue(slowBundles.get(0).getNanos() >= slowBundles.get(1).getNanos());
+        assertEquals(latency.getMaxNanos(), slowBundles.get(0).getNanos());
+        assertTrue(slowBundles.get(0).getNodes() > 0);
+        assertTrue(latency.getPercentileNanos(0.5) <= latency.getMaxNanos());
+    }
+
+    @Test
+    public void testMetricsAreReported() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String enhDeps = resource("enh_deps.conllu");
+
+        cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU();
+        reader.setInput(new StringReader(mwt + enhDeps));
+        WorkerAllocator allocator = new WorkerAllocator();
+        Pipeline pipeline = Pipeline.builder().metrics(BlockMetrics.Format.JSON)
+                .add("Read::CoNLLU", reader).add("Allocator", allocator).build();
+
+        PrintStream err = System.err;
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(report, true, "UTF-8"));
+        try {
+            pipeline.start();
+            pipeline.process();
+            pipeline.end();
+        } finally {
+            System.setErr(err);
+        }
+
+        String json = report.toString("UTF-8");
+        assertTrue(json.startsWith("[\n  {\"block\": \"Read::CoNLLU\", \"documents\": 1, \"bundles\": 2, \"trees\": 2, \"nodes\": 22, "));
+        assertTrue(json.contains("\n  {\"block\": \"Allocator\", \"documents\": 1, \"bundles\": 2, \"trees\": 2, \"nodes\": 22, "));
+        assertTrue(json.endsWith("}\n]" + System.lineSeparator()));
+
+        //the arrays are allocated by the worker threads only
+        BlockMetrics metrics = pipeline.getMetrics().get(1);
+        assertEquals("Allocator", metrics.getBlockName());
+        assertTrue(metrics.getAllocatedBytes() >= allocator.allocated);
+        assertTrue(json.contains("\"allocatedBytes\": " + metrics.getAllocatedBytes() + ","));
+    }
+
+    @Test
+    public void testUnmodifiedTreesArePassedThrough() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String enhDeps = resource("enh_deps.conllu");
+        //serialized as "# sent_id = a20w-s2" unless the original line is copied
+        String original = mwt.replace("# sent_id = ", "# sent_id ");
+
+        Map<String, String> params = new HashMap<>();
+        params.put("passthrough", "1");
+        cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU(params);
+        reader.setInput(new StringReader(original + enhDeps + enhDeps));
+        Pipeline pipeline = Pipeline.builder().add(reader).build();
+        pipeline.start();
+        Document document = pipeline.process();
+        pipeline.end();
+
+        Root first = document.getBundles().get(0).getTrees().get(0);
+        Root second = document.getBundles().get(1).getTrees().get(0);
+        Root third = document.getBundles().get(2).getTrees().get(0);
+        assertFalse(first.isModified());
+        assertFalse(second.isModified());
+        second.getDescendants().get(0).setMisc("Changed=1");
+        third.getComments().add(" added");
+        assertTrue(second.isModified());
+        assertTrue(third.isModified());
+        assertNull(second.getRawLines());
+
+        cz.ufal.udapi.block.write.CoNLLU writer = new cz.ufal.udapi.block.write.CoNLLU(params);
+        StringWriter output = new StringWriter();
+        writer.setOutput(output);
+        pipeline = Pipeline.builder().add(writer).build();
+        pipeline.start();
+        pipeline.process(document);
+        pipeline.end();
+
+        assertTrue(output.toString().startsWith(original));
+        assertTrue(output.toString().contains("\tChanged=1\n"));
+        assertTrue(output.toString().contains("# added\n"));
+    }
+
+    @Test
+    public void testShardsContainAllBundles() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String enhDeps = resource("enh_deps.conllu");
+        String conllu = mwt + enhDeps + mwt + enhDeps + mwt;
+
+        //round robin puts bundles 1, 3, 5 to the first shard and 2, 4 to the second one
+        List<String> shards = writeShards(conllu, "round_robin", "2");
+        assertEquals(2, shards.size());
+        assertEquals(mwt + mwt + mwt, shards.get(0));
+        assertEquals(enhDeps + enhDeps, shards.get(1));
+
+        //mwt_test has 16 words and enh_deps 6, each bundle goes to the shard with fewer words so far
+        shards = writeShards(conllu, "size", "2");
+        assertEquals(2, shards.size());
+        assertEquals(mwt + enhDeps + mwt, shards.get(0));
+        assertEquals(enhDeps + mwt, shards.get(1));
+
+        //enh_deps starts with newdoc
+        shards = writeShards(conllu, "newdoc", null);
+        assertEquals(3, shards.size());
+        assertEquals(mwt, shards.get(0));
+        assertEquals(enhDeps + mwt, shards.get(1));
+        assertEquals(enhDeps + mwt, shards.get(2));
+    }
+
+    /**
+     * Writes the input into shards in a temporary directory.
+     *
+     * @return contents of the shards in order
+     */
+    private List<String> writeShards(String conllu, String shardBy, String numberOfShards) throws Exception {
+        Path dir = Files.createTempDirectory("shards");
+        try {
+            Map<String, String> params = new HashMap<>();
+            params.put("dir", dir.toString());
+            params.put("shard_by", shardBy);
+            if (null != numberOfShards) {
+                params.put("shards", numberOfShards);
+            }
+            params.put("passthrough", "1");
+            Map<String, String> readerParams = new HashMap<>();
+            readerParams.put("passthrough", "1");
+            cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU(readerParams);
+            reader.setInput(new StringReader(conllu));
+            Pipeline pipeline = Pipeline.builder().add(reader).add(new cz.ufal.udapi.block.write.CoNLLU(params)).build();
+            pipeline.start();
+            pipeline.process();
+            pipeline.end();
+
+            List<String> shards = new ArrayList<>();
+            for (int i = 0; Files.exists(dir.resolve(String.format("part-%05d.conllu", i))); i++) {
+                Path shard = dir.resolve(String.format("part-%05d.conllu", i));
+                shards.add(new String(Files.readAllBytes(shard), "UTF-8"));
+            }
+            return shards;
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testMetadataFilterSkipsSentences() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String enhDeps = resource("enh_deps.conllu");
+
+        Map<String, String> params = new HashMap<>();
+        params.put("sent_id", "^a-mf");
+        cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU(params);
+        reader.setInput(new StringReader(mwt + enhDeps + mwt + enhDeps));
+        Pipeline pipeline = Pipeline.builder().add(reader).build();
+        pipeline.start();
+        Document document = pipeline.process();
+        pipeline.end();
+
+        assertEquals(2, document.getBundles().size());
+        for (Bundle bundle : document.getBundles()) {
+            assertEquals("a-mf920901-001-p1s1A", bundle.getTrees().get(0).getSentId());
+        }
+    }
+
+    @Test
+    public void testProjectedColumnsAreParsedLazily() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String enhDeps = resource("enh_deps.conllu");
+        String conllu = mwt + enhDeps;
+
+        String[] outputs = new String[2];
+        String[] columns = {"all", "head,deprel"};
+        for (int i = 0; i < outputs.length; i++) {
+            Map<String, String> params = new HashMap<>();
+            params.put("columns", columns[i]);
+            cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU(params);
+            cz.ufal.udapi.block.write.CoNLLU writer = new cz.ufal.udapi.block.write.CoNLLU();
+            StringWriter output = new StringWriter();
+            reader.setInput(new StringReader(conllu));
+            writer.setOutput(output);
+
+            Pipeline pipeline = Pipeline.builder().add(reader).add(new UposToXpos()).add(writer).build();
+            pipeline.start();
+            pipeline.process();
+            pipeline.end();
+            outputs[i] = output.toString();
+        }
+
+        assertEquals(outputs[0], outputs[1]);
+    }
+
+    @Test
+    public void testSentencesAreSampled() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String enhDeps = resource("enh_deps.conllu");
+        StringBuilder conllu = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            conllu.append(mwt).append(enhDeps);
+        }
+
+        Map<String, String> params = new HashMap<>();
+        params.put("offset", "1");
+        params.put("stride", "2");
+        params.put("limit", "3");
+        cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU(params);
+        reader.setInput(new StringReader(conllu.toString()));
+        Pipeline pipeline = Pipeline.builder().add(reader).build();
+        pipeline.start();
+        Document document = pipeline.process();
+        pipeline.end();
+
+        assertEquals(3, document.getBundles().size());
+        for (Bundle bundle : document.getBundles()) {
+            assertEquals("a-mf920901-001-p1s1A", bundle.getTrees().get(0).getSentId());
+        }
+
+        params = new HashMap<>();
+        params.put("reservoir", "4");
+        params.put("seed", "1");
+        reader = new cz.ufal.udapi.block.read.CoNLLU(params);
+        reader.setInput(new StringReader(conllu.toString()));
+        pipeline = Pipeline.builder().add(reader).build();
+        pipeline.start();
+        document = pipeline.process();
+        pipeline.end();
+
+        assertEquals(4, document.getBundles().size());
+    }
+
+    /**
+     * Reads the inputs one after another with one reader and returns the numbers of read bundles.
+     */
+    private static int[] readBundles(Map<String, String> params, String... inputs) {
+        cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU(params);
+        Pipeline pipeline = Pipeline.builder().add(reader).build();
+        pipeline.start();
+        int[] bundles = new int[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            reader.setInput(new StringReader(inputs[i]));
+            bundles[i] = pipeline.process().getBundles().size();
+        }
+        pipeline.end();
+        return bundles;
+    }
+
+    private String resource(String name) throws Exception {
+        return new String(Files.readAllBytes(Paths.get(getClass().getResource(name).toURI())), "UTF-8");
+    }
+
+    /**
+     * Deletes the file or the directory with its content.
+     */
+    private static void delete(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static class UposToXpos extends Block {
+        @Override
+        public boolean isFusable() {
+            return true;
+        }
+
+        @Override
+        public void processNode(Node node) {
+            node.setXpos(node.getUpos());
+        }
+    }
+
+    /**
+     * Removes nodes, so the fused traversal has to be rolled back.
+     */
+    private static class FusableDeleteCommas extends DeleteCommas {
+        @Override
+        public boolean isFusable() {
+            return true;
+        }
+    }
+
+    private static class TreeCounter extends Block {
+        private int bundles;
+        private int trees;
+
+        TreeCounter(Map<String, String> params) {
+            super(params);
+        }
+
+        @Override
+        public void beforeProcessBundle(Bundle bundle) {
+            bundles++;
+        }
+
+        @Override
+        public void processTree(Root tree) {
+            trees++;
+        }
+    }
+
+    /**
+     * Allocates arrays in the worker threads of Parallel.
+     */
+    private static class WorkerAllocator extends Block {
+        private final ExecutorService executor = Parallel.newDaemonPool(2, "allocator");
+        private long allocated;
+
+        @Override
+        public void processDocument(Document document) {
+            for (byte[] array : Parallel.mapRanges(executor, 2, 2, (start, end) -> new byte[4 * 1024 * 1024])) {
+                allocated += array.length;
+            }
+        }
+
+        @Override
+        public void processEnd() {
+            executor.shutdown();
+        }
+    }
+
+    private static class NodeCounter extends Block {
+        private int nodes;
+
+        @Override
+        public void processNode(Node node) {
+            nodes++;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package cz.ufal.udapi;
+
+import cz.ufal.udapi.block.common.Writer;
+import cz.ufal.udapi.block.write.Sentences;
+import cz.ufal.udapi.block.write.TextModeTrees;
+import cz.ufal.udapi.block.write.Treex;
+import cz.ufal.udapi.core.Pipeline;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the writers against golden outputs.
+ */
+public class WriterTest {
+
+    @Test
+    public void testTextModeTrees() throws Exception {
+        String sample = new String(Files.readAllBytes(Paths.get("demo", "en-sample.conllu")), "UTF-8");
+
+        for (String parallel : new String[]{"0", "1"}) {
+            Map<String, String> params = new HashMap<>();
+            params.put(TextModeTrees.PARAM_PARALLEL, parallel);
+            assertEquals(resource("en-sample_trees.txt"), write(sample, new TextModeTrees(params)));
+            assertEquals(resource("mwt_test_trees.txt"), write(resource("mwt_test.conllu"), new TextModeTrees(params)));
+        }
+    }
+
+    @Test
+    public void testTreex() throws Exception {
+        assertEquals(resource("mwt_test_treex.xml"), write(resource("mwt_test.conllu"), new Treex()));
+        //forms and lemmas with XML special characters
+        assertEquals(resource("treex_escaping.xml"), write(resource("treex_escaping.conllu"), new Treex()));
+    }
+
+    @Test
+    public void testSentences() throws Exception {
+        String mwt = resource("mwt_test.conllu");
+        String text = "Je přirozenou snahou každého člověka, aby chodil vždy v čistém a upraveném oděvu.\n";
+        assertEquals(text, write(mwt, new Sentences()));
+
+        //without the text comment, the sentence is detokenized using multiword tokens and SpaceAfter=No
+        String withoutText = mwt.replaceAll("(?m)^# text = .*\n", "");
+        assertEquals(text, write(withoutText, new Sentences()));
+        assertEquals("Slovenská ústava: pro i proti\n", write(resource("enh_deps.conllu"), new Sentences()));
+    }
+
+    /**
+     * Reads the CoNLL-U input and writes it with given writer.
+     */
+    private static String write(String conllu, Writer writer) {
+        cz.ufal.udapi.block.read.CoNLLU reader = new cz.ufal.udapi.block.read.CoNLLU();
+        reader.setInput(new StringReader(conllu));
+        StringWriter output = new StringWriter();
+        writer.setOutput(output);
+
+        Pipeline pipeline = Pipeline.builder().add(reader).add(writer).build();
+        pipeline.start();
+        pipeline.process();
+        pipeline.end();
+        return output.toString();
+    }
+
+    private String resource(String name) throws Exception {
+        return new String(Files.readAllBytes(Paths.get(getClass().getResource(name).toURI())), "UTF-8");
+    }
+}